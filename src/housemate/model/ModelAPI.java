@@ -5,6 +5,7 @@ import java.util.Map;
 import java.util.Set;
 
 import housemate.src.knowledge.engine.*;
+import housemate.src.knowledge.engine.exception.QueryEngineException;
 import housemate.src.housemate.controller.*;
 import housemate.src.housemate.entitlement.*;
 import housemate.src.housemate.entitlement.factory.*;
@@ -18,6 +19,13 @@ public class ModelAPI {
         houseMap = new HashMap<String, House>();
         occupantMap = new HashMap<String, Occupant>();
         occupantStatus = KnowledgeGraph.getInstance();
+        occupantStatus.setFunctional("is_in");
+        occupantStatus.setFunctional("is");
+        try {
+            locationQuery = occupantStatus.prepareQuery("$occupant is_in ?");
+        } catch (QueryEngineException ex) {
+            throw new IllegalStateException(ex);
+        }
         observer = new DeviceObserver(this);
         entAPI = EntitlementAPI.getInstance();
         entFactory = entAPI.getFactory();
@@ -56,6 +64,11 @@ public class ModelAPI {
      */
     private KnowledgeGraph occupantStatus;
 
+    /**
+     * Prepared query for the location of an Occupant.
+     */
+    private PreparedQuery locationQuery;
+
     /**
      * Private association with DeviceOberver for updating Device status change.
      */
@@ -236,7 +249,8 @@ public class ModelAPI {
 
     /**
      * Public method for adding occupant location or status into KnowledgeGraph as
-     * two Triples.
+     * two Triples. Location ("is_in") and status ("is") are functional, so the
+     * new value replaces the previous one.
      * 
      * @param occupant The Occupant's name
      * @param status   The Occupant's status
@@ -280,7 +294,7 @@ public class ModelAPI {
      * @return Occupant location
      */
     public String queryOccupantLocation(String occupantName) {
-        Set<Triple> triples = occupantStatus.executeQuery(occupantName, "is_in", "?");
+        Set<Triple> triples = locationQuery.execute(occupantName);
         if (triples == null) {
             return "not found";
         } else {
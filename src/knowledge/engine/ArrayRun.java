@@ -0,0 +1,29 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * IndexRun held in Java arrays. Built by inserts, merges and bulk imports.
+ */
+final class ArrayRun extends IndexRun {
+    private final long[] highs;
+    private final int[] lows;
+
+    ArrayRun(long[] highs, int[] lows) {
+        this.highs = highs;
+        this.lows = lows;
+    }
+
+    @Override
+    int size() {
+        return highs.length;
+    }
+
+    @Override
+    long high(int index) {
+        return highs[index];
+    }
+
+    @Override
+    int low(int index) {
+        return lows[index];
+    }
+}
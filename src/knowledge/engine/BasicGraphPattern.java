@@ -0,0 +1,398 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The BasicGraphPattern class is a parsed query: one or more triple patterns
+ * that must all match, joined on shared variables. Patterns are separated by
+ * a period followed by whitespace or ending the query, so periods within
+ * terms such as “25.5” are kept, and each holds a Subject, Predicate and
+ * Object term separated by whitespace, for example
+ * 
+ * <pre>
+ * ?who works_at ?place. ?place sells coffee.
+ * </pre>
+ * 
+ * A term of the form “?name” is a variable, which must take the same value
+ * wherever it occurs; a bare “?” matches anything without binding a variable.
+ * Identifiers are case insensitive. A predicate of the form “p+”, “p*”,
+ * “p{n,m}” or “p{n}” is a property path matching chains of p Triples (see
+ * PropertyPath), e.g. “house1 contains+ ?thing.” A comparison with a number
+ * in place of the Object matches the Triples whose Object is a number
+ * satisfying it (see NumericRange), e.g. “?fridge beer_count &lt; 4.” A
+ * Subject or Object ending in “*” matches every identifier starting with the
+ * rest of the term (see PrefixFilter), e.g. “?who is_in house1:*.” A final
+ * “limit n” and/or “offset m” clause restricts the solutions returned, e.g.
+ * “? is_in ?. limit 10 offset 20.”, and may be preceded by an “order by”
+ * clause sorting them (see QueryOrder), e.g. “? is_in kitchen. order by time
+ * desc limit 10.” A single pattern without variables is ordered by subject,
+ * predicate, object or time, a query with variables by one of them.
+ */
+public class BasicGraphPattern {
+    static final String WILDCARD = "?";
+
+    /**
+     * Subject, Predicate and Object term of each pattern.
+     */
+    private final List<String[]> patterns;
+
+    /**
+     * Variable names in order of first occurrence.
+     */
+    private final List<String> variables;
+
+    /**
+     * Property path of each pattern, or null if its predicate is a plain term.
+     */
+    private final List<PropertyPath> paths;
+
+    /**
+     * Numeric comparison of each pattern, or null if its Object is a term.
+     */
+    private final List<NumericRange> ranges;
+
+    private long limit = Long.MAX_VALUE;
+    private long offset;
+
+    /**
+     * Sort order of the solutions, or null if they are returned unordered.
+     */
+    private QueryOrder order;
+
+    private BasicGraphPattern(List<String[]> patterns, List<String> variables, List<PropertyPath> paths,
+            List<NumericRange> ranges) {
+        this.patterns = patterns;
+        this.variables = variables;
+        this.paths = paths;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Parse a query string. Throws QueryEngineException if a pattern does not
+     * hold exactly three terms, or a subject, a predicate and a comparison, if
+     * a property path or comparison is malformed or has a prefix term, or if
+     * an order by, limit or offset clause is repeated.
+     * 
+     * @param query
+     * @return
+     * @throws QueryEngineException
+     */
+    public static BasicGraphPattern parse(String query) throws QueryEngineException {
+        List<String[]> patterns = new ArrayList<String[]>();
+        List<String> variables = new ArrayList<String>();
+        List<PropertyPath> paths = new ArrayList<PropertyPath>();
+        List<NumericRange> ranges = new ArrayList<NumericRange>();
+        long limit = Long.MAX_VALUE;
+        long offset = 0;
+        boolean limited = false;
+        boolean offsetted = false;
+        QueryOrder order = null;
+        for (String part : splitPatterns(query.toLowerCase())) {
+            String text = part.trim();
+            if (text.isEmpty()) {
+                continue;
+            }
+            String[] terms = text.split("\\s+");
+            if (!patterns.isEmpty() && (isOrderClause(terms) || isClause(terms, 0))) {
+                int i = 0;
+                if (terms[0].equals("order")) {
+                    if (order != null || limited || offsetted) {
+                        throw new QueryEngineException("Duplicate or misplaced order by clause: " + text);
+                    }
+                    i = orderLength(terms);
+                    order = QueryOrder.parse(terms[2] + (i == 4 ? " " + terms[3] : ""));
+                }
+                for (; i < terms.length; i += 2) {
+                    long value = parseCount(terms, i, text);
+                    if (terms[i].equals("limit")) {
+                        if (limited) {
+                            throw new QueryEngineException("Duplicate limit clause: " + text);
+                        }
+                        limit = value;
+                        limited = true;
+                    } else {
+                        if (offsetted) {
+                            throw new QueryEngineException("Duplicate offset clause: " + text);
+                        }
+                        offset = value;
+                        offsetted = true;
+                    }
+                }
+                continue;
+            }
+            if (order != null || limited || offsetted) {
+                throw new QueryEngineException("Query pattern after order by, limit or offset: " + text);
+            }
+            NumericRange range = null;
+            if (terms.length == 4 && NumericRange.isOperator(terms[2])) {
+                if (terms[1].charAt(0) == '?' || PropertyPath.isPath(terms[1])) {
+                    throw new QueryEngineException("Comparisons need a constant predicate: " + text);
+                }
+                range = NumericRange.parse(terms[2], terms[3]);
+                terms = new String[] { terms[0], terms[1], terms[2] + " " + terms[3] };
+            }
+            if (terms.length != 3) {
+                throw new QueryEngineException("Malformed query pattern, expected subject, predicate and object: "
+                        + text);
+            }
+            PropertyPath path = null;
+            if (PropertyPath.isPath(terms[1])) {
+                if (terms[1].charAt(0) == '?') {
+                    throw new QueryEngineException("Property paths need a constant predicate: " + text);
+                }
+                path = PropertyPath.parse(terms[1]);
+            }
+            if ((path != null || range != null)
+                    && (PrefixFilter.isPrefix(terms[0]) || PrefixFilter.isPrefix(terms[2]))) {
+                throw new QueryEngineException("Prefixes cannot be combined with property paths or comparisons: "
+                        + text);
+            }
+            for (String term : terms) {
+                if (isVariable(term) && !variables.contains(term)) {
+                    variables.add(term);
+                }
+            }
+            patterns.add(terms);
+            paths.add(path);
+            ranges.add(range);
+        }
+        if (patterns.isEmpty()) {
+            throw new QueryEngineException("Empty query: " + query);
+        }
+        BasicGraphPattern parsed = new BasicGraphPattern(patterns, Collections.unmodifiableList(variables), paths,
+                ranges);
+        parsed.limit = limit;
+        parsed.offset = offset;
+        parsed.order = order;
+        for (int variable = 0; variable < variables.size(); variable++) {
+            parsed.checkPosition(variables.get(variable));
+        }
+        if (order != null) {
+            parsed.checkOrder();
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the variable names, including the leading “?”, in order of first
+     *         occurrence.
+     */
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * @return the maximum number of solutions to return.
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the number of solutions to skip.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the sort order of the solutions, or null if they are returned
+     *         unordered.
+     */
+    QueryOrder getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the number of triple patterns.
+     */
+    public int size() {
+        return patterns.size();
+    }
+
+    /**
+     * @param pattern
+     * @return the Subject, Predicate and Object term of the given pattern.
+     */
+    String[] getTerms(int pattern) {
+        return patterns.get(pattern);
+    }
+
+    /**
+     * @param pattern
+     * @return the property path of the given pattern, or null if its
+     *         predicate is a plain term.
+     */
+    PropertyPath getPath(int pattern) {
+        return paths.get(pattern);
+    }
+
+    /**
+     * @param pattern
+     * @return the numeric comparison of the given pattern, or null if its
+     *         Object is a term.
+     */
+    NumericRange getRange(int pattern) {
+        return ranges.get(pattern);
+    }
+
+    /**
+     * @param pattern
+     * @return true if the Subject or Object of the given pattern is a prefix.
+     */
+    boolean hasPrefix(int pattern) {
+        return PrefixFilter.isPrefix(patterns.get(pattern)[0]) || PrefixFilter.isPrefix(patterns.get(pattern)[2]);
+    }
+
+    /**
+     * @param terms
+     * @return true if the terms are an “order by key [asc|desc]” clause,
+     *         optionally followed by limit and offset clauses, rather than a
+     *         triple pattern such as “order is_in ?”.
+     */
+    private static boolean isOrderClause(String[] terms) {
+        return terms.length >= 3 && terms[0].equals("order") && terms[1].equals("by") && QueryOrder.isKey(terms[2])
+                && isClause(terms, orderLength(terms));
+    }
+
+    /**
+     * @return the number of terms of an order by clause with or without a
+     *         direction.
+     */
+    private static int orderLength(String[] terms) {
+        return terms.length > 3 && (terms[3].equals("asc") || terms[3].equals("desc")) ? 4 : 3;
+    }
+
+    /**
+     * @param terms
+     * @param from  index of the first clause term
+     * @return true if the terms from the given index are “limit n” and/or
+     *         “offset m” clauses rather than part of a triple pattern such as
+     *         “limit sells ?”.
+     */
+    private static boolean isClause(String[] terms, int from) {
+        for (int i = from; i < terms.length; i += 2) {
+            if (!(terms[i].equals("limit") || terms[i].equals("offset")) || i + 1 == terms.length
+                    || !terms[i + 1].matches("\\d+")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseCount(String[] terms, int index, String text) throws QueryEngineException {
+        if (index + 1 >= terms.length || !(terms[index].equals("limit") || terms[index].equals("offset"))) {
+            throw new QueryEngineException("Malformed limit or offset clause: " + text);
+        }
+        long value;
+        try {
+            value = Long.parseLong(terms[index + 1]);
+        } catch (NumberFormatException ex) {
+            throw new QueryEngineException("Expected a count in: " + text);
+        }
+        if (value < 0) {
+            throw new QueryEngineException("Expected a non negative count in: " + text);
+        }
+        return value;
+    }
+
+    /**
+     * @param variable index into getVariables()
+     * @return true if the variable stands for Predicates rather than Nodes.
+     */
+    boolean isPredicateVariable(int variable) {
+        return variables.get(variable).equals(patterns.get(positionOf(variables.get(variable)) / 3)[1]);
+    }
+
+    /**
+     * Node and Predicate ids are drawn from separate dictionaries, so a variable
+     * cannot be both.
+     */
+    private void checkPosition(String variable) throws QueryEngineException {
+        boolean predicate = false;
+        boolean node = false;
+        for (String[] terms : patterns) {
+            predicate |= variable.equals(terms[1]);
+            node |= variable.equals(terms[0]) || variable.equals(terms[2]);
+        }
+        if (predicate && node) {
+            throw new QueryEngineException("Variable " + variable
+                    + " is used both as predicate and as subject or object");
+        }
+    }
+
+    /**
+     * Triples are ordered by position only when they are the solutions
+     * themselves, i.e. for a single plain pattern without variables.
+     */
+    private void checkOrder() throws QueryEngineException {
+        if (order.getVariable() != null) {
+            if (!variables.contains(order.getVariable())) {
+                throw new QueryEngineException("Cannot order by " + order.getVariable()
+                        + ", which is not a variable of the query");
+            }
+        } else if (!variables.isEmpty() || patterns.size() > 1 || paths.get(0) != null || ranges.get(0) != null) {
+            throw new QueryEngineException("Cannot order by " + order
+                    + " except for a single triple pattern without variables, paths or comparisons");
+        }
+    }
+
+    /**
+     * @return 3 * pattern index + position of the first occurrence of a term.
+     */
+    private int positionOf(String term) {
+        for (int i = 0; i < patterns.size(); i++) {
+            for (int position = 0; position < 3; position++) {
+                if (term.equals(patterns.get(i)[position])) {
+                    return 3 * i + position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Split a query into its periods separated parts. Only a period followed by
+     * whitespace or ending the text separates parts, so periods within terms,
+     * such as decimal numbers like “25.5”, are kept.
+     * 
+     * @param text
+     * @return
+     */
+    static String[] splitPatterns(String text) {
+        return text.split("\\.(?=\\s|$)");
+    }
+
+    /**
+     * @param term
+     * @return true if the term is a named variable.
+     */
+    static boolean isVariable(String term) {
+        return term.length() > 1 && term.charAt(0) == '?';
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (String[] terms : patterns) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(terms[0]).append(' ').append(terms[1]).append(' ').append(terms[2]).append('.');
+        }
+        if (order != null) {
+            text.append(" order by ").append(order).append('.');
+        }
+        if (limit != Long.MAX_VALUE) {
+            text.append(" limit ").append(limit).append('.');
+        }
+        if (offset != 0) {
+            text.append(" offset ").append(offset).append('.');
+        }
+        return text.toString();
+    }
+}
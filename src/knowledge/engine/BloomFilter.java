@@ -0,0 +1,205 @@
+package housemate.src.knowledge.engine;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The BloomFilter class answers whether a PermutationIndex may hold a key
+ * without searching its runs. A filter sized for n keys has 10 bits per key and
+ * sets 7 bits per key, chosen by double hashing, which gives a false positive
+ * rate of about 0.8% once n keys have been added and never a false negative.
+ * 
+ * Bits are only ever set, so successive immutable indexes share one filter: a
+ * reader of an older index may find bits of keys added later, which only adds
+ * false positives. Removed keys keep their bits until the index builds a new
+ * filter, on compaction or when it outgrows the capacity of the filter.
+ * Writers must be serialized; readers need no locking.
+ */
+final class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+    static final int HASH_COUNT = 7;
+    private static final int MIN_CAPACITY = 1024;
+
+    private final long capacity;
+    private final int hashCount;
+    private final long bitCount;
+
+    /**
+     * Filter bits, memory-mapped read-only when loaded from a snapshot file and
+     * copied to the heap on the first add.
+     */
+    private volatile LongBuffer bits;
+
+    /**
+     * Number of bits set, maintained by add. Read without locking for
+     * statistics only.
+     */
+    private volatile long setBitCount;
+
+    private final LongAdder probes = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    /**
+     * @param capacity number of keys to size the filter for
+     */
+    BloomFilter(long capacity) {
+        this.capacity = Math.max(capacity, MIN_CAPACITY);
+        this.hashCount = HASH_COUNT;
+        this.bits = LongBuffer.wrap(new long[(int) ((this.capacity * BITS_PER_KEY + 63) >>> 6)]);
+        this.bitCount = 64L * bits.capacity();
+    }
+
+    /**
+     * @param capacity    number of keys the filter was sized for
+     * @param hashCount   number of bits set per key
+     * @param setBitCount number of bits set
+     * @param bits        filter bits, e.g. mapped from a snapshot file
+     */
+    BloomFilter(long capacity, int hashCount, long setBitCount, LongBuffer bits) {
+        this.capacity = capacity;
+        this.hashCount = hashCount;
+        this.bitCount = 64L * bits.capacity();
+        this.setBitCount = setBitCount;
+        this.bits = bits;
+    }
+
+    /**
+     * @param high packed first and second key column
+     * @param low  third key column
+     * @return the filter hash of a full key.
+     */
+    static long hash(long high, int low) {
+        return mix(high * 0x9E3779B97F4A7C15L + low);
+    }
+
+    /**
+     * @param high packed first and second key column
+     * @return the filter hash of a two column key prefix.
+     */
+    static long hash(long high) {
+        return mix(high);
+    }
+
+    /**
+     * Add a key by its hash.
+     * 
+     * @param hash
+     */
+    void add(long hash) {
+        LongBuffer words = bits;
+        if (words.isReadOnly()) {
+            LongBuffer copy = LongBuffer.allocate(words.capacity());
+            copy.put(words.duplicate().clear()).clear();
+            bits = copy;
+            words = copy;
+        }
+        long step = (hash >>> 32) | 1;
+        long added = 0;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash + i * step, bitCount);
+            int index = (int) (bit >>> 6);
+            long word = words.get(index);
+            long mask = 1L << bit;
+            if ((word & mask) == 0) {
+                words.put(index, word | mask);
+                added++;
+            }
+        }
+        setBitCount += added;
+    }
+
+    /**
+     * @param hash
+     * @return false if no key with the given hash has been added.
+     */
+    boolean mightContain(long hash) {
+        probes.increment();
+        LongBuffer words = bits;
+        long step = (hash >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash + i * step, bitCount);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                rejections.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that a key the filter might contain turned out to be absent.
+     */
+    void recordFalsePositive() {
+        falsePositives.increment();
+    }
+
+    /**
+     * @return the number of keys the filter was sized for.
+     */
+    long getCapacity() {
+        return capacity;
+    }
+
+    int getHashCount() {
+        return hashCount;
+    }
+
+    long getBitCount() {
+        return bitCount;
+    }
+
+    long getSetBitCount() {
+        return setBitCount;
+    }
+
+    int getWordCount() {
+        return bits.capacity();
+    }
+
+    long getWord(int index) {
+        return bits.get(index);
+    }
+
+    /**
+     * @return the expected false positive rate for absent keys given the
+     *         fraction of bits set.
+     */
+    double getExpectedFalsePositiveRate() {
+        return Math.pow((double) setBitCount / bitCount, hashCount);
+    }
+
+    /**
+     * @return the fraction of the probes for absent keys the filter did not
+     *         reject, or 0 if there were none.
+     */
+    double getObservedFalsePositiveRate() {
+        long passed = falsePositives.sum();
+        long absent = passed + rejections.sum();
+        return absent == 0 ? 0 : (double) passed / absent;
+    }
+
+    long getProbeCount() {
+        return probes.sum();
+    }
+
+    long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    long getFalsePositiveCount() {
+        return falsePositives.sum();
+    }
+
+    /**
+     * Final mixing step of MurmurHash3.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB93FE1A85A53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
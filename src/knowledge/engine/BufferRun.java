@@ -0,0 +1,34 @@
+package housemate.src.knowledge.engine;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * IndexRun read straight from buffers, typically views of a memory-mapped
+ * snapshot file, so a loaded index is queried without being copied onto the
+ * heap.
+ */
+final class BufferRun extends IndexRun {
+    private final LongBuffer highs;
+    private final IntBuffer lows;
+
+    BufferRun(LongBuffer highs, IntBuffer lows) {
+        this.highs = highs;
+        this.lows = lows;
+    }
+
+    @Override
+    int size() {
+        return highs.limit();
+    }
+
+    @Override
+    long high(int index) {
+        return highs.get(index);
+    }
+
+    @Override
+    int low(int index) {
+        return lows.get(index);
+    }
+}
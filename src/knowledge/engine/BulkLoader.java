@@ -0,0 +1,434 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.ImportException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The BulkLoader class imports an N-Triple file into the KnowledgeGraph using
+ * all available cores. The file is split into chunks on line boundaries and the
+ * chunks are parsed concurrently on a fork-join pool, each into its own term
+ * dictionaries and TripleBuffer. The chunk dictionaries are then folded into
+ * the KnowledgeGraph dictionaries in file order, so ids are assigned as by a
+ * serial import, and each chunk is sorted into one IndexRun per Permutation.
+ * Finally the chunk runs are merged pairwise, unioned with the current
+ * PermutationIndexes and published as a single new GraphSnapshot. Concurrent
+ * readers keep querying the previous snapshot throughout.
+ * 
+ * A compressed file cannot be split, so its decompressed stream is read into
+ * chunks serially while the pool parses the chunks read before.
+ */
+class BulkLoader {
+    /**
+     * Smallest chunk worth handing to a worker.
+     */
+    private static final long MIN_CHUNK = 1 << 22;
+
+    /**
+     * Largest chunk, bounded by what a single MappedByteBuffer can address.
+     */
+    private static final long MAX_CHUNK = 1 << 28;
+
+    /**
+     * Size of the chunks read from a stream.
+     */
+    private static final int STREAM_CHUNK = 1 << 24;
+
+    private final KnowledgeGraph knowledgeGraph;
+    private final int parallelism;
+
+    BulkLoader(KnowledgeGraph knowledgeGraph, int parallelism) {
+        this.knowledgeGraph = knowledgeGraph;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Import every line of the given file channel.
+     * 
+     * @param channel
+     * @return the throughput report of the import.
+     * @throws IOException
+     * @throws ImportException
+     */
+    ImportStatistics load(FileChannel channel) throws IOException, ImportException {
+        long start = System.nanoTime();
+        long fileSize = channel.size();
+        List<ChunkTask> chunks = split(channel, fileSize);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Fork(chunks));
+            return merge(pool, chunks, fileSize, start);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Import every line of the given stream, e.g. a decompressed file. The
+     * stream is read serially into chunks of STREAM_CHUNK bytes, which are
+     * parsed on the pool while later chunks are read. At most parallelism + 1
+     * chunks are held unparsed, so memory stays bounded by the parsed Triples
+     * rather than the input. Reported byte offsets are stream positions.
+     * 
+     * @param input
+     * @return the throughput report of the import.
+     * @throws IOException
+     * @throws ImportException
+     */
+    ImportStatistics load(InputStream input) throws IOException, ImportException {
+        long start = System.nanoTime();
+        List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            byte[] carry = new byte[0];
+            long offset = 0;
+            int joined = 0;
+            while (true) {
+                byte[] data = Arrays.copyOf(carry, carry.length + STREAM_CHUNK);
+                int filled = carry.length + input.readNBytes(data, carry.length, STREAM_CHUNK);
+                int end = filled;
+                if (filled == data.length) {
+                    while (end > 0 && data[end - 1] != '\n') {
+                        end--;
+                    }
+                }
+                if (end > 0) {
+                    ChunkTask chunk = new ChunkTask(ByteBuffer.wrap(data, 0, end).slice(), offset);
+                    pool.execute(chunk);
+                    chunks.add(chunk);
+                    offset += end;
+                }
+                if (filled < data.length) {
+                    break;
+                }
+                carry = Arrays.copyOfRange(data, end, filled);
+                while (chunks.size() - joined > parallelism) {
+                    chunks.get(joined++).join();
+                }
+            }
+            for (ChunkTask chunk : chunks) {
+                chunk.join();
+            }
+            return merge(pool, chunks, offset, start);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Fold the parsed chunks into the KnowledgeGraph and publish the result.
+     * 
+     * @param pool
+     * @param chunks    the parsed chunks in input order
+     * @param byteCount size of the input
+     * @param start     System.nanoTime() at the start of the import
+     * @return the throughput report of the import.
+     */
+    private ImportStatistics merge(ForkJoinPool pool, List<ChunkTask> chunks, long byteCount, long start)
+            throws IOException, ImportException {
+        int chunkCount = chunks.size();
+        int added;
+        long tripleCount = 0;
+        long sequence = 0;
+        WriteAheadLog log;
+        checkChunks(chunks);
+
+        List<SortTask> sorts = new ArrayList<SortTask>();
+        for (ChunkTask chunk : chunks) {
+            int[] nodeIds = globalIds(chunk.nodeDictionary, knowledgeGraph.getNodeDictionary());
+            int[] predicateIds = globalIds(chunk.predicateDictionary, knowledgeGraph.getPredicateDictionary());
+            sorts.add(new SortTask(chunk.buffer, nodeIds, predicateIds));
+            tripleCount += chunk.buffer.size();
+        }
+        chunks.clear();
+        pool.invoke(new Fork(sorts));
+        if (sorts.isEmpty()) {
+            return new ImportStatistics(0, 0, byteCount, System.nanoTime() - start, 0, parallelism);
+        }
+
+        synchronized (knowledgeGraph.getWriteLock()) {
+            GraphSnapshot current = knowledgeGraph.getSnapshot();
+            List<UnionTask> unions = new ArrayList<UnionTask>();
+            for (Permutation permutation : Permutation.values()) {
+                IndexRun[] runs = new IndexRun[sorts.size()];
+                for (int i = 0; i < runs.length; i++) {
+                    runs[i] = sorts.get(i).runs[permutation.ordinal()];
+                }
+                unions.add(new UnionTask(current.getIndex(permutation), runs));
+            }
+            pool.invoke(new Fork(unions));
+            GraphSnapshot successor = new GraphSnapshot(unions.get(0).result, unions.get(1).result,
+                    unions.get(2).result, current.getNodeDictionary(), current.getPredicateDictionary(),
+                    current.getVersion() + 1);
+            log = knowledgeGraph.getLog();
+            if (log != null) {
+                for (SortTask sort : sorts) {
+                    sequence = Math.max(sequence, log(log, sort.runs[Permutation.SPO.ordinal()], successor));
+                }
+            }
+            knowledgeGraph.publish(successor);
+            knowledgeGraph.refreshFunctionalValues();
+            List<IndexRun> loaded = new ArrayList<IndexRun>();
+            for (SortTask sort : sorts) {
+                loaded.add(sort.runs[Permutation.SPO.ordinal()]);
+            }
+            knowledgeGraph.bulkAdded(current, successor, loaded);
+            added = successor.size() - current.size();
+        }
+        if (sequence > 0) {
+            log.commit(sequence);
+        }
+        return new ImportStatistics(tripleCount, added, byteCount, System.nanoTime() - start, chunkCount,
+                parallelism);
+    }
+
+    /**
+     * Split the file into chunks of roughly equal size, moving each boundary
+     * forward to just past the next newline.
+     */
+    private List<ChunkTask> split(FileChannel channel, long fileSize) throws IOException {
+        long target = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, fileSize / (4L * parallelism)));
+        List<ChunkTask> chunks = new ArrayList<ChunkTask>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < fileSize) {
+            long end = Math.min(fileSize, start + target);
+            while (end < fileSize) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                int newline = -1;
+                for (int i = 0; i < read && newline < 0; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = i;
+                    }
+                }
+                if (newline >= 0) {
+                    end += newline + 1;
+                    break;
+                }
+                end += Math.max(read, 0);
+            }
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("Line at byte offset " + start + " is too long to map");
+            }
+            chunks.add(new ChunkTask(channel, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Rethrow the failure of the first failed chunk. A malformed line is parsed
+     * again serially with the line count of the preceding chunks, so that the
+     * reported line number is relative to the file.
+     */
+    private static void checkChunks(List<ChunkTask> chunks) throws IOException, ImportException {
+        long lines = 0;
+        for (ChunkTask chunk : chunks) {
+            if (chunk.ioFailure != null) {
+                throw chunk.ioFailure;
+            }
+            if (chunk.importFailure != null) {
+                NTriplesParser parser = new NTriplesParser(new TermDictionary(), new TermDictionary(),
+                        new TripleBuffer());
+                parser.setLineNumber(lines);
+                ByteBuffer input = chunk.input();
+                parser.parseLines(input, 0, input.limit(), chunk.start);
+                throw chunk.importFailure;
+            }
+            lines += chunk.lineCount;
+        }
+    }
+
+    /**
+     * Encode every term of a chunk dictionary into the KnowledgeGraph
+     * dictionary.
+     * 
+     * @return the KnowledgeGraph id indexed by chunk id.
+     */
+    private static int[] globalIds(TermDictionary chunkDictionary, TermDictionary dictionary) {
+        int[] ids = new int[chunkDictionary.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = dictionary.encode(chunkDictionary.decode(id));
+        }
+        return ids;
+    }
+
+    /**
+     * Append every Triple of a chunk run to the write-ahead log. Triples that
+     * were already present are logged too, which is harmless on replay.
+     * 
+     * @return the log sequence number of the last record.
+     */
+    private static long log(WriteAheadLog log, IndexRun run, GraphSnapshot successor) throws IOException {
+        TermDictionary nodeDictionary = successor.getNodeDictionary();
+        TermDictionary predicateDictionary = successor.getPredicateDictionary();
+        long sequence = 0;
+        for (int i = 0; i < run.size(); i++) {
+            long high = run.high(i);
+            sequence = log.append(WriteAheadLog.ADD, successor.getVersion(),
+                    nodeDictionary.decode(IndexRun.first(high)), predicateDictionary.decode(IndexRun.second(high)),
+                    nodeDictionary.decode(run.low(i)));
+        }
+        return sequence;
+    }
+
+    /**
+     * Runs a list of independent tasks on the pool and waits for all of them.
+     */
+    private static class Fork extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<? extends ForkJoinTask<?>> tasks;
+
+        Fork(List<? extends ForkJoinTask<?>> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            invokeAll(tasks);
+        }
+    }
+
+    /**
+     * Parses the lines of one chunk into chunk local dictionaries. The chunk is
+     * either a range of a file, mapped when it is parsed, or a buffer read from
+     * a stream, released once it is parsed.
+     */
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private ByteBuffer data;
+        private TermDictionary nodeDictionary = new TermDictionary();
+        private TermDictionary predicateDictionary = new TermDictionary();
+        private TripleBuffer buffer = new TripleBuffer();
+        private long lineCount;
+        private IOException ioFailure;
+        private ImportException importFailure;
+
+        ChunkTask(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @param data  the lines of the chunk
+         * @param start stream position of the chunk
+         */
+        ChunkTask(ByteBuffer data, long start) {
+            this(null, start, start + data.limit());
+            this.data = data;
+        }
+
+        /**
+         * @return the bytes of the chunk.
+         */
+        ByteBuffer input() throws IOException {
+            return data != null ? data : channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+
+        @Override
+        protected void compute() {
+            NTriplesParser parser = new NTriplesParser(nodeDictionary, predicateDictionary, buffer);
+            try {
+                ByteBuffer input = input();
+                parser.parseLines(input, 0, input.limit(), start);
+                lineCount = parser.getLineNumber();
+                data = null;
+            } catch (IOException ex) {
+                ioFailure = ex;
+            } catch (ImportException ex) {
+                importFailure = ex;
+            }
+        }
+    }
+
+    /**
+     * Translates the Triples of one chunk to KnowledgeGraph ids and sorts them
+     * into one run per Permutation.
+     */
+    private static class SortTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private TripleBuffer buffer;
+        private final int[] nodeIds;
+        private final int[] predicateIds;
+        private final IndexRun[] runs = new IndexRun[Permutation.values().length];
+
+        SortTask(TripleBuffer buffer, int[] nodeIds, int[] predicateIds) {
+            this.buffer = buffer;
+            this.nodeIds = nodeIds;
+            this.predicateIds = predicateIds;
+        }
+
+        @Override
+        protected void compute() {
+            buffer.remap(nodeIds, predicateIds);
+            for (Permutation permutation : Permutation.values()) {
+                runs[permutation.ordinal()] = buffer.toRun(permutation);
+            }
+            buffer = null;
+        }
+    }
+
+    /**
+     * Merges the chunk runs of one Permutation and unions the result with the
+     * current index contents.
+     */
+    private static class UnionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final PermutationIndex index;
+        private final IndexRun[] runs;
+        private PermutationIndex result;
+
+        UnionTask(PermutationIndex index, IndexRun[] runs) {
+            this.index = index;
+            this.runs = runs;
+        }
+
+        @Override
+        protected void compute() {
+            result = index.union(new MergeTask(runs, 0, runs.length).invoke());
+        }
+    }
+
+    /**
+     * Merges runs [from, to) by recursively merging both halves in parallel.
+     */
+    private static class MergeTask extends RecursiveTask<IndexRun> {
+        private static final long serialVersionUID = 1L;
+        private final IndexRun[] runs;
+        private final int from;
+        private final int to;
+
+        MergeTask(IndexRun[] runs, int from, int to) {
+            this.runs = runs;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IndexRun compute() {
+            if (to - from == 1) {
+                return runs[from];
+            }
+            int middle = (from + to) >>> 1;
+            MergeTask left = new MergeTask(runs, from, middle);
+            left.fork();
+            IndexRun right = new MergeTask(runs, middle, to).compute();
+            return IndexRun.merge(left.join(), right);
+        }
+    }
+}
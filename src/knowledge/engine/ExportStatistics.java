@@ -0,0 +1,81 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The ExportStatistics class is the throughput report of an export of the
+ * KnowledgeGraph to an N-Triple file.
+ */
+public class ExportStatistics {
+    private long tripleCount;
+    private long byteCount;
+    private long fileSize;
+    private long elapsedNanos;
+    private String order;
+
+    ExportStatistics(long tripleCount, long byteCount, long fileSize, long elapsedNanos, String order) {
+        this.tripleCount = tripleCount;
+        this.byteCount = byteCount;
+        this.fileSize = fileSize;
+        this.elapsedNanos = elapsedNanos;
+        this.order = order;
+    }
+
+    /**
+     * @return the number of Triples written.
+     */
+    public long getTripleCount() {
+        return tripleCount;
+    }
+
+    /**
+     * @return the number of N-Triple bytes written, before compression.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the size of the written file, after compression.
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return the wall clock duration of the export in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the sort order of the written Triples, e.g. "spo".
+     */
+    public String getOrder() {
+        return order;
+    }
+
+    /**
+     * @return Triples written per second.
+     */
+    public double getTriplesPerSecond() {
+        return tripleCount / seconds();
+    }
+
+    /**
+     * @return N-Triple bytes written per second, before compression.
+     */
+    public double getBytesPerSecond() {
+        return byteCount / seconds();
+    }
+
+    private double seconds() {
+        return Math.max(elapsedNanos, 1) / 1e9;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Exported %d triples in %s order as %d bytes (%d bytes on disk) in %.1f ms:"
+                + " %.0f triples/sec, %.1f MB/sec", tripleCount, order, byteCount, fileSize, elapsedNanos / 1e6,
+                getTriplesPerSecond(), getBytesPerSecond() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,138 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.ExportException;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Exporter class is responsible for writing the Triples of the
+ * KnowledgeGraph to output files using N-Triple format, one "subject predicate
+ * object." line per Triple as read by the Importer. Triples are streamed
+ * straight from a permutation index of the current snapshot in its sort order,
+ * so the export needs no more memory than its write buffers however large the
+ * graph, and runs while writers and readers carry on. A file name ending in
+ * ".gz" is written gzip compressed; the Importer reads it back as it is.
+ * The exportTripleFile method throws an ExportException on error writing the
+ * output file.
+ */
+public class Exporter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private KnowledgeGraph knowledgeGraph;
+
+    public Exporter() {
+        knowledgeGraph = KnowledgeGraph.getInstance();
+    }
+
+    /**
+     * Create an Exporter writing the given KnowledgeGraph, such as a partition
+     * (see KnowledgeGraph.getPartition).
+     * 
+     * @param knowledgeGraph
+     */
+    public Exporter(KnowledgeGraph knowledgeGraph) {
+        this.knowledgeGraph = knowledgeGraph;
+    }
+
+    /**
+     * Public method for exporting every Triple of the KnowledgeGraph sorted by
+     * subject, predicate and object. See exportTripleFile(String, String).
+     * 
+     * @param fileName
+     * @return the throughput report of the export.
+     * @throws ExportException
+     */
+    public ExportStatistics exportTripleFile(String fileName) throws ExportException {
+        return exportTripleFile(fileName, "spo");
+    }
+
+    /**
+     * Public method for exporting every Triple of the KnowledgeGraph to an
+     * N-Triple file in the given sort order: "spo", "pos" or "osp". Throws
+     * ExportException on an unknown order or on error writing the file.
+     * 
+     * @param fileName
+     * @param order
+     * @return the throughput report of the export.
+     * @throws ExportException
+     */
+    public ExportStatistics exportTripleFile(String fileName, String order) throws ExportException {
+        Permutation permutation;
+        try {
+            permutation = Permutation.valueOf(order.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new ExportException("Unknown sort order: " + order);
+        }
+        long start = System.nanoTime();
+        GraphSnapshot current = knowledgeGraph.getSnapshot();
+        Path path = Paths.get(fileName);
+        boolean compressed = fileName.endsWith(".gz");
+        try {
+            long tripleCount;
+            long byteCount;
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE);
+                    OutputStream output = compressed ? new GZIPOutputStream(file, BUFFER_SIZE) : file) {
+                Writer writer = new Writer(current, output);
+                IndexScan scan = current.getIndex(permutation).scan(0, 0, 0, 0);
+                while (scan.next()) {
+                    writer.write(scan.subject(), scan.predicate(), scan.object());
+                }
+                tripleCount = writer.tripleCount;
+                byteCount = writer.byteCount;
+            }
+            return new ExportStatistics(tripleCount, byteCount, Files.size(path), System.nanoTime() - start,
+                    order.toLowerCase());
+        } catch (IOException ex) {
+            throw new ExportException("Could not write Triple file: " + ex);
+        }
+    }
+
+    /**
+     * Writes Triple lines, remembering the encoded term of each position so
+     * that the terms repeated by consecutive Triples of a sort order are only
+     * decoded once.
+     */
+    private static class Writer {
+        private final TermDictionary nodeDictionary;
+        private final TermDictionary predicateDictionary;
+        private final OutputStream output;
+        private final int[] ids = { -1, -1, -1 };
+        private final byte[][] terms = new byte[3][];
+        private long tripleCount;
+        private long byteCount;
+
+        Writer(GraphSnapshot snapshot, OutputStream output) {
+            nodeDictionary = snapshot.getNodeDictionary();
+            predicateDictionary = snapshot.getPredicateDictionary();
+            this.output = output;
+        }
+
+        void write(int subject, int predicate, int object) throws IOException {
+            put(0, subject, nodeDictionary);
+            output.write(' ');
+            put(1, predicate, predicateDictionary);
+            output.write(' ');
+            put(2, object, nodeDictionary);
+            output.write('.');
+            output.write('\n');
+            byteCount += 4;
+            tripleCount++;
+        }
+
+        private void put(int position, int id, TermDictionary dictionary) throws IOException {
+            if (ids[position] != id) {
+                ids[position] = id;
+                terms[position] = dictionary.decode(id).getBytes(StandardCharsets.UTF_8);
+            }
+            output.write(terms[position]);
+            byteCount += terms[position].length;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The GraphSnapshot class is an immutable, consistent view of the Triples of a
+ * KnowledgeGraph: one PermutationIndex per Permutation, all reflecting the same
+ * set of writes. The KnowledgeGraph publishes a new GraphSnapshot after every
+ * write, so a reader that holds on to a snapshot sees a stable graph without
+ * taking any lock, no matter how many writes happen meanwhile.
+ * 
+ * The snapshot also refers to the term dictionaries its ids were encoded by.
+ * Dictionaries only grow, so successors share them; loading a snapshot file
+ * publishes a snapshot with new dictionaries, which readers pick up together
+ * with the matching indexes.
+ */
+final class GraphSnapshot {
+    private final PermutationIndex spoIndex;
+    private final PermutationIndex posIndex;
+    private final PermutationIndex ospIndex;
+    private final TermDictionary nodeDictionary;
+    private final TermDictionary predicateDictionary;
+
+    /**
+     * Number of writes published before this snapshot.
+     */
+    private final long version;
+
+    GraphSnapshot() {
+        this(new PermutationIndex(Permutation.SPO), new PermutationIndex(Permutation.POS),
+                new PermutationIndex(Permutation.OSP), new TermDictionary(), new TermDictionary(), 0);
+    }
+
+    GraphSnapshot(PermutationIndex spoIndex, PermutationIndex posIndex, PermutationIndex ospIndex,
+            TermDictionary nodeDictionary, TermDictionary predicateDictionary, long version) {
+        this.spoIndex = spoIndex;
+        this.posIndex = posIndex;
+        this.ospIndex = ospIndex;
+        this.nodeDictionary = nodeDictionary;
+        this.predicateDictionary = predicateDictionary;
+        this.version = version;
+    }
+
+    /**
+     * @return the dictionary of Node ids used by the snapshot.
+     */
+    TermDictionary getNodeDictionary() {
+        return nodeDictionary;
+    }
+
+    /**
+     * @return the dictionary of Predicate ids used by the snapshot.
+     */
+    TermDictionary getPredicateDictionary() {
+        return predicateDictionary;
+    }
+
+    /**
+     * @return the number of writes published before this snapshot.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of Triples in the snapshot.
+     */
+    int size() {
+        return spoIndex.size();
+    }
+
+    /**
+     * @param permutation
+     * @return the index keeping the Triples sorted in the given ordering.
+     */
+    PermutationIndex getIndex(Permutation permutation) {
+        switch (permutation) {
+        case SPO:
+            return spoIndex;
+        case POS:
+            return posIndex;
+        default:
+            return ospIndex;
+        }
+    }
+
+    /**
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return true if the snapshot holds the given Triple.
+     */
+    boolean contains(int subject, int predicate, int object) {
+        return spoIndex.contains(subject, predicate, object);
+    }
+
+    /**
+     * Return the successor snapshot that also holds the given Triple, which must
+     * not be present yet.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    GraphSnapshot insert(int subject, int predicate, int object) {
+        return new GraphSnapshot(spoIndex.insert(subject, predicate, object),
+                posIndex.insert(subject, predicate, object), ospIndex.insert(subject, predicate, object), nodeDictionary,
+                predicateDictionary, version + 1);
+    }
+
+    /**
+     * Return the successor snapshot without the given Triple, which must be
+     * present.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    GraphSnapshot remove(int subject, int predicate, int object) {
+        return new GraphSnapshot(spoIndex.remove(subject, predicate, object),
+                posIndex.remove(subject, predicate, object), ospIndex.remove(subject, predicate, object), nodeDictionary,
+                predicateDictionary, version + 1);
+    }
+
+    /**
+     * @param version
+     * @return a snapshot with the same contents and the given version.
+     */
+    GraphSnapshot withVersion(long version) {
+        return new GraphSnapshot(spoIndex, posIndex, ospIndex, nodeDictionary, predicateDictionary, version);
+    }
+
+    /**
+     * @param arena arena for large runs, or null to build runs on the heap
+     * @return a snapshot with the same contents whose indexes allocate their
+     *         later large runs from the given arena.
+     */
+    GraphSnapshot withArena(OffHeapArena arena) {
+        return new GraphSnapshot(spoIndex.withArena(arena), posIndex.withArena(arena), ospIndex.withArena(arena),
+                nodeDictionary, predicateDictionary, version);
+    }
+
+    /**
+     * @return a snapshot with the same contents whose indexes each hold a
+     *         single run, allocated where their arena puts large runs.
+     */
+    GraphSnapshot compact() {
+        return new GraphSnapshot(spoIndex.compact(), posIndex.compact(), ospIndex.compact(), nodeDictionary,
+                predicateDictionary, version);
+    }
+
+    /**
+     * Open a scan over the Triples matching the given ids, where -1 marks an
+     * unbound position. The scan uses the permutation index whose ordering has
+     * the bound positions as key prefix.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    IndexScan scan(int subject, int predicate, int object) {
+        Permutation permutation = Permutation.forPattern(subject, predicate, object);
+        return getIndex(permutation).scan(permutation.first(subject, predicate, object),
+                permutation.second(subject, predicate, object), permutation.third(subject, predicate, object),
+                Permutation.boundCount(subject, predicate, object));
+    }
+
+    /**
+     * Open a scan like scan(subject, predicate, object) that starts just after
+     * the given key of the permutation index used for the pattern.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param afterHigh packed first and second column of the last key seen
+     * @param afterLow  third column of the last key seen
+     * @return
+     */
+    IndexScan scanAfter(int subject, int predicate, int object, long afterHigh, int afterLow) {
+        Permutation permutation = Permutation.forPattern(subject, predicate, object);
+        return getIndex(permutation).scanAfter(permutation.first(subject, predicate, object),
+                permutation.second(subject, predicate, object), permutation.third(subject, predicate, object),
+                Permutation.boundCount(subject, predicate, object), afterHigh, afterLow);
+    }
+}
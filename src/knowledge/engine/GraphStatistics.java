@@ -0,0 +1,130 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+
+/**
+ * The GraphStatistics class keeps per-predicate cardinalities of the
+ * KnowledgeGraph for the query planner: the number of Triples with each
+ * predicate and the number of distinct Subjects and Objects they connect. The
+ * average out-degree of a predicate is its Triple count over its Subject
+ * count, and its average in-degree its Triple count over its Object count.
+ * 
+ * The KnowledgeGraph updates the statistics under its write lock as Triples
+ * are added and removed, at the cost of two range counts per write; bulk
+ * imports and snapshot loads instead mark them stale, and they are recomputed
+ * from the next snapshot they are requested for. Readers do not lock, so a
+ * value read during a write may be off by one, which is harmless for
+ * estimates.
+ */
+final class GraphStatistics {
+    private volatile int[] tripleCounts = new int[16];
+    private volatile int[] subjectCounts = new int[16];
+    private volatile int[] objectCounts = new int[16];
+
+    /**
+     * Count the Triples of the given snapshot.
+     * 
+     * @param snapshot
+     * @return
+     */
+    static GraphStatistics of(GraphSnapshot snapshot) {
+        GraphStatistics statistics = new GraphStatistics();
+        statistics.grow(snapshot.getPredicateDictionary().size());
+        IndexScan scan = snapshot.getIndex(Permutation.SPO).scan(0, 0, 0, 0);
+        long previous = -1;
+        while (scan.next()) {
+            int predicate = scan.predicate();
+            statistics.tripleCounts[predicate]++;
+            if (scan.high() != previous) {
+                statistics.subjectCounts[predicate]++;
+                previous = scan.high();
+            }
+        }
+        scan = snapshot.getIndex(Permutation.POS).scan(0, 0, 0, 0);
+        previous = -1;
+        while (scan.next()) {
+            if (scan.high() != previous) {
+                statistics.objectCounts[scan.predicate()]++;
+                previous = scan.high();
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Record a Triple about to be added to the given snapshot, which must not
+     * hold it.
+     * 
+     * @param before
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void added(GraphSnapshot before, int subject, int predicate, int object) {
+        grow(predicate + 1);
+        tripleCounts[predicate]++;
+        if (before.scan(subject, predicate, -1).remaining() == 0) {
+            subjectCounts[predicate]++;
+        }
+        if (before.scan(-1, predicate, object).remaining() == 0) {
+            objectCounts[predicate]++;
+        }
+    }
+
+    /**
+     * Record a Triple removed from the given snapshot.
+     * 
+     * @param after snapshot without the Triple
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void removed(GraphSnapshot after, int subject, int predicate, int object) {
+        grow(predicate + 1);
+        tripleCounts[predicate]--;
+        if (after.scan(subject, predicate, -1).remaining() == 0) {
+            subjectCounts[predicate]--;
+        }
+        if (after.scan(-1, predicate, object).remaining() == 0) {
+            objectCounts[predicate]--;
+        }
+    }
+
+    /**
+     * @param predicate
+     * @return the number of Triples with the given predicate.
+     */
+    int getTripleCount(int predicate) {
+        int[] counts = tripleCounts;
+        return predicate < counts.length ? counts[predicate] : 0;
+    }
+
+    /**
+     * @param predicate
+     * @return the number of distinct Subjects of the Triples with the given
+     *         predicate.
+     */
+    int getSubjectCount(int predicate) {
+        int[] counts = subjectCounts;
+        return predicate < counts.length ? counts[predicate] : 0;
+    }
+
+    /**
+     * @param predicate
+     * @return the number of distinct Objects of the Triples with the given
+     *         predicate.
+     */
+    int getObjectCount(int predicate) {
+        int[] counts = objectCounts;
+        return predicate < counts.length ? counts[predicate] : 0;
+    }
+
+    private void grow(int predicates) {
+        if (predicates > tripleCounts.length) {
+            int length = Math.max(predicates, 2 * tripleCounts.length);
+            tripleCounts = Arrays.copyOf(tripleCounts, length);
+            subjectCounts = Arrays.copyOf(subjectCounts, length);
+            objectCounts = Arrays.copyOf(objectCounts, length);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The ImportStatistics class is the throughput report of a bulk import into
+ * the KnowledgeGraph.
+ */
+public class ImportStatistics {
+    private long tripleCount;
+    private long addedCount;
+    private long byteCount;
+    private long elapsedNanos;
+    private int chunkCount;
+    private int parallelism;
+
+    ImportStatistics(long tripleCount, long addedCount, long byteCount, long elapsedNanos, int chunkCount,
+            int parallelism) {
+        this.tripleCount = tripleCount;
+        this.addedCount = addedCount;
+        this.byteCount = byteCount;
+        this.elapsedNanos = elapsedNanos;
+        this.chunkCount = chunkCount;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the number of Triples read from the input, including duplicates.
+     */
+    public long getTripleCount() {
+        return tripleCount;
+    }
+
+    /**
+     * @return the number of Triples that were not yet in the KnowledgeGraph.
+     */
+    public long getAddedCount() {
+        return addedCount;
+    }
+
+    /**
+     * @return the size of the input in bytes.
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the wall clock duration of the import in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the number of chunks the input was split into.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * @return the number of worker threads used.
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return Triples read per second.
+     */
+    public double getTriplesPerSecond() {
+        return tripleCount / seconds();
+    }
+
+    /**
+     * @return input bytes read per second.
+     */
+    public double getBytesPerSecond() {
+        return byteCount / seconds();
+    }
+
+    private double seconds() {
+        return Math.max(elapsedNanos, 1) / 1e9;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Imported %d triples (%d new) from %d bytes in %.1f ms using %d threads and %d chunks:"
+                + " %.0f triples/sec, %.1f MB/sec", tripleCount, addedCount, byteCount, elapsedNanos / 1e6,
+                parallelism, chunkCount, getTriplesPerSecond(), getBytesPerSecond() / (1024 * 1024));
+    }
+}
@@ -2,23 +2,28 @@ package housemate.src.knowledge.engine;
 
 import housemate.src.knowledge.engine.exception.ImportException;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The Importer class is responsible for reading triples from input files using
- * N-Triple format. The Importer class creates a Triple instance for each line
- * read from the input file and passes the resulting Triples to the
- * KnowledgeGraph.importTriples() method. Also, only fully qualified Triples
- * (i.e. subject, predicate, object all have identifiers) should be added to the
- * Knowledge Graph. Trim extra leading and trailing whitespace from identifier
- * names. The importTripleFile method throws an ImportException on error
- * processing the input file.
+ * N-Triple format. The Importer maps the input file into memory and tokenizes
+ * each line straight into the KnowledgeGraph term dictionaries (see
+ * NTriplesParser), adding one Triple per line. Also, only fully qualified
+ * Triples (i.e. subject, predicate, object all have identifiers) should be
+ * added to the Knowledge Graph. Trim extra leading and trailing whitespace from
+ * identifier names. The importTripleFile method throws an ImportException on
+ * error processing the input file, including the position of a malformed line.
+ * Gzip compressed files, such as those written by the Exporter, are recognized
+ * by their header and decompressed while they are parsed, without a temporary
+ * file.
  */
 
 public class Importer {
@@ -28,6 +33,16 @@ public class Importer {
         knowledgeGraph = KnowledgeGraph.getInstance();
     }
 
+    /**
+     * Create an Importer adding to the given KnowledgeGraph, such as a
+     * partition (see KnowledgeGraph.getPartition).
+     * 
+     * @param knowledgeGraph
+     */
+    public Importer(KnowledgeGraph knowledgeGraph) {
+        this.knowledgeGraph = knowledgeGraph;
+    }
+
     /**
      * Public method for importing triples from N_Triple formatted file into the
      * KnowledgeGraph. Checks for valid input file name. Throws ImportException on
@@ -37,18 +52,64 @@ public class Importer {
      * @throws ImportException
      */
     public void importTripleFile(String fileName) throws ImportException {
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(new File(fileName)));
-            String line = null;
-            while ((line = reader.readLine()) != null) {
-                if (line.length() != 0) {
-                    line = line.toLowerCase();
-                    String[] triples = line.split("[\\s* .\\s*]");
-                    knowledgeGraph.importTriple(triples[0], triples[1], triples[2]);
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            final KnowledgeGraph graph = knowledgeGraph;
+            TripleSink sink = new TripleSink() {
+                public void addTriple(int subject, int predicate, int object) {
+                    graph.importTriple(subject, predicate, object);
                 }
+            };
+            NTriplesParser parser = new NTriplesParser(graph.getNodeDictionary(), graph.getPredicateDictionary(),
+                    sink);
+            if (isCompressed(channel)) {
+                parser.parse(decompress(channel));
+            } else {
+                parser.parse(channel);
             }
-            reader.close();
-        } catch (FileNotFoundException ex) {
+        } catch (ImportException ex) {
+            throw ex;
+        } catch (NoSuchFileException ex) {
+            throw new ImportException("Could not find file: " + ex);
+        } catch (IOException ex) {
+            throw new ImportException("Could not  read/write: " + ex);
+        } catch (Exception ex) {
+            throw new ImportException("Could not import Triple file: " + ex);
+        }
+    }
+
+    /**
+     * Public method for importing triples from N_Triple formatted file into the
+     * KnowledgeGraph using one worker thread per available processor. See
+     * bulkImportTripleFile(String, int).
+     * 
+     * @param fileName
+     * @return the throughput report of the import.
+     * @throws ImportException
+     */
+    public ImportStatistics bulkImportTripleFile(String fileName) throws ImportException {
+        return bulkImportTripleFile(fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Public method for importing a large N_Triple formatted file into the
+     * KnowledgeGraph in parallel. The file is split on line boundaries, the
+     * chunks are parsed and sorted concurrently and the results are merged into
+     * the KnowledgeGraph at the end (see BulkLoader). Throws ImportException on
+     * error accessing or processing the input Triple File, in which case the
+     * KnowledgeGraph is left unchanged apart from newly encoded terms.
+     * 
+     * @param fileName
+     * @param parallelism number of worker threads
+     * @return the throughput report of the import.
+     * @throws ImportException
+     */
+    public ImportStatistics bulkImportTripleFile(String fileName, int parallelism) throws ImportException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            BulkLoader loader = new BulkLoader(knowledgeGraph, Math.max(parallelism, 1));
+            return isCompressed(channel) ? loader.load(decompress(channel)) : loader.load(channel);
+        } catch (ImportException ex) {
+            throw ex;
+        } catch (NoSuchFileException ex) {
             throw new ImportException("Could not find file: " + ex);
         } catch (IOException ex) {
             throw new ImportException("Could not  read/write: " + ex);
@@ -57,4 +118,16 @@ public class Importer {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * @return true if the file starts with the gzip magic number.
+     */
+    private static boolean isCompressed(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(2);
+        return channel.read(magic, 0) == 2 && (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B;
+    }
+
+    private static InputStream decompress(FileChannel channel) throws IOException {
+        return new GZIPInputStream(Channels.newInputStream(channel.position(0)), 1 << 16);
+    }
+
+}
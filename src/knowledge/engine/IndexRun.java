@@ -0,0 +1,293 @@
+package housemate.src.knowledge.engine;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * The IndexRun class is an immutable, sorted run of triple keys belonging to a
+ * PermutationIndex. A key is the (first, second, third) id combination of a
+ * Triple in the index ordering, packed as a long holding first and second and
+ * an int holding third, so a key costs twelve bytes. Runs built in memory are
+ * ArrayRuns; runs of a loaded snapshot file are BufferRuns reading the mapped
+ * file directly, and large runs of an index kept off heap are BufferRuns
+ * reading buffers of an OffHeapArena.
+ */
+abstract class IndexRun {
+
+    /**
+     * Create a run holding a single key.
+     * 
+     * @param high
+     * @param low
+     * @return
+     */
+    static IndexRun of(long high, int low) {
+        return new ArrayRun(new long[] { high }, new int[] { low });
+    }
+
+    /**
+     * Merge two runs into a new sorted run. Keys present in both runs are kept
+     * once.
+     * 
+     * @param left
+     * @param right
+     * @return
+     */
+    static IndexRun merge(IndexRun left, IndexRun right) {
+        return merge(left, right, true);
+    }
+
+    /**
+     * Merge two runs into a new sorted run.
+     * 
+     * @param left
+     * @param right
+     * @param distinct true to keep keys present in both runs once, false to keep
+     *                 every occurrence
+     * @return
+     */
+    static IndexRun merge(IndexRun left, IndexRun right, boolean distinct) {
+        return merge(left, right, distinct, null);
+    }
+
+    /**
+     * Merge two runs into a new sorted run, allocated from the given arena if
+     * it accepts a run of that size.
+     * 
+     * @param left
+     * @param right
+     * @param distinct true to keep keys present in both runs once, false to keep
+     *                 every occurrence
+     * @param arena    arena for large runs, or null to build on the heap
+     * @return
+     */
+    static IndexRun merge(IndexRun left, IndexRun right, boolean distinct, OffHeapArena arena) {
+        Builder merged = new Builder(left.size() + right.size(), arena);
+        int i = 0;
+        int j = 0;
+        while (i < left.size() || j < right.size()) {
+            int order = i == left.size() ? 1
+                    : j == right.size() ? -1 : compare(left.high(i), left.low(i), right.high(j), right.low(j));
+            if (order <= 0) {
+                merged.add(left.high(i), left.low(i++));
+                if (order == 0 && distinct) {
+                    j++;
+                }
+            } else {
+                merged.add(right.high(j), right.low(j++));
+            }
+        }
+        return merged.build();
+    }
+
+    /**
+     * @param run
+     * @param arena arena for large runs, or null to copy onto the heap
+     * @return a copy of the given run, allocated from the arena if it accepts a
+     *         run of that size.
+     */
+    static IndexRun copyOf(IndexRun run, OffHeapArena arena) {
+        Builder copy = new Builder(run.size(), arena);
+        for (int i = 0; i < run.size(); i++) {
+            copy.add(run.high(i), run.low(i));
+        }
+        return copy.build();
+    }
+
+    /**
+     * Sort the first size keys of the given arrays in place and return them as a
+     * run with duplicate keys removed. Used to build runs in bulk instead of
+     * inserting keys one at a time.
+     * 
+     * @param highs
+     * @param lows
+     * @param size
+     * @return
+     */
+    static IndexRun sort(long[] highs, int[] lows, int size) {
+        sort(highs, lows, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || highs[i] != highs[unique - 1] || lows[i] != lows[unique - 1]) {
+                highs[unique] = highs[i];
+                lows[unique++] = lows[i];
+            }
+        }
+        return new ArrayRun(Arrays.copyOf(highs, unique), Arrays.copyOf(lows, unique));
+    }
+
+    static long high(int first, int second) {
+        return ((long) first << 32) | (second & 0xFFFFFFFFL);
+    }
+
+    static int first(long high) {
+        return (int) (high >>> 32);
+    }
+
+    static int second(long high) {
+        return (int) high;
+    }
+
+    static int compare(long leftHigh, int leftLow, long rightHigh, int rightLow) {
+        if (leftHigh != rightHigh) {
+            return leftHigh < rightHigh ? -1 : 1;
+        }
+        return Integer.compare(leftLow, rightLow);
+    }
+
+    /**
+     * @return the number of keys in the run.
+     */
+    abstract int size();
+
+    /**
+     * @param index
+     * @return the packed first and second key columns at the given position.
+     */
+    abstract long high(int index);
+
+    /**
+     * @param index
+     * @return the third key column at the given position.
+     */
+    abstract int low(int index);
+
+    /**
+     * Quicksort of keys [from, to) on the parallel arrays, finishing small
+     * ranges with an insertion sort.
+     */
+    private static void sort(long[] highs, int[] lows, int from, int to) {
+        while (to - from > 16) {
+            int middle = (from + to) >>> 1;
+            medianToMiddle(highs, lows, from, middle, to - 1);
+            long pivotHigh = highs[middle];
+            int pivotLow = lows[middle];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(highs[i], lows[i], pivotHigh, pivotLow) < 0) {
+                    i++;
+                }
+                while (compare(highs[j], lows[j], pivotHigh, pivotLow) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(highs, lows, i++, j--);
+                }
+            }
+            if (j + 1 - from < to - i) {
+                sort(highs, lows, from, j + 1);
+                from = i;
+            } else {
+                sort(highs, lows, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(highs[j - 1], lows[j - 1], highs[j], lows[j]) > 0; j--) {
+                swap(highs, lows, j - 1, j);
+            }
+        }
+    }
+
+    private static void medianToMiddle(long[] highs, int[] lows, int first, int middle, int last) {
+        if (compare(highs[middle], lows[middle], highs[first], lows[first]) < 0) {
+            swap(highs, lows, middle, first);
+        }
+        if (compare(highs[last], lows[last], highs[middle], lows[middle]) < 0) {
+            swap(highs, lows, last, middle);
+            if (compare(highs[middle], lows[middle], highs[first], lows[first]) < 0) {
+                swap(highs, lows, middle, first);
+            }
+        }
+    }
+
+    private static void swap(long[] highs, int[] lows, int i, int j) {
+        long high = highs[i];
+        highs[i] = highs[j];
+        highs[j] = high;
+        int low = lows[i];
+        lows[i] = lows[j];
+        lows[j] = low;
+    }
+
+    /**
+     * Return the position of the first key greater than or equal to the given
+     * key, or size() if there is none.
+     * 
+     * @param high
+     * @param low
+     * @return
+     */
+    int lowerBound(long high, int low) {
+        int from = 0;
+        int to = size();
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compare(high(middle), low(middle), high, low) < 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Collects sorted keys into a new run, held in heap arrays or, for runs the
+     * arena accepts, in buffers of an OffHeapArena.
+     */
+    static final class Builder {
+        private final long[] highs;
+        private final int[] lows;
+        private final LongBuffer highBuffer;
+        private final IntBuffer lowBuffer;
+        private int size;
+
+        /**
+         * @param capacity maximum number of keys
+         * @param arena    arena for large runs, or null to build on the heap
+         */
+        Builder(int capacity, OffHeapArena arena) {
+            if (arena != null && arena.accepts(capacity)) {
+                highs = null;
+                lows = null;
+                highBuffer = arena.allocateLongs(capacity);
+                lowBuffer = arena.allocateInts(capacity);
+            } else {
+                highs = new long[capacity];
+                lows = new int[capacity];
+                highBuffer = null;
+                lowBuffer = null;
+            }
+        }
+
+        /**
+         * Append a key, which must not sort before the keys added so far.
+         * 
+         * @param high
+         * @param low
+         */
+        void add(long high, int low) {
+            if (highs != null) {
+                highs[size] = high;
+                lows[size++] = low;
+            } else {
+                highBuffer.put(size, high);
+                lowBuffer.put(size++, low);
+            }
+        }
+
+        /**
+         * @return a run holding the keys added so far.
+         */
+        IndexRun build() {
+            if (highs == null) {
+                return new BufferRun(highBuffer.limit(size), lowBuffer.limit(size));
+            }
+            return size == highs.length ? new ArrayRun(highs, lows)
+                    : new ArrayRun(Arrays.copyOf(highs, size), Arrays.copyOf(lows, size));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The IndexScan class walks a key range of a PermutationIndex in index order,
+ * merging the matching slice of each IndexRun. Call next() to advance and the
+ * accessors to read the ids of the current Triple.
+ * 
+ * The leading runs hold added keys and the trailing runs removed keys. A key is
+ * returned if it occurs more often among the added runs than among the removed
+ * ones.
+ */
+class IndexScan {
+    private final Permutation permutation;
+    private final IndexRun[] runs;
+    private final int[] positions;
+    private final int[] limits;
+
+    /**
+     * Number of leading runs holding added keys.
+     */
+    private final int added;
+
+    private long currentHigh;
+    private int currentLow;
+
+    IndexScan(Permutation permutation, IndexRun[] runs, int added, int[] positions, int[] limits) {
+        this.permutation = permutation;
+        this.runs = runs;
+        this.added = added;
+        this.positions = positions;
+        this.limits = limits;
+    }
+
+    /**
+     * Advance to the next Triple in index order.
+     * 
+     * @return false once the range is exhausted.
+     */
+    boolean next() {
+        while (true) {
+            int smallest = -1;
+            for (int i = 0; i < runs.length; i++) {
+                if (positions[i] < limits[i] && (smallest < 0 || IndexRun.compare(runs[i].high(positions[i]),
+                        runs[i].low(positions[i]), runs[smallest].high(positions[smallest]),
+                        runs[smallest].low(positions[smallest])) < 0)) {
+                    smallest = i;
+                }
+            }
+            if (smallest < 0) {
+                return false;
+            }
+            long high = runs[smallest].high(positions[smallest]);
+            int low = runs[smallest].low(positions[smallest]);
+            int count = 0;
+            for (int i = 0; i < runs.length; i++) {
+                while (positions[i] < limits[i] && runs[i].high(positions[i]) == high
+                        && runs[i].low(positions[i]) == low) {
+                    positions[i]++;
+                    count += i < added ? 1 : -1;
+                }
+            }
+            if (count > 0) {
+                currentHigh = high;
+                currentLow = low;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Skip the given number of Triples. Ranges of an index consisting of a
+     * single run are skipped in constant time.
+     * 
+     * @param count
+     * @return the number of Triples skipped, less than count if the range is
+     *         exhausted.
+     */
+    long skip(long count) {
+        if (runs.length == 1) {
+            int skipped = (int) Math.min(count, limits[0] - positions[0]);
+            positions[0] += skipped;
+            if (skipped > 0) {
+                currentHigh = runs[0].high(positions[0] - 1);
+                currentLow = runs[0].low(positions[0] - 1);
+            }
+            return skipped;
+        }
+        long skipped = 0;
+        while (skipped < count && remaining() > 0) {
+            next();
+            skipped++;
+        }
+        return skipped;
+    }
+
+    /**
+     * Move the start of the range of the given run forward to the given
+     * position.
+     * 
+     * @param run
+     * @param position
+     */
+    void advance(int run, int position) {
+        positions[run] = Math.min(Math.max(positions[run], position), limits[run]);
+    }
+
+    /**
+     * @return the number of Triples remaining in the range, including the
+     *         current one if next() has not been called for it yet.
+     */
+    int remaining() {
+        int remaining = 0;
+        for (int i = 0; i < runs.length; i++) {
+            remaining += i < added ? limits[i] - positions[i] : positions[i] - limits[i];
+        }
+        return remaining;
+    }
+
+    int subject() {
+        return permutation.subject(first(), second(), third());
+    }
+
+    int predicate() {
+        return permutation.predicate(first(), second(), third());
+    }
+
+    int object() {
+        return permutation.object(first(), second(), third());
+    }
+
+    /**
+     * @return the packed first and second key columns of the current Triple.
+     */
+    long high() {
+        return currentHigh;
+    }
+
+    /**
+     * @return the third key column of the current Triple.
+     */
+    int low() {
+        return currentLow;
+    }
+
+    private int first() {
+        return IndexRun.first(currentHigh);
+    }
+
+    private int second() {
+        return IndexRun.second(currentHigh);
+    }
+
+    private int third() {
+        return currentLow;
+    }
+}
@@ -1,73 +1,606 @@
 package housemate.src.knowledge.engine;
 
-import java.util.HashMap;
-import java.util.Set;
-import java.util.Map;
-import java.util.List;
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+import housemate.src.knowledge.engine.exception.SnapshotException;
+import housemate.src.knowledge.engine.exception.WriteAheadLogException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.time.Clock;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class KnowledgeGraph {
-    private static KnowledgeGraph instance;
+    private static final String WILDCARD_TERM = "?";
+    private static final int WILDCARD = -1;
+    private static final int UNKNOWN = -2;
+
+    /**
+     * Holder of the single static instance, initialized on first use by the
+     * class loader so that concurrent first calls see the same instance.
+     */
+    private static class InstanceHolder {
+        private static final KnowledgeGraph INSTANCE = new KnowledgeGraph(null);
+    }
+
+    /**
+     * Named partitions, keyed by lower case name. Each is a KnowledgeGraph of
+     * its own, with its own snapshot, write lock, caches and indexes, so
+     * partitions neither block nor evict each other.
+     */
+    private static final Map<String, KnowledgeGraph> partitions = new ConcurrentHashMap<String, KnowledgeGraph>();
+
+    /**
+     * Partition name, or null for the default graph.
+     */
+    private final String name;
+
+    /**
+     * Private association for maintaining the active set of Triples. The current
+     * GraphSnapshot holds the SPO, POS and OSP permutation indexes, which answer
+     * every query pattern with a range scan, and the node and predicate
+     * dictionaries, which assign each (case insensitive) identifier the dense
+     * int id recorded by the indexes. Snapshots are immutable; writers serialize
+     * on writeLock and publish a successor, readers just read the field.
+     */
+    private volatile GraphSnapshot snapshot;
+
+    /**
+     * Lock serializing writers. Readers never take it.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Write-ahead log recording every write, or null if writes are not logged.
+     * Guarded by writeLock.
+     */
+    private WriteAheadLog log;
+
+    /**
+     * Identifiers of the predicates declared functional. Guarded by writeLock.
+     */
+    private final Set<String> functionalPredicates = new HashSet<String>();
+
+    /**
+     * Ids of the functional predicates in the current predicate dictionary.
+     * Guarded by writeLock.
+     */
+    private final Set<Integer> functionalIds = new HashSet<Integer>();
+
+    /**
+     * Current object id of each (Subject, functional Predicate) pair, keyed by
+     * IndexRun.high(subject, predicate), or MULTIPLE if the pair has several
+     * objects because they were imported before the declaration. Lets a write
+     * find the value it replaces in constant time. Guarded by writeLock.
+     */
+    private final Map<Long, Integer> functionalValues = new HashMap<Long, Integer>();
+
+    private static final int MULTIPLE = -1;
+
+    /**
+     * Cache of single pattern query results, or null if results are not
+     * cached. Replaced under writeLock.
+     */
+    private volatile QueryCache cache;
+
+    /**
+     * Per-predicate cardinalities of the current snapshot, or null while they
+     * are stale. Replaced and updated under writeLock.
+     */
+    private volatile GraphStatistics statistics = new GraphStatistics();
+
+    /**
+     * Time ordered record of the assertions and retractions of Triples, or
+     * null unless the temporal mode is enabled. Replaced and appended to under
+     * writeLock.
+     */
+    private volatile TemporalIndex history;
+
+    /**
+     * Engine materializing the Triples derived by rules, or null until
+     * getRuleEngine is first called.
+     */
+    private volatile RuleEngine rules;
+
+    /**
+     * Identifiers of the predicates declared hot. Guarded by writeLock.
+     */
+    private final Set<String> hotPredicates = new HashSet<String>();
+
+    /**
+     * Cached transitive closure of each hot predicate, keyed by its id in the
+     * current predicate dictionary. Replaced under writeLock.
+     */
+    private volatile Map<Integer, TransitiveClosure> closures = new HashMap<Integer, TransitiveClosure>();
+
+    /**
+     * Numeric Objects of the predicates queried by range, sorted by value.
+     * Replaced and updated under writeLock.
+     */
+    private volatile NumericIndex numbers;
 
     /**
-     * Private association for maintaining the active set of Nodes (i.e. Subjects
-     * and/or Objects). Map key is the node identifier and value is the associated
-     * Node. Node identifiers are case insensitive.
+     * Native memory holding the dictionaries and large index runs while the
+     * graph is kept off heap.
      */
-    private Map<String, Node> nodeMap;
+    private final OffHeapArena arena = new OffHeapArena();
 
     /**
-     * Private association for maintaining the active set of Predicates. Map key is
-     * the predicate identifier and value is the associated Predicate. Predicate
-     * identifiers are case insensitive.
+     * True while large index runs are allocated from the arena. Changed under
+     * writeLock.
      */
-    private Map<String, Predicate> predicateMap;
+    private volatile boolean offHeap;
 
     /**
-     * Private association for maintaining the active set of Triples. Map key is the
-     * Triple identifier and value is the associated Triple.
+     * Standing queries, keyed by the ids of their patterns. Guarded by
+     * writeLock.
      */
-    private Map<String, Triple> tripleMap;
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
 
     /**
-     * Private association for maintaining a fast query lookup map. Map key is the
-     * query string (e.g. “Bill ? ?”), and value is a Set of matching Triples.
+     * Changes of the current write not yet delivered to the Subscriptions, as
+     * Subject, Predicate, Object and 1 for an assertion or 0 for a retraction.
+     * Guarded by writeLock.
      */
-    private Map<String, Set<Triple>> queryMapSet;
+    private final List<int[]> undelivered = new ArrayList<int[]>();
 
-    private KnowledgeGraph() {
-        nodeMap = new HashMap<String, Node>();
-        predicateMap = new HashMap<String, Predicate>();
-        tripleMap = new HashMap<String, Triple>();
-        queryMapSet = new HashMap<String, Set<Triple>>();
+    private KnowledgeGraph(String name) {
+        this.name = name;
+        snapshot = new GraphSnapshot();
+        numbers = new NumericIndex(snapshot.getNodeDictionary());
     }
 
     /**
      * Public method for adding a Triple to the KnowledgeGraph. The following
-     * associations must be updated: nodeMap, tripleMap, queryMapSet, predicateMap
-     * to reflect the added Triple. There should be one Triple instance per unique
-     * Subject, Predicate, Object combination, so that Triples are not duplicated.
+     * associations must be updated: the node and predicate dictionaries and the
+     * snapshot to reflect the added Triple. There should be one index entry per
+     * unique Subject, Predicate, Object combination, so that Triples are not
+     * duplicated. Safe to call from any thread; concurrent readers keep seeing
+     * the previous snapshot until the write is published. If a write-ahead log
+     * is open the write is logged first and, under SyncPolicy.COMMIT, durable
+     * when the method returns.
      * 
      * @param subject
      * @param predicate
      * @param object
      */
     public void importTriple(String subject, String predicate, String object) {
-        Triple triple = getTriple(getNode(subject), getPredicate(predicate), getNode(object));
-        List<String> queryToIndex = enumerateQuery(subject, predicate, object);
-        for (String query : queryToIndex) {
-            if (!queryMapSet.containsKey(query)) {
-                queryMapSet.put(query, new HashSet<Triple>());
+        WriteAheadLog current;
+        long sequence;
+        synchronized (writeLock) {
+            TermDictionary nodeDictionary = snapshot.getNodeDictionary();
+            sequence = insert(nodeDictionary.encode(subject), snapshot.getPredicateDictionary().encode(predicate),
+                    nodeDictionary.encode(object));
+            sequence = Math.max(sequence, derive());
+            current = log;
+        }
+        commit(current, sequence);
+    }
+
+    /**
+     * Add a Triple given by dictionary ids that were encoded by this
+     * KnowledgeGraph. Duplicate Triples are ignored.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void importTriple(int subject, int predicate, int object) {
+        WriteAheadLog current;
+        long sequence;
+        synchronized (writeLock) {
+            sequence = Math.max(insert(subject, predicate, object), derive());
+            current = log;
+        }
+        commit(current, sequence);
+    }
+
+    /**
+     * Public method for removing a Triple from the KnowledgeGraph. The Triple is
+     * removed from every permutation index; the node and predicate dictionaries
+     * keep its identifiers. Safe to call from any thread, and logged like
+     * importTriple if a write-ahead log is open.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return true if the Triple was present.
+     */
+    public boolean removeTriple(String subject, String predicate, String object) {
+        WriteAheadLog current;
+        long sequence;
+        synchronized (writeLock) {
+            TermDictionary nodeDictionary = snapshot.getNodeDictionary();
+            int subjectId = nodeDictionary.lookup(subject);
+            int predicateId = snapshot.getPredicateDictionary().lookup(predicate);
+            int objectId = nodeDictionary.lookup(object);
+            if (subjectId < 0 || predicateId < 0 || objectId < 0
+                    || !snapshot.contains(subjectId, predicateId, objectId)) {
+                return false;
+            }
+            sequence = Math.max(delete(subjectId, predicateId, objectId), derive());
+            current = log;
+        }
+        commit(current, sequence);
+        return true;
+    }
+
+    /**
+     * Public method for declaring a predicate functional: a Subject has at most
+     * one object for it, so importing a Triple with the predicate replaces the
+     * Triple holding the previous object of its Subject, if any, in constant
+     * time. Triples imported before the declaration are left as they are until
+     * their Subject is next assigned a value. Bulk imports do not replace
+     * values.
+     * 
+     * @param predicate
+     */
+    public void setFunctional(String predicate) {
+        synchronized (writeLock) {
+            if (functionalPredicates.add(predicate)) {
+                refreshFunctionalValues();
+            }
+        }
+    }
+
+    /**
+     * Public method for declaring a predicate hot: the Nodes reachable from a
+     * Subject by a chain of its Triples, as queried by the property paths
+     * “predicate+” and “predicate*” (see executePathQuery), are cached and
+     * kept up to date by each write (see TransitiveClosure) instead of being
+     * searched for each query.
+     * 
+     * @param predicate
+     */
+    public void setHotPredicate(String predicate) {
+        synchronized (writeLock) {
+            if (hotPredicates.add(predicate)) {
+                refreshClosures();
+            }
+        }
+    }
+
+    /**
+     * @param predicate
+     * @return true if the predicate has been declared hot.
+     */
+    public boolean isHotPredicate(String predicate) {
+        synchronized (writeLock) {
+            return hotPredicates.contains(predicate);
+        }
+    }
+
+    /**
+     * @param predicate
+     * @return true if the predicate has been declared functional.
+     */
+    public boolean isFunctional(String predicate) {
+        synchronized (writeLock) {
+            return functionalPredicates.contains(predicate);
+        }
+    }
+
+    /**
+     * Add a Triple unless present, logging it first if a write-ahead log is
+     * open. For a functional predicate the previous value of the Subject is
+     * removed in the same published snapshot. The change is queued for the
+     * RuleEngine, if any, but not evaluated, and for the Subscriptions, but
+     * not delivered (see deliverChanges). The caller must hold writeLock.
+     * 
+     * @return the log sequence number of the write, or 0 if nothing was logged.
+     */
+    long insert(int subject, int predicate, int object) {
+        GraphSnapshot next = snapshot;
+        if (next.contains(subject, predicate, object)) {
+            return 0;
+        }
+        long sequence = 0;
+        int[] replaced = new int[0];
+        GraphSnapshot[] before = new GraphSnapshot[0];
+        boolean functional = functionalIds.contains(predicate);
+        if (functional) {
+            Integer previous = functionalValues.get(IndexRun.high(subject, predicate));
+            if (previous != null && previous == MULTIPLE) {
+                IndexScan scan = next.scan(subject, predicate, -1);
+                replaced = new int[scan.remaining()];
+                for (int i = 0; scan.next(); i++) {
+                    replaced[i] = scan.object();
+                }
+            } else if (previous != null && next.contains(subject, predicate, previous)) {
+                replaced = new int[] { previous };
+            }
+            before = new GraphSnapshot[replaced.length];
+            for (int i = 0; i < replaced.length; i++) {
+                int value = replaced[i];
+                before[i] = next;
+                next = next.remove(subject, predicate, value);
+                if (statistics != null) {
+                    statistics.removed(next, subject, predicate, value);
+                }
+                sequence = append(WriteAheadLog.REMOVE, next, subject, predicate, value);
+            }
+        }
+        if (statistics != null) {
+            statistics.added(next, subject, predicate, object);
+        }
+        next = next.insert(subject, predicate, object);
+        sequence = Math.max(sequence, append(WriteAheadLog.ADD, next, subject, predicate, object));
+        numbers.added(predicate, object);
+        snapshot = next;
+        TemporalIndex events = history;
+        if (events != null) {
+            for (int value : replaced) {
+                events.record(WriteAheadLog.REMOVE, subject, predicate, value);
+            }
+            events.record(WriteAheadLog.ADD, subject, predicate, object);
+        }
+        QueryCache results = cache;
+        if (results != null) {
+            for (int value : replaced) {
+                results.invalidate(next, subject, predicate, value);
+            }
+            results.invalidate(next, subject, predicate, object);
+        }
+        if (functional) {
+            functionalValues.put(IndexRun.high(subject, predicate), object);
+        }
+        for (int value : replaced) {
+            numbers.removed(next, predicate, value);
+        }
+        for (TransitiveClosure closure : closures.values()) {
+            if (closure.getPredicate() != predicate) {
+                closure.advance(next);
+                continue;
+            }
+            if (replaced.length > 0) {
+                closure.removed(next, subject);
+            }
+            closure.added(next, subject, object);
+        }
+        RuleEngine engine = rules;
+        if (engine != null) {
+            for (int i = 0; i < replaced.length; i++) {
+                engine.removed(before[i], subject, predicate, replaced[i]);
+            }
+            engine.added(subject, predicate, object);
+        }
+        for (int value : replaced) {
+            changed(subject, predicate, value, false);
+        }
+        changed(subject, predicate, object, true);
+        return sequence;
+    }
+
+    /**
+     * Remove a Triple that is present, logging it first if a write-ahead log is
+     * open. The change is queued for the RuleEngine, if any, but not
+     * evaluated, and for the Subscriptions, but not delivered. The caller must
+     * hold writeLock.
+     * 
+     * @return the log sequence number of the write, or 0 if nothing was logged.
+     */
+    long delete(int subject, int predicate, int object) {
+        GraphSnapshot before = snapshot;
+        GraphSnapshot next = before.remove(subject, predicate, object);
+        if (statistics != null) {
+            statistics.removed(next, subject, predicate, object);
+        }
+        long sequence = append(WriteAheadLog.REMOVE, next, subject, predicate, object);
+        snapshot = next;
+        numbers.removed(next, predicate, object);
+        TemporalIndex events = history;
+        if (events != null) {
+            events.record(WriteAheadLog.REMOVE, subject, predicate, object);
+        }
+        QueryCache results = cache;
+        if (results != null) {
+            results.invalidate(next, subject, predicate, object);
+        }
+        if (functionalIds.contains(predicate)) {
+            Long key = IndexRun.high(subject, predicate);
+            Integer previous = functionalValues.get(key);
+            if (previous != null && (previous == object || previous == MULTIPLE)) {
+                functionalValues.remove(key);
+                if (previous == MULTIPLE && next.scan(subject, predicate, -1).remaining() > 0) {
+                    functionalValues.put(key, MULTIPLE);
+                }
+            }
+        }
+        for (TransitiveClosure closure : closures.values()) {
+            if (closure.getPredicate() == predicate) {
+                closure.removed(next, subject);
+            } else {
+                closure.advance(next);
+            }
+        }
+        RuleEngine engine = rules;
+        if (engine != null) {
+            engine.removed(before, subject, predicate, object);
+        }
+        changed(subject, predicate, object, false);
+        return sequence;
+    }
+
+    /**
+     * Queue an added or removed Triple for the Subscriptions, which are called
+     * by deliverChanges once the write and its derived state are complete.
+     * The caller must hold writeLock.
+     */
+    private void changed(int subject, int predicate, int object, boolean assertion) {
+        if (!subscriptions.isEmpty()) {
+            undelivered.add(new int[] { subject, predicate, object, assertion ? 1 : 0 });
+        }
+    }
+
+    /**
+     * Deliver the queued changes to the Subscriptions whose pattern they
+     * match, in write order, once the closures and rule derivations of the
+     * writes are up to date. The caller must hold writeLock.
+     */
+    void deliverChanges() {
+        if (undelivered.isEmpty()) {
+            return;
+        }
+        List<int[]> changes = new ArrayList<int[]>(undelivered);
+        undelivered.clear();
+        GraphSnapshot current = snapshot;
+        for (int[] change : changes) {
+            deliver(current, change[0], change[1], change[2], change[3] == 1);
+        }
+    }
+
+    /**
+     * Deliver an added or removed Triple to the Subscriptions whose pattern it
+     * matches. The caller must hold writeLock.
+     * 
+     * @param successor snapshot reflecting the write
+     * @param assertion true if the Triple was added, false if it was removed
+     */
+    private void deliver(GraphSnapshot successor, int subject, int predicate, int object, boolean assertion) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        List<Subscription> matches = subscriptions.match(subject, predicate, object);
+        if (matches.isEmpty()) {
+            return;
+        }
+        Triple triple = toTriple(successor, subject, predicate, object);
+        for (Subscription subscription : matches) {
+            subscription.deliver(triple, assertion);
+        }
+    }
+
+    /**
+     * Record the Triples of bulk loaded runs that were not present before the
+     * load in the history, if the temporal mode is enabled, and deliver them
+     * to the Subscriptions whose pattern they match. Each Triple is recorded
+     * and delivered once, even if it occurs in several runs. The caller must
+     * hold writeLock.
+     * 
+     * @param before    snapshot preceding the load
+     * @param successor the published snapshot
+     * @param runs      SPO runs of the loaded Triples
+     */
+    void bulkAdded(GraphSnapshot before, GraphSnapshot successor, List<IndexRun> runs) {
+        TemporalIndex events = history;
+        if (subscriptions.isEmpty() && events == null) {
+            return;
+        }
+        Set<TripleKey> added = new HashSet<TripleKey>();
+        for (IndexRun run : runs) {
+            for (int i = 0; i < run.size(); i++) {
+                int subject = IndexRun.first(run.high(i));
+                int predicate = IndexRun.second(run.high(i));
+                int object = run.low(i);
+                if (before.contains(subject, predicate, object)
+                        || !added.add(new TripleKey(subject, predicate, object))) {
+                    continue;
+                }
+                if (events != null) {
+                    events.record(WriteAheadLog.ADD, subject, predicate, object);
+                }
+                if (!subscriptions.match(subject, predicate, object).isEmpty()) {
+                    deliver(successor, subject, predicate, object, true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluate the changes queued for the RuleEngine, if any, unless it is
+     * asynchronous, and deliver the changes queued for the Subscriptions. The
+     * caller must hold writeLock.
+     * 
+     * @return the log sequence number of the last derived write, or 0 if
+     *         nothing was logged.
+     */
+    private long derive() {
+        RuleEngine engine = rules;
+        long sequence = engine == null ? 0 : engine.drain();
+        deliverChanges();
+        return sequence;
+    }
+
+    /**
+     * Append a record for a write to the write-ahead log, if one is open.
+     * 
+     * @param operation
+     * @param successor snapshot reflecting the write
+     * @return the log sequence number of the record, or 0 if nothing was
+     *         logged.
+     */
+    private long append(byte operation, GraphSnapshot successor, int subject, int predicate, int object) {
+        if (log == null) {
+            return 0;
+        }
+        TermDictionary nodeDictionary = successor.getNodeDictionary();
+        try {
+            return log.append(operation, successor.getVersion(), nodeDictionary.decode(subject),
+                    successor.getPredicateDictionary().decode(predicate), nodeDictionary.decode(object));
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not write to the write-ahead log", ex);
+        }
+    }
+
+    /**
+     * Rebuild the current values of the functional predicates from the
+     * snapshot, after their ids may have changed or values were added in bulk.
+     * The caller must hold writeLock.
+     */
+    void refreshFunctionalValues() {
+        functionalIds.clear();
+        functionalValues.clear();
+        for (String predicate : functionalPredicates) {
+            int id = snapshot.getPredicateDictionary().encode(predicate);
+            functionalIds.add(id);
+            IndexScan scan = snapshot.scan(-1, id, -1);
+            while (scan.next()) {
+                Integer previous = functionalValues.put(IndexRun.high(scan.subject(), id), scan.object());
+                if (previous != null) {
+                    functionalValues.put(IndexRun.high(scan.subject(), id), MULTIPLE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for a logged write to become durable as required by the SyncPolicy
+     * of the log. Must be called without holding writeLock, so that concurrent
+     * writers share a commit.
+     * 
+     * @param current  log the write was appended to
+     * @param sequence log sequence number of the write, or 0 if nothing was
+     *                 logged
+     */
+    static void commit(WriteAheadLog current, long sequence) {
+        if (sequence > 0) {
+            try {
+                current.commit(sequence);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not write to the write-ahead log", ex);
             }
-            queryMapSet.get(query).add(triple);
         }
     }
 
     /**
-     * Use the queryMapSet to determine the Triples that match the given Query. If
-     * none are found return an empty Set.
+     * Use the permutation indexes to determine the Triples that match the given
+     * Query, where “?” marks an unbound position. Matching index entries are
+     * materialized into Triple instances. If none are found return null. The
+     * query runs against the current snapshot without locking, or is answered
+     * from the result cache if one is enabled (see setCacheCapacity); cached
+     * Triple instances are shared between the sets returned. A term ending in
+     * “*”, such as “house1:*”, matches every identifier starting with the rest
+     * of the term (see PrefixFilter); such queries bypass the result cache.
      * 
      * @param subject
      * @param predicate
@@ -75,102 +608,1311 @@ public class KnowledgeGraph {
      * @return
      */
     public Set<Triple> executeQuery(String subject, String predicate, String object) {
-        String query = subject + " " + predicate + " " + object;
-        if (queryMapSet.containsKey(query)) {
-            return queryMapSet.get(query);
-        } else {
+        GraphSnapshot current = snapshot;
+        if (PrefixFilter.isPrefix(subject) || PrefixFilter.isPrefix(predicate) || PrefixFilter.isPrefix(object)) {
+            List<Triple> triples = executePrefixQuery(current, subject, predicate, object);
+            return triples.isEmpty() ? null : new LinkedHashSet<Triple>(triples);
+        }
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int predicateId = lookup(current.getPredicateDictionary(), predicate);
+        int objectId = lookup(current.getNodeDictionary(), object);
+        if (subjectId == UNKNOWN || predicateId == UNKNOWN || objectId == UNKNOWN) {
             return null;
         }
+        return executeQuery(current, subjectId, predicateId, objectId);
     }
 
     /**
-     * This method returns a reference to the single static instance of the
-     * KnowledgeGraph.
+     * Run a query given by ids of the given snapshot, where -1 marks an unbound
+     * position, through the result cache if one is enabled.
      * 
-     * @return
+     * @param current
+     * @param subjectId
+     * @param predicateId
+     * @param objectId
+     * @return the matching Triples, or null if there are none.
      */
-    public static KnowledgeGraph getInstance() {
-        if (instance == null) {
-            instance = new KnowledgeGraph();
+    Set<Triple> executeQuery(GraphSnapshot current, int subjectId, int predicateId, int objectId) {
+        QueryCache results = cache;
+        Triple[] matches = results == null ? null : results.get(subjectId, predicateId, objectId);
+        if (matches == null) {
+            IndexScan scan = current.scan(subjectId, predicateId, objectId);
+            matches = new Triple[scan.remaining()];
+            for (int i = 0; scan.next(); i++) {
+                matches[i] = toTriple(current, scan.subject(), scan.predicate(), scan.object());
+            }
+            if (results != null) {
+                results.put(subjectId, predicateId, objectId, matches, current);
+            }
+        }
+        if (matches.length == 0) {
+            return null;
         }
-        return instance;
+        return new LinkedHashSet<Triple>(Arrays.asList(matches));
     }
 
     /**
-     * Return a Node Instance for the given node identifier. Use the nodeMap to look
-     * up the Node. If the Node does not exist, create it and add it to the nodeMap.
-     * Node names are case insensitive.
+     * Run a query whose terms may be prefixes ending in “*” on the given
+     * snapshot, by a range scan per identifier matching the most selective
+     * prefix (see PrefixFilter).
      * 
-     * @param identifier
-     * @return
+     * @param current
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the matching Triples, in the order of the identifiers matching
+     *         the scanned prefix.
      */
-    public Node getNode(String identifier) {
-        if (nodeMap.containsKey(identifier)) {
-            return nodeMap.get(identifier);
-        } else {
-            Node node = new Node(identifier);
-            nodeMap.put(identifier, node);
-            return node;
+    static List<Triple> executePrefixQuery(GraphSnapshot current, String subject, String predicate,
+            String object) {
+        String[] terms = { subject, predicate, object };
+        PrefixFilter prefixes = PrefixFilter.of(current, terms);
+        int[] ids = lookup(current, terms);
+        List<Triple> triples = new ArrayList<Triple>();
+        for (int i = 0; ids != null && i < (prefixes == null ? 1 : prefixes.size()); i++) {
+            IndexScan scan = prefixes == null ? current.scan(ids[0], ids[1], ids[2])
+                    : prefixes.scan(current, ids[0], ids[1], ids[2], i);
+            while (scan.next()) {
+                if (prefixes == null || prefixes.matches(scan)) {
+                    triples.add(toTriple(current, scan.subject(), scan.predicate(), scan.object()));
+                }
+            }
         }
+        return triples;
     }
 
     /**
-     * Return a Predicate instance for the given identifier. Use the predicateMap to
-     * lookup the Predicate. If the Predicate does not exist, create it and add it
-     * to the predicateMap. Predicate names are case insensitive.
+     * Public method for the Node identifiers starting with the given prefix,
+     * e.g. every room of “house1:”, found by a binary search of a sorted view
+     * of the Node dictionary.
      * 
-     * @param identifier
+     * @param prefix
+     * @return the identifiers in ascending order.
+     */
+    public List<String> findNodes(String prefix) {
+        return decode(snapshot.getNodeDictionary(), prefix);
+    }
+
+    /**
+     * Public method for the Predicate identifiers starting with the given
+     * prefix. See findNodes.
+     * 
+     * @param prefix
+     * @return the identifiers in ascending order.
+     */
+    public List<String> findPredicates(String prefix) {
+        return decode(snapshot.getPredicateDictionary(), prefix);
+    }
+
+    private static List<String> decode(TermDictionary dictionary, String prefix) {
+        List<String> terms = new ArrayList<String>();
+        for (int id : dictionary.withPrefix(prefix)) {
+            terms.add(dictionary.decode(id));
+        }
+        return terms;
+    }
+
+    /**
+     * Public method for an ordered query: the first limit Triples matching the
+     * given Query, where “?” marks an unbound position, in the given order of
+     * “subject”, “predicate”, “object” or “time”, optionally followed by
+     * “desc” (see QueryOrder), e.g. the latest 10 is_in Triples of an
+     * occupant. Identifier orders keep the first Triples in a bounded heap
+     * while scanning the matches, which takes O(n log limit) time; time order
+     * needs the temporal mode and walks the recorded assertions from the
+     * newest or oldest, taking time proportional to limit. Terms may be
+     * prefixes ending in “*” unless the order is time. Throws
+     * QueryEngineException if the order is malformed, or is time and the
+     * temporal mode is not enabled or the query holds a prefix.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param order
+     * @param limit     maximum number of Triples to return
      * @return
+     * @throws QueryEngineException
      */
-    public Predicate getPredicate(String identifier) {
-        if (predicateMap.containsKey(identifier)) {
-            return predicateMap.get(identifier);
-        } else {
-            Predicate predicate = new Predicate(identifier);
-            predicateMap.put(identifier, predicate);
-            return predicate;
+    public List<Triple> executeQuery(String subject, String predicate, String object, String order, long limit)
+            throws QueryEngineException {
+        QueryOrder parsed = QueryOrder.parse(order);
+        if (parsed.getVariable() != null) {
+            throw new QueryEngineException("Expected subject, predicate, object or time as sort key: " + order);
         }
+        return executeQuery(snapshot, subject, predicate, object, parsed, 0, limit);
     }
 
     /**
-     * Return the Triple instance for the given Object, Predicate and Subject. Use
-     * the tripleMap to lookup the Triple. If the Triple does not exist, create it
-     * and add it to the tripleMap and update the queryMapSet.
+     * Run an ordered query like executeQuery(String, String, String, String,
+     * long) on the given snapshot, skipping the first offset Triples.
      * 
+     * @param current
      * @param subject
      * @param predicate
      * @param object
+     * @param order     sort key ordered by position
+     * @param offset    number of ordered Triples to skip
+     * @param limit     maximum number of Triples to return
      * @return
+     * @throws QueryEngineException
      */
-    public Triple getTriple(Node subject, Predicate predicate, Node object) {
-        Triple triple = new Triple(subject, predicate, object);
-        String tripleId = triple.getIdentifier();
-        if (tripleMap.containsKey(tripleId)) {
-            return tripleMap.get(tripleId);
+    List<Triple> executeQuery(GraphSnapshot current, String subject, String predicate, String object,
+            QueryOrder order, long offset, long limit) throws QueryEngineException {
+        TemporalIndex events = order.getPosition() == QueryOrder.TIME ? getHistory() : null;
+        String[] terms = { subject, predicate, object };
+        PrefixFilter prefixes = PrefixFilter.of(current, terms);
+        if (events != null && prefixes != null) {
+            throw new QueryEngineException("Cannot order a prefix query by time");
+        }
+        int[] ids = lookup(current, terms);
+        long count = offset + limit < 0 ? Long.MAX_VALUE : offset + limit;
+        if (ids == null || limit == 0) {
+            return new ArrayList<Triple>();
+        }
+        List<Triple> ordered;
+        if (events != null) {
+            ordered = events.ordered(current, ids[0], ids[1], ids[2], order.isDescending(), count);
         } else {
-            tripleMap.put(tripleId, triple);
-            return triple;
+            ordered = top(current, prefixes, ids, order, count);
+        }
+        return offset >= ordered.size() ? new ArrayList<Triple>()
+                : new ArrayList<Triple>(ordered.subList((int) offset, ordered.size()));
+    }
+
+    /**
+     * @return the first count Triples matching the pattern ids and prefixes in
+     *         the order of the identifier at the ordering position.
+     */
+    private static List<Triple> top(final GraphSnapshot current, PrefixFilter prefixes, int[] pattern,
+            QueryOrder order, long count) {
+        final int position = order.getPosition();
+        QueryOrder.Decoder decoder = new QueryOrder.Decoder() {
+            String decode(int index, int id) {
+                return (index == 1 ? current.getPredicateDictionary() : current.getNodeDictionary()).decode(id);
+            }
+        };
+        TopK<QueryOrder.Row> top = new TopK<QueryOrder.Row>(order.comparator(position, decoder), count);
+        for (int i = 0; i < (prefixes == null ? 1 : prefixes.size()); i++) {
+            IndexScan scan = prefixes == null ? current.scan(pattern[0], pattern[1], pattern[2])
+                    : prefixes.scan(current, pattern[0], pattern[1], pattern[2], i);
+            while (scan.next()) {
+                if (prefixes == null || prefixes.matches(scan)) {
+                    int[] ids = { scan.subject(), scan.predicate(), scan.object() };
+                    top.offer(new QueryOrder.Row(ids, decoder.decode(position, ids[position])));
+                }
+            }
         }
+        List<Triple> triples = new ArrayList<Triple>();
+        for (QueryOrder.Row row : top.toList()) {
+            triples.add(toTriple(current, row.ids[0], row.ids[1], row.ids[2]));
+        }
+        return triples;
     }
 
     /**
-     * Return a list of queries that would return current knowledge upon requesting.
+     * Public method for a property path query: determine the Subject and
+     * Object pairs connected by a chain of Triples matching the given path,
+     * such as “contains+”, “contains*” or “contains{1,3}” (see PropertyPath),
+     * where “?” marks an unbound end. Each pair is returned as a Triple with
+     * the path as its predicate. If none are found return null. Throws
+     * QueryEngineException if the path is malformed.
      * 
      * @param subject
-     * @param predicate
+     * @param path
      * @param object
      * @return
+     * @throws QueryEngineException
+     */
+    public Set<Triple> executePathQuery(String subject, String path, String object) throws QueryEngineException {
+        if (!PropertyPath.isPath(path)) {
+            throw new QueryEngineException("Not a property path: " + path);
+        }
+        List<Triple> matches = executePathQuery(snapshot, subject, PropertyPath.parse(path), path, object);
+        return matches.isEmpty() ? null : new LinkedHashSet<Triple>(matches);
+    }
+
+    /**
+     * Public method for a range query over numeric Objects: determine the
+     * Triples with the given predicate whose Object is a number satisfying the
+     * comparison, e.g. executeRangeQuery("?", "beer_count", "<", "4"), where
+     * “?” marks an unbound Subject. Answered by a range scan of the
+     * NumericIndex of the predicate. The Triples are returned in ascending
+     * order of their Objects. If none are found return null. Throws
+     * QueryEngineException if the operator is not one of &lt;, &lt;=, &gt;,
+     * &gt;= and = or the value is not a number.
+     * 
+     * @param subject
+     * @param predicate
+     * @param operator
+     * @param value
+     * @return
+     * @throws QueryEngineException
      */
-    private List<String> enumerateQuery(String subject, String predicate, String object) {
-        List<String> queryToIndex = new ArrayList<String>();
-        queryToIndex.add(subject + " " + predicate + " " + object);
-        queryToIndex.add(subject + " " + predicate + " ?");
-        queryToIndex.add(subject + " ? " + object);
-        queryToIndex.add("? " + predicate + " " + object);
-        queryToIndex.add(subject + " ? ?");
-        queryToIndex.add("? ? " + object);
-        queryToIndex.add("? " + predicate + " ?");
-        queryToIndex.add("? ? ?");
-        return queryToIndex;
+    public Set<Triple> executeRangeQuery(String subject, String predicate, String operator, String value)
+            throws QueryEngineException {
+        List<Triple> matches = executeRangeQuery(snapshot, subject, predicate, NumericRange.parse(operator, value));
+        return matches.isEmpty() ? null : new LinkedHashSet<Triple>(matches);
+    }
+
+    /**
+     * Run a range query against the given snapshot.
+     * 
+     * @param current
+     * @param subject
+     * @param predicate
+     * @param range
+     * @return the matching Triples in ascending order of their Objects.
+     */
+    List<Triple> executeRangeQuery(GraphSnapshot current, String subject, String predicate,
+            NumericRange range) {
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int predicateId = current.getPredicateDictionary().lookup(predicate);
+        List<Triple> matches = new ArrayList<Triple>();
+        if (subjectId == UNKNOWN || predicateId < 0) {
+            return matches;
+        }
+        for (int object : numericObjects(current, predicateId, range)) {
+            IndexScan scan = current.scan(subjectId, predicateId, object);
+            while (scan.next()) {
+                matches.add(toTriple(current, scan.subject(), predicateId, object));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Run a property path query against the given snapshot.
+     * 
+     * @param current
+     * @param subject
+     * @param path
+     * @param text    the path as written, the predicate of the returned
+     *                Triples
+     * @param object
+     * @return one Triple per connected Subject and Object pair.
+     */
+    List<Triple> executePathQuery(GraphSnapshot current, String subject, PropertyPath path, String text,
+            String object) {
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int objectId = lookup(current.getNodeDictionary(), object);
+        List<Triple> matches = new ArrayList<Triple>();
+        if (subjectId == UNKNOWN || objectId == UNKNOWN) {
+            return matches;
+        }
+        int predicateId = current.getPredicateDictionary().lookup(path.getPredicate());
+        Predicate predicate = new Predicate(text);
+        for (int[] pair : path.evaluate(this, current, subjectId, predicateId, objectId)) {
+            matches.add(new Triple(toNode(current, pair[0]), predicate, toNode(current, pair[1])));
+        }
+        return matches;
+    }
+
+    /**
+     * Public method for parsing a triple pattern with “$name” parameters once,
+     * so that it can be executed many times with different arguments without
+     * parsing it again (see PreparedQuery). Throws QueryEngineException if the
+     * pattern does not hold exactly three terms.
+     * 
+     * @param pattern e.g. “? is_in $room”
+     * @return
+     * @throws QueryEngineException
+     */
+    public PreparedQuery prepareQuery(String pattern) throws QueryEngineException {
+        return PreparedQuery.parse(this, pattern);
+    }
+
+    /**
+     * Public method for enabling the result cache of executeQuery. Results are
+     * kept in least recently used order up to the given total number of
+     * Triples, and a write drops only the cached results of the patterns that
+     * match the written Triple (see QueryCache). A capacity of 0 disables the
+     * cache. Replacing the cache resets its counters.
+     * 
+     * @param capacity maximum total number of Triples held by cached results
+     */
+    public void setCacheCapacity(long capacity) {
+        synchronized (writeLock) {
+            cache = capacity > 0 ? new QueryCache(capacity, snapshot) : null;
+        }
+    }
+
+    /**
+     * @return the number of executeQuery calls answered from the result cache.
+     */
+    public long getCacheHitCount() {
+        QueryCache results = cache;
+        return results == null ? 0 : results.getHitCount();
+    }
+
+    /**
+     * @return the number of executeQuery calls that missed the result cache.
+     */
+    public long getCacheMissCount() {
+        QueryCache results = cache;
+        return results == null ? 0 : results.getMissCount();
+    }
+
+    /**
+     * @return the number of results evicted from the result cache to stay
+     *         within its capacity.
+     */
+    public long getCacheEvictionCount() {
+        QueryCache results = cache;
+        return results == null ? 0 : results.getEvictionCount();
+    }
+
+    /**
+     * Public method for counting the Triples that match the given Query, where
+     * “?” marks an unbound position. The count is the exact size of the key
+     * range of the permutation index answering the pattern, computed with a few
+     * binary searches per index run; no Triple is visited. Terms may be
+     * prefixes ending in “*” (see PrefixFilter): the key ranges of the ids
+     * matching the most selective prefix are added up, and only the Triples of
+     * a pattern holding a second prefix are visited to check it.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the number of matching Triples.
+     */
+    public int count(String subject, String predicate, String object) {
+        return count(snapshot, new String[] { subject, predicate, object }, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Public method for testing whether any Triple matches the given Query,
+     * where “?” marks an unbound position. Answered like count, and for fully
+     * bound or two term patterns mostly by the Bloom filter of the index; a
+     * prefix query stops at the first match.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return true if a Triple matches.
+     */
+    public boolean exists(String subject, String predicate, String object) {
+        return count(snapshot, new String[] { subject, predicate, object }, 1) > 0;
+    }
+
+    /**
+     * @param current
+     * @param terms   Subject, Predicate and Object term, possibly prefixes
+     * @param enough  count at which to stop counting
+     * @return the number of matching Triples, or enough if there are more.
+     */
+    private static int count(GraphSnapshot current, String[] terms, int enough) {
+        int[] ids = lookup(current, terms);
+        if (ids == null) {
+            return 0;
+        }
+        PrefixFilter prefixes = PrefixFilter.of(current, terms);
+        if (prefixes == null) {
+            return Math.min(current.scan(ids[0], ids[1], ids[2]).remaining(), enough);
+        }
+        int count = 0;
+        for (int i = 0; i < prefixes.size() && count < enough; i++) {
+            IndexScan scan = prefixes.scan(current, ids[0], ids[1], ids[2], i);
+            if (!prefixes.isFiltering()) {
+                count += Math.min(scan.remaining(), enough - count);
+                continue;
+            }
+            while (count < enough && scan.next()) {
+                if (prefixes.matches(scan)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param node
+     * @return the number of Triples with the given Node as Subject.
+     */
+    public int getOutDegree(String node) {
+        return count(node, WILDCARD_TERM, WILDCARD_TERM);
+    }
+
+    /**
+     * @param node
+     * @return the number of Triples with the given Node as Object.
+     */
+    public int getInDegree(String node) {
+        return count(WILDCARD_TERM, WILDCARD_TERM, node);
+    }
+
+    /**
+     * @param predicate
+     * @return the number of Triples with the given predicate.
+     */
+    public int getPredicateCount(String predicate) {
+        return count(WILDCARD_TERM, predicate, WILDCARD_TERM);
+    }
+
+    /**
+     * Public method for the number of distinct Subjects of the Triples with the
+     * given predicate (see GraphStatistics). Divides getPredicateCount into
+     * the average out-degree of the predicate.
+     * 
+     * @param predicate
+     * @return
+     */
+    public int getDistinctSubjectCount(String predicate) {
+        int id = snapshot.getPredicateDictionary().lookup(predicate);
+        return id < 0 ? 0 : getStatistics().getSubjectCount(id);
+    }
+
+    /**
+     * Public method for the number of distinct Objects of the Triples with the
+     * given predicate (see GraphStatistics). Divides getPredicateCount into the
+     * average in-degree of the predicate.
+     * 
+     * @param predicate
+     * @return
+     */
+    public int getDistinctObjectCount(String predicate) {
+        int id = snapshot.getPredicateDictionary().lookup(predicate);
+        return id < 0 ? 0 : getStatistics().getObjectCount(id);
+    }
+
+    /**
+     * Public method for the engine materializing the Triples derived by
+     * forward chaining rules (see RuleEngine). The engine is created on first
+     * use; until then writes pay nothing for it.
+     * 
+     * @return
+     */
+    public RuleEngine getRuleEngine() {
+        RuleEngine engine = rules;
+        if (engine == null) {
+            synchronized (writeLock) {
+                if (rules == null) {
+                    rules = new RuleEngine(this);
+                }
+                engine = rules;
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Public method for enabling the temporal mode with the system clock. See
+     * enableHistory(Clock).
+     */
+    public void enableHistory() {
+        enableHistory(Clock.systemUTC());
+    }
+
+    /**
+     * Public method for enabling the temporal mode: from now on every
+     * assertion and retraction of a Triple by importTriple, removeTriple or a
+     * replacement of a functional value is recorded with the epoch second of
+     * the given clock in a time ordered index (see TemporalIndex), which
+     * getHistory and getTriplesDuring query. The Triples already present are
+     * recorded as asserted now, as are those added by a bulk import or a
+     * snapshot load, so the history covers the time since the temporal mode
+     * was enabled: a range starting before that finds only the Triples
+     * present at enabling or asserted since. The history is kept in memory
+     * only, and loading a snapshot discards it. Queries of the current state
+     * are not affected. Does nothing if the temporal mode is already enabled.
+     * 
+     * @param clock source of the event times
+     */
+    public void enableHistory(Clock clock) {
+        synchronized (writeLock) {
+            if (history == null) {
+                TemporalIndex events = new TemporalIndex(clock);
+                events.recordAll(snapshot);
+                history = events;
+            }
+        }
+    }
+
+    /**
+     * Public method for disabling the temporal mode and discarding the
+     * recorded history.
+     */
+    public void disableHistory() {
+        synchronized (writeLock) {
+            history = null;
+        }
+    }
+
+    /**
+     * @return true if the temporal mode is enabled.
+     */
+    public boolean isHistoryEnabled() {
+        return history != null;
+    }
+
+    /**
+     * Public method for the assertions and retractions of the Triples matching
+     * the given Query, where “?” marks an unbound position, that happened
+     * within the given range of epoch seconds, e.g. all is_in facts of the last
+     * hour. Events are returned in time order. Takes a binary search plus time
+     * proportional to the events in range of the most selective bound terms.
+     * Throws QueryEngineException if the temporal mode is not enabled.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param from      first epoch second of the range
+     * @param to        last epoch second of the range
+     * @return
+     * @throws QueryEngineException
+     */
+    public List<TripleEvent> getHistory(String subject, String predicate, String object, long from, long to)
+            throws QueryEngineException {
+        TemporalIndex events = getHistory();
+        GraphSnapshot current = snapshot;
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int predicateId = lookup(current.getPredicateDictionary(), predicate);
+        int objectId = lookup(current.getNodeDictionary(), object);
+        if (subjectId == UNKNOWN || predicateId == UNKNOWN || objectId == UNKNOWN) {
+            return new ArrayList<TripleEvent>();
+        }
+        return events.history(current, subjectId, predicateId, objectId, from, to);
+    }
+
+    /**
+     * Public method for the Triples matching the given Query, where “?” marks
+     * an unbound position, that held at some time within the given range of
+     * epoch seconds, e.g. where an occupant was between 18:00 and 20:00. The
+     * creation date of each Triple is the time of its earliest assertion
+     * holding within the range. Nothing is known about the time before the
+     * temporal mode was enabled, so the Triples present then count as asserted
+     * at enabling (see enableHistory). Takes a binary search plus time
+     * proportional to the assertions of the most selective bound terms holding
+     * at the start of the range and the events within it. If none are
+     * found return null. Throws QueryEngineException if the temporal mode is
+     * not enabled.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param from      first epoch second of the range
+     * @param to        last epoch second of the range
+     * @return
+     * @throws QueryEngineException
+     */
+    public Set<Triple> getTriplesDuring(String subject, String predicate, String object, long from, long to)
+            throws QueryEngineException {
+        TemporalIndex events = getHistory();
+        GraphSnapshot current = snapshot;
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int predicateId = lookup(current.getPredicateDictionary(), predicate);
+        int objectId = lookup(current.getNodeDictionary(), object);
+        if (subjectId == UNKNOWN || predicateId == UNKNOWN || objectId == UNKNOWN) {
+            return null;
+        }
+        List<Triple> triples = events.during(current, subjectId, predicateId, objectId, from, to);
+        return triples.isEmpty() ? null : new LinkedHashSet<Triple>(triples);
+    }
+
+    /**
+     * Public method for the Triples matching the given Query that held at the
+     * given epoch second. See getTriplesDuring.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param time
+     * @return
+     * @throws QueryEngineException
+     */
+    public Set<Triple> getTriplesAt(String subject, String predicate, String object, long time)
+            throws QueryEngineException {
+        return getTriplesDuring(subject, predicate, object, time, time);
+    }
+
+    private TemporalIndex getHistory() throws QueryEngineException {
+        TemporalIndex events = history;
+        if (events == null) {
+            throw new QueryEngineException("The temporal mode of the KnowledgeGraph is not enabled");
+        }
+        return events;
+    }
+
+    /**
+     * Public method for registering a standing query: the listener is called
+     * with every Triple matching the given pattern, where “?” marks an unbound
+     * position, that is added to or removed from the KnowledgeGraph from now
+     * on (see Subscription). Matching Subscriptions are found through an index
+     * of the registered patterns, so a write costs the same however many
+     * Subscriptions do not match it.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param listener  called under the write lock with each matching change
+     * @return the Subscription, to be cancelled when no longer needed.
+     */
+    public Subscription subscribe(String subject, String predicate, String object, TripleListener listener) {
+        Subscription subscription = new Subscription(this, subject, predicate, object, listener);
+        synchronized (writeLock) {
+            subscriptions.add(subscription, snapshot);
+        }
+        return subscription;
+    }
+
+    /**
+     * Public method for registering a standing query whose matching changes
+     * are queued as a stream of TripleEvents, to be read with
+     * Subscription.poll. See subscribe(String, String, String, TripleListener).
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the Subscription, to be cancelled when no longer needed.
+     */
+    public Subscription subscribe(String subject, String predicate, String object) {
+        return subscribe(subject, predicate, object, null);
+    }
+
+    /**
+     * Stop delivering changes to a Subscription.
+     * 
+     * @param subscription
+     */
+    void unsubscribe(Subscription subscription) {
+        synchronized (writeLock) {
+            subscriptions.remove(subscription);
+            subscription.setCancelled();
+        }
+    }
+
+    /**
+     * Open a cursor streaming every Triple that matches the given Query, where
+     * “?” marks an unbound position. See openCursor(String, String, String,
+     * long, long).
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     * @throws QueryEngineException
+     */
+    public QueryCursor openCursor(String subject, String predicate, String object) throws QueryEngineException {
+        return openCursor(subject, predicate, object, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Open a cursor streaming the Triples that match the given Query, where “?”
+     * marks an unbound position. The cursor skips the first offset matches and
+     * returns at most limit Triples, in index order, from the current snapshot.
+     * Use the continuation token of the cursor to fetch the next page with
+     * resumeCursor, which does not revisit the skipped Triples. A continuation
+     * token holds a single key range, so throws QueryEngineException if a term
+     * is a prefix ending in “*”; use executeQuery for prefix queries.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param offset    number of matching Triples to skip
+     * @param limit     maximum number of Triples to return
+     * @return
+     * @throws QueryEngineException
+     */
+    public QueryCursor openCursor(String subject, String predicate, String object, long offset, long limit)
+            throws QueryEngineException {
+        return openCursor(snapshot, subject, predicate, object, offset, limit);
+    }
+
+    /**
+     * Open a cursor like openCursor(String, String, String, long, long) on the
+     * given snapshot.
+     * 
+     * @param current
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param offset    number of matching Triples to skip
+     * @param limit     maximum number of Triples to return
+     * @return
+     * @throws QueryEngineException
+     */
+    static QueryCursor openCursor(GraphSnapshot current, String subject, String predicate, String object,
+            long offset, long limit) throws QueryEngineException {
+        if (PrefixFilter.isPrefix(subject) || PrefixFilter.isPrefix(predicate) || PrefixFilter.isPrefix(object)) {
+            throw new QueryEngineException("Cannot open a cursor on a prefix query: " + subject + " " + predicate
+                    + " " + object);
+        }
+        int subjectId = lookup(current.getNodeDictionary(), subject);
+        int predicateId = lookup(current.getPredicateDictionary(), predicate);
+        int objectId = lookup(current.getNodeDictionary(), object);
+        if (subjectId == UNKNOWN || predicateId == UNKNOWN || objectId == UNKNOWN) {
+            return new QueryCursor(current, null, subjectId, predicateId, objectId, limit);
+        }
+        QueryCursor cursor = new QueryCursor(current, current.scan(subjectId, predicateId, objectId), subjectId,
+                predicateId, objectId, limit);
+        cursor.skip(offset);
+        return cursor;
+    }
+
+    /**
+     * Open a cursor returning at most limit further Triples of the query that
+     * issued the given continuation token, starting right after the last Triple
+     * that query returned. Throws QueryEngineException if the token is
+     * malformed.
+     * 
+     * @param token
+     * @param limit
+     * @return
+     * @throws QueryEngineException
+     */
+    public QueryCursor resumeCursor(String token, long limit) throws QueryEngineException {
+        return QueryCursor.resume(snapshot, token, limit);
+    }
+
+    /**
+     * Public method for describing the Bloom filters that let the permutation
+     * indexes reject lookups of absent Triples without a search (see
+     * BloomFilter): for each index its key count, filter size, expected false
+     * positive rate and the probes, rejections and false positives counted since
+     * the filter was built.
+     * 
+     * @return one line per permutation index.
+     */
+    public String getFilterReport() {
+        GraphSnapshot current = snapshot;
+        StringBuilder text = new StringBuilder();
+        for (Permutation permutation : Permutation.values()) {
+            PermutationIndex index = current.getIndex(permutation);
+            BloomFilter filter = index.getFilter();
+            text.append(String.format(
+                    "%s: %d keys, %d bits, %d hashes, expected fp rate %.4f; %d probes, %d rejected, "
+                            + "%d false positives, observed fp rate %.4f%n",
+                    permutation, index.size(), filter.getBitCount(), filter.getHashCount(),
+                    filter.getExpectedFalsePositiveRate(), filter.getProbeCount(), filter.getRejectionCount(),
+                    filter.getFalsePositiveCount(), filter.getObservedFalsePositiveRate()));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Public method for saving the KnowledgeGraph to a binary snapshot file (see
+     * SnapshotFile), replacing any existing file only once the new one is
+     * complete. The current snapshot is written while writers and readers carry
+     * on. Throws SnapshotException on error writing the file.
+     * 
+     * @param fileName
+     * @throws SnapshotException
+     */
+    public void saveSnapshot(String fileName) throws SnapshotException {
+        try {
+            SnapshotFile.write(snapshot, Paths.get(fileName));
+        } catch (IOException ex) {
+            throw new SnapshotException("Could not write snapshot file: " + ex);
+        }
+    }
+
+    /**
+     * Public method for replacing the contents of the KnowledgeGraph with a
+     * binary snapshot file written by saveSnapshot. The file is memory-mapped
+     * and queried in place, so loading takes constant time regardless of the
+     * size of the graph. Concurrent queries see either the previous or the
+     * loaded graph. Imports must not run while a snapshot is loaded, and a
+     * write-ahead log must be opened only after loading (see openLog). Throws
+     * SnapshotException on error reading the file.
+     * 
+     * @param fileName
+     * @throws SnapshotException
+     */
+    public void loadSnapshot(String fileName) throws SnapshotException {
+        try {
+            GraphSnapshot loaded = SnapshotFile.read(Paths.get(fileName));
+            synchronized (writeLock) {
+                if (log != null) {
+                    throw new SnapshotException("Cannot load a snapshot while a write-ahead log is open");
+                }
+                if (offHeap) {
+                    loaded.getNodeDictionary().setArena(arena);
+                    loaded.getPredicateDictionary().setArena(arena);
+                    loaded = loaded.withArena(arena);
+                }
+                publish(loaded);
+                refreshFunctionalValues();
+                if (history != null) {
+                    TemporalIndex events = new TemporalIndex(history.getClock());
+                    events.recordAll(snapshot);
+                    history = events;
+                }
+                if (rules != null) {
+                    rules.reset();
+                }
+            }
+        } catch (NoSuchFileException ex) {
+            throw new SnapshotException("Could not find file: " + ex);
+        } catch (IOException ex) {
+            throw new SnapshotException("Could not read snapshot file: " + ex);
+        }
+    }
+
+    /**
+     * Public method for keeping a very large KnowledgeGraph off heap, out of
+     * reach of the garbage collector. The node and predicate dictionaries and
+     * the permutation indexes are copied into native memory (see
+     * OffHeapArena), and later large index runs are allocated there too, as
+     * are the terms encoded later once they reach a quarter of the terms
+     * already there (see TermDictionary); the heap only keeps
+     * recently written runs and terms, the filters and the caches. Queries
+     * return exactly what they returned before. Like loadSnapshot, this must
+     * not run while Triples are imported. Does nothing if the graph is already
+     * off heap.
+     */
+    public void enableOffHeap() {
+        synchronized (writeLock) {
+            if (offHeap) {
+                return;
+            }
+            GraphSnapshot current = snapshot;
+            current.getNodeDictionary().setArena(arena);
+            current.getPredicateDictionary().setArena(arena);
+            publish(current.withArena(arena).compact());
+            offHeap = true;
+        }
+    }
+
+    /**
+     * Public method for moving a KnowledgeGraph kept off heap back onto the
+     * heap: the dictionaries and the permutation indexes are copied back onto
+     * the heap, where later runs and terms are built again. The native memory
+     * is not freed here, since queries do not lock and may still read the
+     * previous snapshot; it is freed once the garbage collector finds it
+     * unreachable (see OffHeapArena), and getOffHeapBytes counts it until
+     * then. Like enableOffHeap, this must not run while Triples are imported.
+     * Does nothing if the graph is not off heap.
+     */
+    public void disableOffHeap() {
+        synchronized (writeLock) {
+            if (!offHeap) {
+                return;
+            }
+            GraphSnapshot current = snapshot;
+            current.getNodeDictionary().setArena(null);
+            current.getPredicateDictionary().setArena(null);
+            publish(current.withArena(null).compact());
+            offHeap = false;
+        }
+    }
+
+    /**
+     * @return true if large index runs are allocated off heap.
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * @return the number of bytes of native memory held by the off heap
+     *         dictionaries and index runs and not yet released by the garbage
+     *         collector.
+     */
+    public long getOffHeapBytes() {
+        return arena.getLiveBytes();
+    }
+
+    /**
+     * Public method for making writes durable. Opens (or creates) the given
+     * write-ahead log file, replays the writes it holds that are newer than the
+     * current graph and logs every later write (see WriteAheadLog). On startup
+     * call loadSnapshot with the latest snapshot first, if there is one, so that
+     * only the writes since that snapshot are replayed. Throws
+     * WriteAheadLogException on error reading or creating the log.
+     * 
+     * @param fileName
+     * @param policy   when logged writes are forced to stable storage
+     * @return the number of writes replayed from the log.
+     * @throws WriteAheadLogException
+     */
+    public int openLog(String fileName, SyncPolicy policy) throws WriteAheadLogException {
+        synchronized (writeLock) {
+            if (log != null) {
+                throw new WriteAheadLogException("A write-ahead log is already open");
+            }
+            WriteAheadLog.Handler replay = new WriteAheadLog.Handler() {
+                public void apply(byte operation, long version, String subject, String predicate, String object) {
+                    TermDictionary nodeDictionary = snapshot.getNodeDictionary();
+                    int subjectId = nodeDictionary.encode(subject);
+                    int predicateId = snapshot.getPredicateDictionary().encode(predicate);
+                    int objectId = nodeDictionary.encode(object);
+                    if (operation == WriteAheadLog.ADD) {
+                        insert(subjectId, predicateId, objectId);
+                    } else if (snapshot.contains(subjectId, predicateId, objectId)) {
+                        delete(subjectId, predicateId, objectId);
+                    }
+                    derive();
+                    if (snapshot.getVersion() < version) {
+                        publish(snapshot.withVersion(version));
+                    }
+                }
+            };
+            try {
+                log = WriteAheadLog.open(Paths.get(fileName), policy, snapshot.getVersion(), replay);
+            } catch (IOException ex) {
+                throw new WriteAheadLogException("Could not open write-ahead log: " + ex);
+            }
+            return log.getRecoveredCount();
+        }
+    }
+
+    /**
+     * Public method for closing the write-ahead log after forcing every logged
+     * write to stable storage. Later writes are no longer logged. Throws
+     * WriteAheadLogException on error writing the log.
+     * 
+     * @throws WriteAheadLogException
+     */
+    public void closeLog() throws WriteAheadLogException {
+        WriteAheadLog current;
+        synchronized (writeLock) {
+            current = log;
+            log = null;
+        }
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ex) {
+                throw new WriteAheadLogException("Could not close write-ahead log: " + ex);
+            }
+        }
+    }
+
+    /**
+     * Public method for saving a snapshot file that covers every logged write
+     * and then emptying the write-ahead log, so that recovery only replays
+     * writes made after the checkpoint. Writers wait while the snapshot is
+     * saved. Throws SnapshotException on error writing the snapshot or the log.
+     * 
+     * @param fileName
+     * @throws SnapshotException
+     */
+    public void checkpoint(String fileName) throws SnapshotException {
+        synchronized (writeLock) {
+            try {
+                SnapshotFile.write(snapshot, Paths.get(fileName));
+                if (log != null) {
+                    log.reset();
+                }
+            } catch (IOException ex) {
+                throw new SnapshotException("Could not write checkpoint: " + ex);
+            }
+        }
+    }
+
+    /**
+     * This method returns a reference to the single static instance of the
+     * KnowledgeGraph.
+     * 
+     * @return
+     */
+    public static KnowledgeGraph getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Public method for the partition, or named graph, with the given case
+     * insensitive name, e.g. the GUID of a House. A partition is created empty
+     * on first use and is independent of the default graph returned by
+     * getInstance and of every other partition: it is written, queried (see
+     * QueryEngine(KnowledgeGraph)), snapshotted and logged on its own, and a
+     * busy partition does not slow down writes to the others. See
+     * QueryEngine.selectPartitions for queries across partitions.
+     * 
+     * @param name
+     * @return
+     */
+    public static KnowledgeGraph getPartition(String name) {
+        String key = name.toLowerCase();
+        KnowledgeGraph partition = partitions.get(key);
+        if (partition == null) {
+            KnowledgeGraph created = new KnowledgeGraph(key);
+            partition = partitions.putIfAbsent(key, created);
+            if (partition == null) {
+                partition = created;
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * @return the names of the partitions in ascending order.
+     */
+    public static Set<String> getPartitionNames() {
+        return new TreeSet<String>(partitions.keySet());
+    }
+
+    /**
+     * @return the partitions in ascending order of name.
+     */
+    static List<KnowledgeGraph> getPartitions() {
+        List<KnowledgeGraph> result = new ArrayList<KnowledgeGraph>();
+        for (String partitionName : getPartitionNames()) {
+            KnowledgeGraph partition = partitions.get(partitionName);
+            if (partition != null) {
+                result.add(partition);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Public method for evicting a partition from memory: it is dropped from
+     * the partitions, its write-ahead log is closed and its rule engine, if
+     * asynchronous, is stopped. Save a snapshot of the partition first to keep
+     * its contents; a later getPartition creates it empty again, ready for
+     * loadSnapshot. Throws WriteAheadLogException on error closing the log.
+     * 
+     * @param name
+     * @return true if the partition existed.
+     * @throws WriteAheadLogException
+     */
+    public static boolean evictPartition(String name) throws WriteAheadLogException {
+        KnowledgeGraph partition = partitions.remove(name.toLowerCase());
+        if (partition == null) {
+            return false;
+        }
+        RuleEngine engine = partition.rules;
+        if (engine != null) {
+            engine.setAsynchronous(false);
+        }
+        partition.closeLog();
+        return true;
+    }
+
+    /**
+     * @return the name of the partition, or null for the default graph.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Return a Node Instance for the given node identifier. Use the nodeDictionary
+     * to look up the node id. If the Node does not exist, assign it the next id.
+     * Node names are case insensitive.
+     * 
+     * @param identifier
+     * @return
+     */
+    public Node getNode(String identifier) {
+        GraphSnapshot current = snapshot;
+        return toNode(current, current.getNodeDictionary().encode(identifier));
+    }
+
+    /**
+     * Return a Predicate instance for the given identifier. Use the
+     * predicateDictionary to look up the predicate id. If the Predicate does not
+     * exist, assign it the next id. Predicate names are case insensitive.
+     * 
+     * @param identifier
+     * @return
+     */
+    public Predicate getPredicate(String identifier) {
+        GraphSnapshot current = snapshot;
+        return toPredicate(current, current.getPredicateDictionary().encode(identifier));
+    }
+
+    /**
+     * Return the Triple instance for the given Object, Predicate and Subject. If
+     * the Triple does not exist, add it to the permutation indexes.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    public Triple getTriple(Node subject, Predicate predicate, Node object) {
+        importTriple(subject.getIdentifier(), predicate.getIdentifier(), object.getIdentifier());
+        GraphSnapshot current = snapshot;
+        TermDictionary nodeDictionary = current.getNodeDictionary();
+        return toTriple(current, nodeDictionary.lookup(subject.getIdentifier()),
+                current.getPredicateDictionary().lookup(predicate.getIdentifier()),
+                nodeDictionary.lookup(object.getIdentifier()));
+    }
+
+    /**
+     * @return the current GraphSnapshot. The snapshot stays valid and unchanged
+     *         however long the caller keeps it.
+     */
+    GraphSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publish a successor snapshot, clearing the result cache, marking the
+     * statistics stale and indexing the numeric predicates again unless the
+     * successor shares the POS index of the current snapshot. The caller must
+     * hold the lock returned by getWriteLock() from reading the snapshot it
+     * was derived from until now.
+     * 
+     * @param successor
+     */
+    void publish(GraphSnapshot successor) {
+        GraphSnapshot previous = snapshot;
+        snapshot = successor;
+        if (successor.getNodeDictionary() != previous.getNodeDictionary()
+                || successor.getPredicateDictionary() != previous.getPredicateDictionary()) {
+            subscriptions.rekey(successor);
+        }
+        statistics = null;
+        QueryCache results = cache;
+        if (results != null) {
+            results.clear(successor);
+        }
+        if (successor.getIndex(Permutation.POS) != previous.getIndex(Permutation.POS)
+                || successor.getNodeDictionary() != previous.getNodeDictionary()) {
+            numbers = numbers.reindex(previous, successor);
+        }
+        refreshClosures();
+    }
+
+    /**
+     * Collect the numeric Objects of a predicate satisfying a comparison,
+     * indexing the predicate first if this is its first range query.
+     * 
+     * @param current   snapshot the query reads
+     * @param predicate
+     * @param range
+     * @return the Object ids in ascending order of value, which may include
+     *         Objects the snapshot does not hold with the predicate.
+     */
+    int[] numericObjects(GraphSnapshot current, int predicate, NumericRange range) {
+        NumericIndex index = numbers;
+        int[] objects = index.objects(current, predicate, range);
+        if (objects == null && !index.isIndexed(predicate)) {
+            synchronized (writeLock) {
+                index = numbers;
+                if (!index.isIndexed(predicate)) {
+                    index.index(snapshot, predicate);
+                }
+            }
+            objects = index.objects(current, predicate, range);
+        }
+        return objects != null ? objects : NumericIndex.scan(current, predicate, range);
+    }
+
+    /**
+     * Replace the cached transitive closures of the hot predicates by empty
+     * ones for the current snapshot, after their ids may have changed or
+     * Triples were added in bulk. The caller must hold writeLock.
+     */
+    private void refreshClosures() {
+        Map<Integer, TransitiveClosure> refreshed = new HashMap<Integer, TransitiveClosure>();
+        for (String predicate : hotPredicates) {
+            int id = snapshot.getPredicateDictionary().encode(predicate);
+            refreshed.put(id, new TransitiveClosure(id, snapshot));
+        }
+        closures = refreshed;
+    }
+
+    /**
+     * @param predicate
+     * @return the cached transitive closure of a hot predicate, or null if the
+     *         predicate is not hot.
+     */
+    TransitiveClosure getClosure(int predicate) {
+        return closures.get(predicate);
+    }
+
+    /**
+     * @return the per-predicate cardinalities of the current snapshot,
+     *         recomputing them with a scan of the snapshot if they are stale.
+     */
+    GraphStatistics getStatistics() {
+        GraphStatistics current = statistics;
+        if (current == null) {
+            synchronized (writeLock) {
+                if (statistics == null) {
+                    statistics = GraphStatistics.of(snapshot);
+                }
+                current = statistics;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the write-ahead log, or null if writes are not logged. The caller
+     *         must hold the lock returned by getWriteLock().
+     */
+    WriteAheadLog getLog() {
+        return log;
+    }
+
+    /**
+     * @return the lock serializing writers of the KnowledgeGraph.
+     */
+    Object getWriteLock() {
+        return writeLock;
+    }
+
+    TermDictionary getNodeDictionary() {
+        return snapshot.getNodeDictionary();
+    }
+
+    TermDictionary getPredicateDictionary() {
+        return snapshot.getPredicateDictionary();
+    }
+
+    /**
+     * Resolve a query term to its dictionary id. Returns WILDCARD for “?” and
+     * UNKNOWN for a term that has never been imported.
+     * 
+     * @param dictionary
+     * @param term
+     * @return
+     */
+    private static int lookup(TermDictionary dictionary, String term) {
+        if (WILDCARD_TERM.equals(term)) {
+            return WILDCARD;
+        }
+        int id = dictionary.lookup(term);
+        return id < 0 ? UNKNOWN : id;
+    }
+
+    /**
+     * Look up the terms of a triple pattern, taking prefix terms as unbound.
+     * 
+     * @return the Subject, Predicate and Object id, -1 if unbound, or null if
+     *         a term is not in the dictionaries.
+     */
+    private static int[] lookup(GraphSnapshot current, String[] terms) {
+        int[] ids = new int[3];
+        for (int position = 0; position < 3; position++) {
+            ids[position] = PrefixFilter.isPrefix(terms[position]) ? WILDCARD
+                    : lookup(position == 1 ? current.getPredicateDictionary() : current.getNodeDictionary(),
+                            terms[position]);
+            if (ids[position] == UNKNOWN) {
+                return null;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return a new Triple instance for the given ids of the given snapshot.
+     */
+    static Triple toTriple(GraphSnapshot snapshot, int subject, int predicate, int object) {
+        return new Triple(toNode(snapshot, subject), toPredicate(snapshot, predicate), toNode(snapshot, object));
+    }
+
+    /**
+     * @return a new Triple instance for the given ids of the given snapshot
+     *         with the given creation date.
+     */
+    static Triple toTriple(GraphSnapshot snapshot, int subject, int predicate, int object, long createDate) {
+        return new Triple(toNode(snapshot, subject), toPredicate(snapshot, predicate), toNode(snapshot, object),
+                createDate);
+    }
+
+    private static Node toNode(GraphSnapshot snapshot, int id) {
+        TermDictionary dictionary = snapshot.getNodeDictionary();
+        return new Node(id, dictionary.decode(id), dictionary.getCreateDate(id));
+    }
+
+    private static Predicate toPredicate(GraphSnapshot snapshot, int id) {
+        TermDictionary dictionary = snapshot.getPredicateDictionary();
+        return new Predicate(id, dictionary.decode(id), dictionary.getCreateDate(id));
     }
 }
@@ -0,0 +1,175 @@
+package housemate.src.knowledge.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The MappedTerms class is the read-only term table of a loaded snapshot file
+ * (see SnapshotFile). Terms are looked up and decoded straight from the mapped
+ * file: the hash slots, term offsets, creation dates and UTF-8 term bytes are
+ * used in place, so loading a dictionary of any size costs nothing up front.
+ * A TermDictionary built on a MappedTerms table hands out new ids after the
+ * mapped ones.
+ * 
+ * The same table layout copied into buffers of an OffHeapArena keeps the
+ * terms of a KnowledgeGraph held off heap.
+ */
+final class MappedTerms {
+    /**
+     * Open addressing hash table holding term id + 1 for occupied slots and 0 for
+     * empty ones, laid out as by TermDictionary.
+     */
+    private final IntBuffer slots;
+
+    /**
+     * Start of each term in bytes, indexed by term id, followed by the end of the
+     * last term.
+     */
+    private final IntBuffer offsets;
+
+    private final LongBuffer createDates;
+    private final ByteBuffer bytes;
+    private final int size;
+
+    /**
+     * True if the table was copied into an arena rather than mapped from a
+     * file.
+     */
+    private final boolean allocated;
+
+    MappedTerms(IntBuffer slots, IntBuffer offsets, LongBuffer createDates, ByteBuffer bytes) {
+        this(slots, offsets, createDates, bytes, false);
+    }
+
+    private MappedTerms(IntBuffer slots, IntBuffer offsets, LongBuffer createDates, ByteBuffer bytes,
+            boolean allocated) {
+        this.slots = slots;
+        this.offsets = offsets;
+        this.createDates = createDates;
+        this.bytes = bytes;
+        this.size = createDates.limit();
+        this.allocated = allocated;
+    }
+
+    /**
+     * Copy count terms of a dictionary into a table allocated from the given
+     * arena, laid out as a table written by SnapshotFile. The table holds the
+     * term with dictionary id from + i as id i.
+     * 
+     * @param dictionary
+     * @param from       dictionary id of the first term to copy
+     * @param count      number of terms to copy
+     * @param arena
+     * @return the table, or null if the terms do not fit in single buffers.
+     */
+    static MappedTerms copyOf(TermDictionary dictionary, int from, int count, OffHeapArena arena) {
+        byte[][] terms = new byte[count][];
+        int[] hashes = new int[count];
+        long byteCount = 0;
+        for (int id = 0; id < count; id++) {
+            String term = dictionary.decode(from + id);
+            terms[id] = term.getBytes(StandardCharsets.UTF_8);
+            hashes[id] = term.hashCode();
+            byteCount += terms[id].length;
+        }
+        int slotCount = Integer.highestOneBit(Math.max(count, 1)) << 2;
+        if (!arena.fits(byteCount) || !arena.fits(8L * count) || !arena.fits(4L * slotCount)) {
+            return null;
+        }
+        IntBuffer slots = arena.allocateInts(slotCount);
+        IntBuffer offsets = arena.allocateInts(count + 1);
+        LongBuffer createDates = arena.allocateLongs(count);
+        ByteBuffer bytes = arena.allocate(byteCount);
+        int mask = slotCount - 1;
+        int offset = 0;
+        for (int id = 0; id < count; id++) {
+            int slot = TermDictionary.spread(hashes[id]) & mask;
+            while (slots.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots.put(slot, id + 1);
+            offsets.put(id, offset);
+            createDates.put(id, dictionary.getCreateDate(from + id));
+            bytes.put(offset, terms[id]);
+            offset += terms[id].length;
+        }
+        offsets.put(count, offset);
+        return new MappedTerms(slots, offsets, createDates, bytes, true);
+    }
+
+    /**
+     * @return true if the table was allocated from an arena by copyOf.
+     */
+    boolean isAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return the number of terms in the table.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param term
+     * @return the id of the given term, or -1 if the table does not hold it.
+     */
+    int lookup(String term) {
+        byte[] encoded = term.getBytes(StandardCharsets.UTF_8);
+        return lookup(encoded, encoded.length, term.hashCode());
+    }
+
+    /**
+     * @param term   UTF-8 term bytes
+     * @param length number of bytes used
+     * @param hash   String.hashCode() of the term
+     * @return the id of the given term, or -1 if the table does not hold it.
+     */
+    int lookup(byte[] term, int length, int hash) {
+        int mask = slots.limit() - 1;
+        for (int slot = TermDictionary.spread(hash) & mask;; slot = (slot + 1) & mask) {
+            int entry = slots.get(slot);
+            if (entry == 0) {
+                return -1;
+            }
+            if (matches(entry - 1, term, length)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @param id
+     * @return the term string for the given id.
+     */
+    String decode(int id) {
+        int from = offsets.get(id);
+        byte[] term = new byte[offsets.get(id + 1) - from];
+        bytes.get(from, term);
+        return new String(term, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param id
+     * @return the Unix time stamp when the term was first encoded.
+     */
+    long getCreateDate(int id) {
+        return createDates.get(id);
+    }
+
+    private boolean matches(int id, byte[] term, int length) {
+        int from = offsets.get(id);
+        if (offsets.get(id + 1) - from != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes.get(from + i) != term[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
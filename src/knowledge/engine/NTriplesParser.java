@@ -0,0 +1,247 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.ImportException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The NTriplesParser class tokenizes N-Triple formatted input straight from the
+ * bytes of a memory-mapped file. Each non blank line must hold a subject,
+ * predicate and object separated by whitespace, optionally followed by the
+ * terminating period. Terms are lowercased while they are hashed and resolved
+ * against term dictionaries, so no line String, token array or regular
+ * expression is involved, and a String is only allocated the first time a term
+ * is seen. The resulting ids are passed to a TripleSink. Malformed lines are
+ * reported with their line number and byte offset.
+ */
+class NTriplesParser {
+    /**
+     * Number of bytes mapped at a time. Windows end on a line boundary, so no
+     * line may be longer than this.
+     */
+    private static final int MAP_WINDOW = 1 << 28;
+
+    /**
+     * Initial number of bytes read from a stream at a time.
+     */
+    private static final int STREAM_WINDOW = 1 << 16;
+
+    private final TermDictionary nodeDictionary;
+    private final TermDictionary predicateDictionary;
+    private final TripleSink sink;
+
+    /**
+     * Reusable buffer holding the lowercased bytes of the current term.
+     */
+    private byte[] scratch = new byte[128];
+
+    /**
+     * Start and end positions of the three terms of the current line.
+     */
+    private final int[] tokens = new int[6];
+
+    private long lineNumber;
+
+    NTriplesParser(TermDictionary nodeDictionary, TermDictionary predicateDictionary, TripleSink sink) {
+        this.nodeDictionary = nodeDictionary;
+        this.predicateDictionary = predicateDictionary;
+        this.sink = sink;
+    }
+
+    /**
+     * @return the number of lines parsed so far, plus the initial line number.
+     */
+    long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Set the number of lines preceding the input, so that reported line numbers
+     * are file relative when parsing starts in the middle of a file.
+     * 
+     * @param lineNumber
+     */
+    void setLineNumber(long lineNumber) {
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * Parse every line of the given file channel, mapping it into memory one
+     * window at a time.
+     * 
+     * @param channel
+     * @throws IOException
+     * @throws ImportException
+     */
+    void parse(FileChannel channel) throws IOException, ImportException {
+        long fileSize = channel.size();
+        long position = 0;
+        while (position < fileSize) {
+            int length = (int) Math.min(MAP_WINDOW, fileSize - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            int end = length;
+            if (position + length < fileSize) {
+                end = lastLineEnd(buffer, length);
+                if (end < 0) {
+                    throw new ImportException("Line " + (lineNumber + 1) + " at byte offset " + position
+                            + " is longer than " + MAP_WINDOW + " bytes");
+                }
+            }
+            parseLines(buffer, 0, end, position);
+            position += end;
+        }
+    }
+
+    /**
+     * Parse every line of the given stream, e.g. a decompressed file, reading
+     * it through a window that grows only if a line is longer than the window.
+     * Reported byte offsets are stream positions.
+     * 
+     * @param input
+     * @throws IOException
+     * @throws ImportException
+     */
+    void parse(InputStream input) throws IOException, ImportException {
+        byte[] window = new byte[STREAM_WINDOW];
+        int filled = 0;
+        long position = 0;
+        while (true) {
+            int read = input.read(window, filled, window.length - filled);
+            if (read < 0) {
+                parseLines(ByteBuffer.wrap(window), 0, filled, position);
+                return;
+            }
+            filled += read;
+            int end = lastLineEnd(ByteBuffer.wrap(window), filled);
+            if (end < 0) {
+                if (filled == window.length) {
+                    window = Arrays.copyOf(window, window.length * 2);
+                }
+                continue;
+            }
+            parseLines(ByteBuffer.wrap(window), 0, end, position);
+            System.arraycopy(window, end, window, 0, filled - end);
+            filled -= end;
+            position += end;
+        }
+    }
+
+    /**
+     * Parse the complete lines held in buffer positions [from, to).
+     * 
+     * @param buffer
+     * @param from
+     * @param to
+     * @param offset file offset of buffer position 0, used for error reporting
+     * @throws ImportException
+     */
+    void parseLines(ByteBuffer buffer, int from, int to, long offset) throws ImportException {
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            parseLine(buffer, lineStart, lineEnd, offset);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer buffer, int from, int to, long offset) throws ImportException {
+        lineNumber++;
+        int end = to;
+        while (end > from && isSpace(buffer.get(end - 1))) {
+            end--;
+        }
+        if (end == from) {
+            return;
+        }
+        if (buffer.get(end - 1) == '.') {
+            end--;
+            while (end > from && isSpace(buffer.get(end - 1))) {
+                end--;
+            }
+        }
+        int position = from;
+        for (int token = 0; token < 3; token++) {
+            while (position < end && isSpace(buffer.get(position))) {
+                position++;
+            }
+            if (position == end) {
+                throw malformed(buffer, from, to, offset, "expected subject, predicate and object");
+            }
+            tokens[token * 2] = position;
+            while (position < end && !isSpace(buffer.get(position))) {
+                position++;
+            }
+            tokens[token * 2 + 1] = position;
+        }
+        if (position != end) {
+            throw malformed(buffer, from, to, offset, "unexpected text after object");
+        }
+        int subject = encode(nodeDictionary, buffer, tokens[0], tokens[1]);
+        int predicate = encode(predicateDictionary, buffer, tokens[2], tokens[3]);
+        int object = encode(nodeDictionary, buffer, tokens[4], tokens[5]);
+        sink.addTriple(subject, predicate, object);
+    }
+
+    /**
+     * Lowercase the term in buffer positions [from, to) into the scratch buffer
+     * and resolve it against the dictionary. Terms containing non ASCII bytes
+     * are decoded as UTF-8 and lowercased as Strings.
+     */
+    private int encode(TermDictionary dictionary, ByteBuffer buffer, int from, int to) {
+        int length = to - from;
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        int hash = 0;
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            byte value = buffer.get(from + i);
+            if (value < 0) {
+                ascii = false;
+            } else if (value >= 'A' && value <= 'Z') {
+                value += 'a' - 'A';
+            }
+            scratch[i] = value;
+            hash = 31 * hash + value;
+        }
+        if (ascii) {
+            return dictionary.encode(scratch, length, hash);
+        }
+        return dictionary.encode(new String(scratch, 0, length, StandardCharsets.UTF_8).toLowerCase());
+    }
+
+    private ImportException malformed(ByteBuffer buffer, int from, int to, long offset, String reason) {
+        byte[] line = new byte[Math.min(to - from, 200)];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = buffer.get(from + i);
+        }
+        return new ImportException("Malformed triple at line " + lineNumber + " (byte offset " + (offset + from)
+                + "), " + reason + ": " + new String(line, StandardCharsets.UTF_8).trim());
+    }
+
+    /**
+     * @return the position just past the last newline in buffer positions [0,
+     *         length), or -1 if there is none.
+     */
+    private static int lastLineEnd(ByteBuffer buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte value) {
+        return value == ' ' || value == '\t' || value == '\r' || value == '\f' || value == 0x0B;
+    }
+}
@@ -9,6 +9,12 @@ public class Node {
      */
     private String identifier;
 
+    /**
+     * Dense KnowledgeGraph dictionary id of the Node, or -1 if the Node was not
+     * issued by a KnowledgeGraph.
+     */
+    private int id;
+
     /**
      * Unix time stamp when node was created.
      */
@@ -21,6 +27,13 @@ public class Node {
         return identifier;
     }
 
+    /**
+     * @return the KnowledgeGraph dictionary id of the Node.
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * @return the Node creation date.
      */
@@ -29,7 +42,22 @@ public class Node {
     }
 
     public Node(String identifier) {
+        this(-1, identifier, Instant.now().getEpochSecond());
+    }
+
+    Node(int id, String identifier, long createDate) {
+        this.id = id;
         this.identifier = identifier;
-        this.createDate = Instant.now().getEpochSecond();
+        this.createDate = createDate;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Node && identifier.equals(((Node) other).identifier);
+    }
+
+    @Override
+    public int hashCode() {
+        return identifier.hashCode();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,363 @@
+package housemate.src.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The NumericIndex class keeps, per predicate, the distinct numeric Objects of
+ * its Triples sorted by value, so that a comparison such as “beer_count &lt; 4”
+ * is answered by a binary search and one POS range scan per matching value
+ * instead of a scan of the predicate with a parse per Object. Objects are
+ * numeric if they are decimal numbers, optionally signed, with a fraction or
+ * exponent; each is parsed once, when it first occurs with the predicate.
+ * 
+ * Predicates are indexed on their first range query and maintained from then
+ * on by the writes of the KnowledgeGraph; other predicates cost writes a map
+ * lookup. An index entry is added before the snapshot holding its first
+ * Triple is published, and is not removed when its last Triple is, so the
+ * Objects of an index are a superset of those of every later snapshot; the
+ * POS scan of each Object filters out the ones a snapshot no longer holds.
+ * Once the stale Objects outnumber the live ones the predicate is reindexed
+ * from the current snapshot, and queries against snapshots older than the
+ * index fall back to a scan. The Objects of a predicate are kept in sorted runs
+ * of decreasing size, and an added Object is merged into the smaller runs
+ * like a binary counter, so a write takes amortized logarithmic time and a
+ * query merges the matches of a logarithmic number of runs. A snapshot with
+ * new contents is indexed again for the same predicates (see reindex).
+ * 
+ * Writers must be serialized. Readers do not lock.
+ */
+final class NumericIndex {
+    private static final Pattern NUMBER = Pattern.compile("[+-]?(\\d+\\.?\\d*|\\.\\d+)([eE][+-]?\\d+)?");
+
+    /**
+     * Node dictionary the Object ids belong to.
+     */
+    private final TermDictionary nodeDictionary;
+
+    private final Map<Integer, Values> predicates = new ConcurrentHashMap<Integer, Values>();
+
+    /**
+     * @param nodeDictionary node dictionary of the current snapshot
+     */
+    NumericIndex(TermDictionary nodeDictionary) {
+        this.nodeDictionary = nodeDictionary;
+    }
+
+    /**
+     * @param term
+     * @return the value of a numeric term, or NaN if the term is not a number.
+     */
+    static double valueOf(String term) {
+        return NUMBER.matcher(term).matches() ? Double.parseDouble(term) : Double.NaN;
+    }
+
+    /**
+     * @param predicate
+     * @return true if the predicate is indexed.
+     */
+    boolean isIndexed(int predicate) {
+        return predicates.containsKey(predicate);
+    }
+
+    /**
+     * Index the predicates of this index again in a snapshot replacing the
+     * current one, e.g. a loaded or bulk imported one, looking them up by name
+     * if its dictionaries differ.
+     * 
+     * @param previous snapshot the index was maintained for
+     * @param snapshot the new current snapshot
+     * @return
+     */
+    NumericIndex reindex(GraphSnapshot previous, GraphSnapshot snapshot) {
+        NumericIndex index = new NumericIndex(snapshot.getNodeDictionary());
+        for (Integer predicate : predicates.keySet()) {
+            int id = snapshot.getPredicateDictionary() == previous.getPredicateDictionary() ? predicate
+                    : snapshot.getPredicateDictionary().lookup(previous.getPredicateDictionary().decode(predicate));
+            if (id >= 0) {
+                index.index(snapshot, id);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Index the numeric Objects of a predicate in the given snapshot, which
+     * must be the current one.
+     * 
+     * @param snapshot
+     * @param predicate
+     */
+    void index(GraphSnapshot snapshot, int predicate) {
+        predicates.put(predicate, Values.of(snapshot, predicate));
+    }
+
+    /**
+     * Record a Triple about to be added. Called before publishing the
+     * snapshot reflecting the write.
+     * 
+     * @param predicate
+     * @param object
+     */
+    void added(int predicate, int object) {
+        Values values = predicates.get(predicate);
+        if (values != null) {
+            double value = valueOf(nodeDictionary.decode(object));
+            if (!Double.isNaN(value) && !values.contains(value, object)) {
+                predicates.put(predicate, values.insert(value, object));
+            }
+        }
+    }
+
+    /**
+     * Record a removed Triple. Called after publishing the snapshot
+     * reflecting the write.
+     * 
+     * @param successor snapshot reflecting the write
+     * @param predicate
+     * @param object
+     */
+    void removed(GraphSnapshot successor, int predicate, int object) {
+        Values values = predicates.get(predicate);
+        if (values == null || successor.scan(-1, predicate, object).remaining() > 0
+                || Double.isNaN(valueOf(nodeDictionary.decode(object)))) {
+            return;
+        }
+        values.stale++;
+        if (values.stale > values.size / 2) {
+            predicates.put(predicate, Values.of(successor, predicate));
+        }
+    }
+
+    /**
+     * Collect the numeric Objects of a predicate satisfying a comparison.
+     * 
+     * @param snapshot
+     * @param predicate
+     * @param range
+     * @return the Object ids in ascending order of value, which may include
+     *         Objects the snapshot no longer holds with the predicate, or null
+     *         if the predicate is not indexed for the snapshot.
+     */
+    int[] objects(GraphSnapshot snapshot, int predicate, NumericRange range) {
+        Values values = predicates.get(predicate);
+        if (values == null || snapshot.getNodeDictionary() != nodeDictionary
+                || snapshot.getVersion() < values.version) {
+            return null;
+        }
+        Run matches = Run.EMPTY;
+        for (Run run : values.runs) {
+            matches = Run.merge(matches, run.slice(range));
+        }
+        return matches.objects;
+    }
+
+    /**
+     * Collect the numeric Objects of a predicate satisfying a comparison by a
+     * scan of the predicate, for snapshots the index does not cover.
+     * 
+     * @param snapshot
+     * @param predicate
+     * @param range
+     * @return the Object ids in ascending order of value.
+     */
+    static int[] scan(GraphSnapshot snapshot, int predicate, NumericRange range) {
+        Run run = Values.of(snapshot, predicate).runs[0];
+        int size = 0;
+        int[] result = new int[run.objects.length];
+        for (int i = 0; i < run.objects.length; i++) {
+            if (range.contains(run.values[i])) {
+                result[size++] = run.objects[i];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Distinct numeric Objects of one predicate in sorted runs. Replaced as a
+     * whole by every change except the stale count.
+     */
+    private static final class Values {
+        /**
+         * Runs in decreasing order of size.
+         */
+        private final Run[] runs;
+
+        /**
+         * Number of Objects in the runs.
+         */
+        private final int size;
+
+        /**
+         * Version of the snapshot the Objects were first collected from.
+         */
+        private final long version;
+
+        /**
+         * Estimated number of Objects no longer held with the predicate.
+         */
+        private int stale;
+
+        private Values(Run[] runs, int size, long version, int stale) {
+            this.runs = runs;
+            this.size = size;
+            this.version = version;
+            this.stale = stale;
+        }
+
+        static Values of(GraphSnapshot snapshot, int predicate) {
+            TermDictionary dictionary = snapshot.getNodeDictionary();
+            IndexScan scan = snapshot.scan(-1, predicate, -1);
+            List<Integer> objects = new ArrayList<Integer>();
+            final Map<Integer, Double> parsed = new HashMap<Integer, Double>();
+            int previous = -1;
+            while (scan.next()) {
+                int object = scan.object();
+                if (object != previous) {
+                    previous = object;
+                    double value = valueOf(dictionary.decode(object));
+                    if (!Double.isNaN(value)) {
+                        objects.add(object);
+                        parsed.put(object, value);
+                    }
+                }
+            }
+            Collections.sort(objects, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    int order = Double.compare(parsed.get(first), parsed.get(second));
+                    return order != 0 ? order : Integer.compare(first, second);
+                }
+            });
+            double[] values = new double[objects.size()];
+            int[] ids = new int[objects.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = objects.get(i);
+                values[i] = parsed.get(ids[i]);
+            }
+            return new Values(new Run[] { new Run(values, ids) }, ids.length, snapshot.getVersion(), 0);
+        }
+
+        /**
+         * @return true if the given Object is indexed.
+         */
+        boolean contains(double value, int object) {
+            for (Run run : runs) {
+                if (run.contains(value, object)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return a copy with the given Object added, merging the runs not
+         *         larger than the new one into it.
+         */
+        Values insert(double value, int object) {
+            Run added = new Run(new double[] { value }, new int[] { object });
+            int count = runs.length;
+            while (count > 0 && runs[count - 1].objects.length <= added.objects.length) {
+                added = Run.merge(runs[count - 1], added);
+                count--;
+            }
+            Run[] next = Arrays.copyOf(runs, count + 1);
+            next[count] = added;
+            return new Values(next, size + 1, version, stale);
+        }
+    }
+
+    /**
+     * Numeric Objects sorted by value and id.
+     */
+    private static final class Run {
+        static final Run EMPTY = new Run(new double[0], new int[0]);
+
+        private final double[] values;
+        private final int[] objects;
+
+        Run(double[] values, int[] objects) {
+            this.values = values;
+            this.objects = objects;
+        }
+
+        /**
+         * @return the index of the first value not below the given one.
+         */
+        int lowerBound(double value) {
+            int low = 0;
+            int high = values.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (values[middle] < value) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        boolean contains(double value, int object) {
+            for (int i = lowerBound(value); i < values.length && values[i] == value; i++) {
+                if (objects[i] == object) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the Objects whose value satisfies the comparison.
+         */
+        Run slice(NumericRange range) {
+            int from = range.isBoundedBelow() ? lowerBound(range.getValue()) : 0;
+            while (from < values.length && !range.contains(values[from]) && values[from] <= range.getValue()) {
+                from++;
+            }
+            int to = from;
+            while (to < values.length && range.contains(values[to])) {
+                to++;
+            }
+            return from == to ? EMPTY
+                    : new Run(Arrays.copyOfRange(values, from, to), Arrays.copyOfRange(objects, from, to));
+        }
+
+        /**
+         * @return the Objects of both runs, sorted by value and id.
+         */
+        static Run merge(Run left, Run right) {
+            if (left.objects.length == 0) {
+                return right;
+            }
+            if (right.objects.length == 0) {
+                return left;
+            }
+            int size = left.objects.length + right.objects.length;
+            double[] values = new double[size];
+            int[] objects = new int[size];
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k < size; k++) {
+                boolean fromLeft = j == right.objects.length || i < left.objects.length
+                        && (left.values[i] < right.values[j]
+                                || left.values[i] == right.values[j] && left.objects[i] < right.objects[j]);
+                if (fromLeft) {
+                    values[k] = left.values[i];
+                    objects[k] = left.objects[i++];
+                } else {
+                    values[k] = right.values[j];
+                    objects[k] = right.objects[j++];
+                }
+            }
+            return new Run(values, objects);
+        }
+    }
+}
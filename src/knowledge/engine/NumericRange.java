@@ -0,0 +1,86 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+/**
+ * The NumericRange class is a comparison of numeric Objects with a constant,
+ * such as “&lt; 4” or “&gt;= 25.5”, written in place of the Object term of a
+ * query pattern, e.g. “?fridge beer_count &lt; 4.” or “?thermostat
+ * temperature &gt; 25.5.” It is answered by a range scan of the NumericIndex
+ * of the predicate.
+ */
+final class NumericRange {
+    private final String operator;
+    private final double value;
+
+    private NumericRange(String operator, double value) {
+        this.operator = operator;
+        this.value = value;
+    }
+
+    /**
+     * @param term
+     * @return true if the term is a comparison operator.
+     */
+    static boolean isOperator(String term) {
+        return term.equals("<") || term.equals("<=") || term.equals(">") || term.equals(">=") || term.equals("=");
+    }
+
+    /**
+     * Parse a comparison. Throws QueryEngineException if the operator is
+     * unknown or the value is not a number.
+     * 
+     * @param operator one of &lt;, &lt;=, &gt;, &gt;= and =
+     * @param value
+     * @return
+     * @throws QueryEngineException
+     */
+    static NumericRange parse(String operator, String value) throws QueryEngineException {
+        if (!isOperator(operator)) {
+            throw new QueryEngineException("Unknown comparison operator: " + operator);
+        }
+        double number = NumericIndex.valueOf(value);
+        if (Double.isNaN(number)) {
+            throw new QueryEngineException("Expected a number after " + operator + ": " + value);
+        }
+        return new NumericRange(operator, number);
+    }
+
+    /**
+     * @param number
+     * @return true if the number satisfies the comparison.
+     */
+    boolean contains(double number) {
+        switch (operator) {
+        case "<":
+            return number < value;
+        case "<=":
+            return number <= value;
+        case ">":
+            return number > value;
+        case ">=":
+            return number >= value;
+        default:
+            return number == value;
+        }
+    }
+
+    /**
+     * @return true if no number below the compared value satisfies the
+     *         comparison, so a scan in ascending order may start at it.
+     */
+    boolean isBoundedBelow() {
+        return operator.charAt(0) != '<';
+    }
+
+    double getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        String number = value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value)
+                : Double.toString(value);
+        return operator + " " + number;
+    }
+}
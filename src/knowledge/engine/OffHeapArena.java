@@ -0,0 +1,122 @@
+package housemate.src.knowledge.engine;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The OffHeapArena class allocates the native memory holding the large index
+ * runs and term tables of a KnowledgeGraph kept off heap (see
+ * KnowledgeGraph.enableOffHeap()). Memory is handed out as direct,
+ * little-endian buffers, which BufferRun and MappedTerms read exactly like the
+ * mapped buffers of a loaded snapshot file, so the garbage collector never
+ * scans or copies the keys and terms themselves.
+ * 
+ * Runs and tables are immutable and shared by any number of GraphSnapshots, so
+ * a buffer is never freed explicitly: queries read snapshots without locking
+ * and may still use it. The arena registers every buffer with a Cleaner
+ * instead, which frees it and deducts it from the live bytes after the garbage
+ * collector has found it unreachable. Release therefore depends on the garbage
+ * collector, which may run late when the heap is quiet; superseded buffers
+ * count as live until then, also after KnowledgeGraph.disableOffHeap(). Direct
+ * memory is limited by -XX:MaxDirectMemorySize, which defaults to the maximum
+ * heap size, and an allocation that would exceed it first runs the garbage
+ * collector to release unreachable buffers.
+ */
+final class OffHeapArena {
+    /**
+     * Smallest run, in keys, allocated off heap. Smaller runs are merged away
+     * often and stay on the heap.
+     */
+    static final int MIN_KEYS = 1 << 16;
+
+    /**
+     * Smallest number of terms encoded since a dictionary last moved terms
+     * into the arena that is moved there (see TermDictionary.setArena).
+     */
+    static final int MIN_TERMS = 1 << 12;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Bytes allocated and not yet released.
+     */
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * @param keys
+     * @return true if a run of the given number of keys is allocated from the
+     *         arena.
+     */
+    boolean accepts(int keys) {
+        return keys >= MIN_KEYS && fits(8L * keys);
+    }
+
+    /**
+     * @param bytes
+     * @return true if a single buffer of the given size can be allocated.
+     */
+    boolean fits(long bytes) {
+        return bytes <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param count
+     * @return a zeroed buffer of count longs.
+     */
+    LongBuffer allocateLongs(int count) {
+        return allocate(8L * count).asLongBuffer();
+    }
+
+    /**
+     * @param count
+     * @return a zeroed buffer of count ints.
+     */
+    IntBuffer allocateInts(int count) {
+        return allocate(4L * count).asIntBuffer();
+    }
+
+    /**
+     * @param bytes
+     * @return a zeroed buffer of the given number of bytes.
+     */
+    ByteBuffer allocate(long bytes) {
+        if (!fits(bytes)) {
+            throw new IllegalArgumentException("Cannot allocate " + bytes + " bytes in one buffer");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+        liveBytes.addAndGet(bytes);
+        CLEANER.register(buffer, new Release(liveBytes, bytes));
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes allocated and not yet released, including
+     *         unreachable buffers the garbage collector has not found yet.
+     */
+    long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * Deducts a released buffer from the live bytes. Holds no reference to the
+     * buffer, so that it can become unreachable.
+     */
+    private static class Release implements Runnable {
+        private final AtomicLong liveBytes;
+        private final long bytes;
+
+        Release(AtomicLong liveBytes, long bytes) {
+            this.liveBytes = liveBytes;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void run() {
+            liveBytes.addAndGet(-bytes);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The orderings in which the KnowledgeGraph keeps its Triples sorted. Each
+ * ordering maps a Subject, Predicate, Object id combination to the (first,
+ * second, third) key columns of a PermutationIndex and back. Together the three
+ * orderings answer every triple pattern with a single range scan, since every
+ * combination of bound positions is a key prefix of one of them.
+ */
+enum Permutation {
+    SPO {
+        int first(int subject, int predicate, int object) {
+            return subject;
+        }
+
+        int second(int subject, int predicate, int object) {
+            return predicate;
+        }
+
+        int third(int subject, int predicate, int object) {
+            return object;
+        }
+
+        int subject(int first, int second, int third) {
+            return first;
+        }
+
+        int predicate(int first, int second, int third) {
+            return second;
+        }
+
+        int object(int first, int second, int third) {
+            return third;
+        }
+    },
+    POS {
+        int first(int subject, int predicate, int object) {
+            return predicate;
+        }
+
+        int second(int subject, int predicate, int object) {
+            return object;
+        }
+
+        int third(int subject, int predicate, int object) {
+            return subject;
+        }
+
+        int subject(int first, int second, int third) {
+            return third;
+        }
+
+        int predicate(int first, int second, int third) {
+            return first;
+        }
+
+        int object(int first, int second, int third) {
+            return second;
+        }
+    },
+    OSP {
+        int first(int subject, int predicate, int object) {
+            return object;
+        }
+
+        int second(int subject, int predicate, int object) {
+            return subject;
+        }
+
+        int third(int subject, int predicate, int object) {
+            return predicate;
+        }
+
+        int subject(int first, int second, int third) {
+            return second;
+        }
+
+        int predicate(int first, int second, int third) {
+            return third;
+        }
+
+        int object(int first, int second, int third) {
+            return first;
+        }
+    };
+
+    abstract int first(int subject, int predicate, int object);
+
+    abstract int second(int subject, int predicate, int object);
+
+    abstract int third(int subject, int predicate, int object);
+
+    abstract int subject(int first, int second, int third);
+
+    abstract int predicate(int first, int second, int third);
+
+    abstract int object(int first, int second, int third);
+
+    /**
+     * Return the ordering whose key prefix covers the bound positions of a triple
+     * pattern. Unbound positions are given as -1.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    static Permutation forPattern(int subject, int predicate, int object) {
+        if (subject >= 0) {
+            return (predicate < 0 && object >= 0) ? OSP : SPO;
+        }
+        if (predicate >= 0) {
+            return POS;
+        }
+        return object >= 0 ? OSP : SPO;
+    }
+
+    /**
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the number of bound positions in the triple pattern.
+     */
+    static int boundCount(int subject, int predicate, int object) {
+        return (subject >= 0 ? 1 : 0) + (predicate >= 0 ? 1 : 0) + (object >= 0 ? 1 : 0);
+    }
+}
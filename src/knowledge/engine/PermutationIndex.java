@@ -0,0 +1,382 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+
+/**
+ * The PermutationIndex class keeps every Triple of the KnowledgeGraph sorted in
+ * one Permutation ordering, so that any triple pattern whose bound positions
+ * form a key prefix of the ordering is answered by a range scan.
+ * 
+ * Keys are held in a small number of immutable sorted IndexRuns of
+ * geometrically decreasing size. A new key is added as a run of its own and
+ * merged into its predecessors while they are no more than twice its size, so
+ * each key is copied O(log n) times over the life of the index and a lookup
+ * binary searches at most O(log n) runs.
+ * 
+ * Removed keys are recorded the same way in a second family of runs. A key is
+ * present if it occurs more often among the added runs than among the removed
+ * ones, which lets a removed key be added again without touching older runs,
+ * and keeps the size of any key range exact: added minus removed keys. Once
+ * removed keys make up a quarter of all keys the index is compacted into a
+ * single run.
+ * 
+ * A BloomFilter answers most lookups of absent keys without searching the
+ * runs: the SPO index filters full keys, for fully bound patterns, and the POS
+ * and OSP indexes filter their two column key prefix, for patterns binding the
+ * predicate and object or the object and subject. The filter is rebuilt from
+ * the live keys when the index is compacted, which drops the bits of removed
+ * keys, and when the index grows beyond the capacity of the filter.
+ * 
+ * A PermutationIndex is itself immutable: updates return a new index sharing
+ * the untouched runs, so a GraphSnapshot can hand an index to any number of
+ * readers while writers build its successor.
+ * 
+ * An index given an OffHeapArena allocates its large runs from the arena, so
+ * the bulk of its keys lives outside the heap; small runs, the run family
+ * arrays and the filter stay on the heap. Successors inherit the arena.
+ */
+final class PermutationIndex {
+    private final Permutation permutation;
+
+    /**
+     * Sorted runs of added keys, oldest (and largest) first. A key occurs at
+     * most once more here than in removed.
+     */
+    private final IndexRun[] runs;
+
+    /**
+     * Sorted runs of removed keys, oldest (and largest) first. Every removed key
+     * occurs in runs.
+     */
+    private final IndexRun[] removed;
+
+    private final int size;
+
+    /**
+     * Total number of keys in removed.
+     */
+    private final int removedCount;
+
+    /**
+     * Filter over the keys of runs, shared with the predecessors of the index.
+     */
+    private final BloomFilter filter;
+
+    /**
+     * Arena for large runs, or null to keep every run on the heap.
+     */
+    private final OffHeapArena arena;
+
+    PermutationIndex(Permutation permutation) {
+        this(permutation, new IndexRun[0], new IndexRun[0], 0, 0, new BloomFilter(0), null);
+    }
+
+    /**
+     * @param permutation
+     * @param run         sorted, duplicate free keys, e.g. loaded from a snapshot
+     *                    file
+     */
+    PermutationIndex(Permutation permutation, IndexRun run) {
+        this(permutation, run, filterOf(permutation, run), null);
+    }
+
+    /**
+     * @param permutation
+     * @param run         sorted, duplicate free keys
+     * @param filter      filter holding every key of the run
+     * @param arena       arena for large runs, or null
+     */
+    PermutationIndex(Permutation permutation, IndexRun run, BloomFilter filter, OffHeapArena arena) {
+        this(permutation, run.size() == 0 ? new IndexRun[0] : new IndexRun[] { run }, new IndexRun[0], run.size(),
+                0, filter, arena);
+    }
+
+    private PermutationIndex(Permutation permutation, IndexRun[] runs, IndexRun[] removed, int size,
+            int removedCount, BloomFilter filter, OffHeapArena arena) {
+        this.permutation = permutation;
+        this.runs = runs;
+        this.removed = removed;
+        this.size = size;
+        this.removedCount = removedCount;
+        this.filter = filter;
+        this.arena = arena;
+    }
+
+    Permutation getPermutation() {
+        return permutation;
+    }
+
+    /**
+     * @return the number of Triples in the index.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return an index that also holds the given Triple, which must not be
+     * present yet.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    PermutationIndex insert(int subject, int predicate, int object) {
+        IndexRun key = key(subject, predicate, object);
+        if (size + 1 > filter.getCapacity()) {
+            return new PermutationIndex(permutation, push(runs, key, arena), removed, size + 1, removedCount, filter,
+                    arena).compact();
+        }
+        filter.add(filterHash(key.high(0), key.low(0)));
+        return new PermutationIndex(permutation, push(runs, key, arena), removed, size + 1, removedCount, filter,
+                arena);
+    }
+
+    /**
+     * Return an index without the given Triple, which must be present.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return
+     */
+    PermutationIndex remove(int subject, int predicate, int object) {
+        PermutationIndex index = new PermutationIndex(permutation, runs,
+                push(removed, key(subject, predicate, object), arena), size - 1, removedCount + 1, filter, arena);
+        return 4L * index.removedCount > index.size + index.removedCount ? index.compact() : index;
+    }
+
+    /**
+     * Return an index holding the union of this index and the given run as a
+     * single run.
+     * 
+     * @param run
+     * @return
+     */
+    PermutationIndex union(IndexRun run) {
+        IndexRun[] base = removedCount > 0 ? compact().runs : runs;
+        IndexRun union = base.length == 0 && arena != null ? IndexRun.copyOf(run, arena) : run;
+        for (int i = base.length - 1; i >= 0; i--) {
+            union = IndexRun.merge(base[i], union, true, arena);
+        }
+        if (removedCount > 0 || union.size() > filter.getCapacity()) {
+            return new PermutationIndex(permutation, union, filterOf(permutation, union), arena);
+        }
+        for (int i = 0; i < run.size(); i++) {
+            filter.add(filterHash(run.high(i), run.low(i)));
+        }
+        return new PermutationIndex(permutation, union, filter, arena);
+    }
+
+    /**
+     * @return an index holding the same keys in a single run without removed
+     *         keys, with a new filter.
+     */
+    PermutationIndex compact() {
+        IndexRun.Builder compacted = new IndexRun.Builder(size, arena);
+        IndexScan scan = scan(0, 0, 0, 0);
+        while (scan.next()) {
+            compacted.add(scan.high(), scan.low());
+        }
+        IndexRun run = compacted.build();
+        return new PermutationIndex(permutation, run, filterOf(permutation, run), arena);
+    }
+
+    /**
+     * Return an index holding the same runs that allocates its later large runs
+     * from the given arena. Existing runs stay where they are until they are
+     * merged away; compact the index to move all keys at once.
+     * 
+     * @param arena arena for large runs, or null to build runs on the heap
+     * @return
+     */
+    PermutationIndex withArena(OffHeapArena arena) {
+        return new PermutationIndex(permutation, runs, removed, size, removedCount, filter, arena);
+    }
+
+    /**
+     * @return the number of removed keys not yet compacted away.
+     */
+    int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @return the filter over the keys of the index.
+     */
+    BloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return a filter holding the keys of the given run, sized for the run to
+     *         grow by half.
+     */
+    private static BloomFilter filterOf(Permutation permutation, IndexRun run) {
+        BloomFilter filter = new BloomFilter(run.size() + run.size() / 2);
+        for (int i = 0; i < run.size(); i++) {
+            filter.add(filterHash(permutation, run.high(i), run.low(i)));
+        }
+        return filter;
+    }
+
+    private long filterHash(long high, int low) {
+        return filterHash(permutation, high, low);
+    }
+
+    /**
+     * @return the filter hash of a key: the full key for SPO and the two column
+     *         prefix for the other orderings.
+     */
+    private static long filterHash(Permutation permutation, long high, int low) {
+        return permutation == Permutation.SPO ? BloomFilter.hash(high, low) : BloomFilter.hash(high);
+    }
+
+    /**
+     * @return true if a pattern with the given number of bound key columns is
+     *         looked up in the filter.
+     */
+    private boolean isFiltered(int bound) {
+        return bound == 3 || bound == 2 && permutation != Permutation.SPO;
+    }
+
+    private IndexRun key(int subject, int predicate, int object) {
+        return IndexRun.of(
+                IndexRun.high(permutation.first(subject, predicate, object),
+                        permutation.second(subject, predicate, object)),
+                permutation.third(subject, predicate, object));
+    }
+
+    /**
+     * Add a single key run to a family of runs, merging it into its
+     * predecessors while they are no more than twice its size. Repeated keys
+     * are kept.
+     */
+    private static IndexRun[] push(IndexRun[] family, IndexRun key, OffHeapArena arena) {
+        int count = family.length;
+        IndexRun[] merged = Arrays.copyOf(family, count + 1);
+        merged[count++] = key;
+        while (count > 1 && merged[count - 2].size() <= 2 * merged[count - 1].size()) {
+            merged[count - 2] = IndexRun.merge(merged[count - 2], merged[count - 1], false, arena);
+            count--;
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    /**
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return true if the index holds the given Triple.
+     */
+    boolean contains(int subject, int predicate, int object) {
+        long high = IndexRun.high(permutation.first(subject, predicate, object),
+                permutation.second(subject, predicate, object));
+        int low = permutation.third(subject, predicate, object);
+        if (!filter.mightContain(filterHash(high, low))) {
+            return false;
+        }
+        int added = count(runs, high, low);
+        if (added == 0) {
+            filter.recordFalsePositive();
+        }
+        return added > count(removed, high, low);
+    }
+
+    /**
+     * A key masked by a removed run passed the filter rightly, since the filter
+     * holds every key of the added runs, so it is no false positive.
+     * 
+     * @return true if no added run holds a key in the given ranges.
+     */
+    private boolean isAbsent(int[] from, int[] to) {
+        for (int i = 0; i < runs.length; i++) {
+            if (from[i] < to[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int count(IndexRun[] family, long high, int low) {
+        int count = 0;
+        for (IndexRun run : family) {
+            for (int position = run.lowerBound(high, low); position < run.size() && run.high(position) == high
+                    && run.low(position) == low; position++) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Open a scan over the Triples whose leading key columns equal the given ids.
+     * Only the first bound columns of the ordering are used.
+     * 
+     * @param first
+     * @param second
+     * @param third
+     * @param bound  number of leading key columns that are bound (0 to 3)
+     * @return
+     */
+    IndexScan scan(int first, int second, int third, int bound) {
+        IndexRun[] all = runs;
+        if (removed.length > 0) {
+            all = Arrays.copyOf(runs, runs.length + removed.length);
+            System.arraycopy(removed, 0, all, runs.length, removed.length);
+        }
+        int[] from = new int[all.length];
+        int[] to = new int[all.length];
+        boolean filtered = isFiltered(bound);
+        if (filtered && !filter.mightContain(filterHash(IndexRun.high(first, second), third))) {
+            return new IndexScan(permutation, all, runs.length, from, to);
+        }
+        for (int i = 0; i < all.length; i++) {
+            IndexRun run = all[i];
+            switch (bound) {
+            case 0:
+                from[i] = 0;
+                to[i] = run.size();
+                break;
+            case 1:
+                from[i] = run.lowerBound(IndexRun.high(first, 0), Integer.MIN_VALUE);
+                to[i] = run.lowerBound(IndexRun.high(first + 1, 0), Integer.MIN_VALUE);
+                break;
+            case 2:
+                from[i] = run.lowerBound(IndexRun.high(first, second), Integer.MIN_VALUE);
+                to[i] = run.lowerBound(IndexRun.high(first, second) + 1, Integer.MIN_VALUE);
+                break;
+            default:
+                from[i] = run.lowerBound(IndexRun.high(first, second), third);
+                to[i] = run.lowerBound(IndexRun.high(first, second), third + 1);
+                break;
+            }
+        }
+        if (filtered && isAbsent(from, to)) {
+            filter.recordFalsePositive();
+        }
+        return new IndexScan(permutation, all, runs.length, from, to);
+    }
+
+    /**
+     * Open a scan like scan(first, second, third, bound) that starts just after
+     * the given key, so that a scan can be resumed in a later index.
+     * 
+     * @param first
+     * @param second
+     * @param third
+     * @param bound     number of leading key columns that are bound (0 to 3)
+     * @param afterHigh packed first and second column of the last key seen
+     * @param afterLow  third column of the last key seen
+     * @return
+     */
+    IndexScan scanAfter(int first, int second, int third, int bound, long afterHigh, int afterLow) {
+        IndexScan scan = scan(first, second, third, bound);
+        for (int i = 0; i < runs.length + removed.length; i++) {
+            IndexRun run = i < runs.length ? runs[i] : removed[i - runs.length];
+            scan.advance(i, run.lowerBound(afterHigh, afterLow + 1));
+        }
+        return scan;
+    }
+}
@@ -9,6 +9,12 @@ public class Predicate {
      */
     private String identifier;
 
+    /**
+     * Dense KnowledgeGraph dictionary id of the Predicate, or -1 if the
+     * Predicate was not issued by a KnowledgeGraph.
+     */
+    private int id;
+
     /**
      * Unix time stamp when predicate was created.
      */
@@ -21,6 +27,13 @@ public class Predicate {
         return identifier;
     }
 
+    /**
+     * @return the KnowledgeGraph dictionary id of the Predicate.
+     */
+    public int getId() {
+        return id;
+    }
+
     /**
      * @return the Predicate creation date.
      */
@@ -29,7 +42,22 @@ public class Predicate {
     }
 
     public Predicate(String identifier) {
+        this(-1, identifier, Instant.now().getEpochSecond());
+    }
+
+    Predicate(int id, String identifier, long createDate) {
+        this.id = id;
         this.identifier = identifier;
-        this.createDate = Instant.now().getEpochSecond();
+        this.createDate = createDate;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Predicate && identifier.equals(((Predicate) other).identifier);
+    }
+
+    @Override
+    public int hashCode() {
+        return identifier.hashCode();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,138 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+
+/**
+ * The PrefixFilter class restricts positions of a triple pattern to the
+ * identifiers starting with a prefix, written as a term ending in “*”, e.g.
+ * “house1:*” for every Node under house1. The matching ids come from the
+ * sorted view of the dictionary (see TermDictionary.withPrefix), and the
+ * pattern is answered by one index range scan per id of its most selective
+ * prefix term, in term order; the ids of any other prefix term are checked
+ * for each Triple scanned. Ids are handed out in insertion order, so the
+ * Triples under a prefix do not form a single key range of the permutation
+ * indexes.
+ */
+final class PrefixFilter {
+    /**
+     * Ids matching the prefix at each position, sorted by id, or null if the
+     * position holds no prefix.
+     */
+    private final int[][] matches;
+
+    /**
+     * Position whose ids are scanned.
+     */
+    private final int position;
+
+    /**
+     * Ids matching the prefix at the scanned position, in term order.
+     */
+    private final int[] ids;
+
+    private PrefixFilter(int[][] matches, int position, int[] ids) {
+        this.matches = matches;
+        this.position = position;
+        this.ids = ids;
+    }
+
+    /**
+     * @param term
+     * @return true if the term is a prefix ending in “*”.
+     */
+    static boolean isPrefix(String term) {
+        return term.length() > 1 && term.charAt(term.length() - 1) == '*' && term.charAt(0) != '?';
+    }
+
+    /**
+     * Resolve the prefix terms of a triple pattern against the dictionaries of
+     * the given snapshot.
+     * 
+     * @param snapshot
+     * @param terms    Subject, Predicate and Object term
+     * @return the filter, or null if the pattern holds no prefix term.
+     */
+    static PrefixFilter of(GraphSnapshot snapshot, String[] terms) {
+        int[][] matches = new int[3][];
+        int position = -1;
+        for (int i = 0; i < 3; i++) {
+            if (isPrefix(terms[i])) {
+                TermDictionary dictionary = i == 1 ? snapshot.getPredicateDictionary()
+                        : snapshot.getNodeDictionary();
+                matches[i] = dictionary.withPrefix(terms[i].substring(0, terms[i].length() - 1));
+                if (position < 0 || matches[i].length < matches[position].length) {
+                    position = i;
+                }
+            }
+        }
+        if (position < 0) {
+            return null;
+        }
+        int[] ids = matches[position];
+        for (int i = 0; i < 3; i++) {
+            if (matches[i] != null) {
+                matches[i] = matches[i].clone();
+                Arrays.sort(matches[i]);
+            }
+        }
+        return new PrefixFilter(matches, position, ids);
+    }
+
+    /**
+     * @return the position whose ids are scanned.
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return true if a position that is not scanned holds a prefix, so the
+     *         Triples of a scan must be checked by matches.
+     */
+    boolean isFiltering() {
+        for (int i = 0; i < 3; i++) {
+            if (i != position && matches[i] != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of scans covering the pattern.
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Open the scan of the given index, with its id substituted at the scanned
+     * position.
+     * 
+     * @param snapshot
+     * @param subject   pattern id, or -1 if unbound
+     * @param predicate pattern id, or -1 if unbound
+     * @param object    pattern id, or -1 if unbound
+     * @param index
+     * @return
+     */
+    IndexScan scan(GraphSnapshot snapshot, int subject, int predicate, int object, int index) {
+        int id = ids[index];
+        return snapshot.scan(position == 0 ? id : subject, position == 1 ? id : predicate,
+                position == 2 ? id : object);
+    }
+
+    /**
+     * @param scan
+     * @return true if the current Triple of a scan matches the prefixes at the
+     *         positions that are not scanned.
+     */
+    boolean matches(IndexScan scan) {
+        return matches(0, scan.subject()) && matches(1, scan.predicate()) && matches(2, scan.object());
+    }
+
+    private boolean matches(int position, int id) {
+        return position == this.position || matches[position] == null
+                || Arrays.binarySearch(matches[position], id) >= 0;
+    }
+}
@@ -0,0 +1,244 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The PreparedQuery class is a triple pattern parsed once and executed many
+ * times with different arguments, e.g.
+ * 
+ * <pre>
+ * PreparedQuery query = knowledgeGraph.prepareQuery("? is_in $room");
+ * Set&lt;Triple&gt; occupants = query.execute("house1:kitchen");
+ * </pre>
+ * 
+ * Each term is a constant, the wildcard “?” or a parameter “$name”; a
+ * parameter occurring twice takes the same argument. Constants are resolved
+ * to dictionary ids when the query is first executed and the ids are kept
+ * until a snapshot with other dictionaries is loaded, so an execution only
+ * looks up its arguments. As with KnowledgeGraph.executeQuery, terms and
+ * arguments are matched exactly as given and an argument of “?” leaves its
+ * position unbound.
+ * 
+ * A PreparedQuery is immutable apart from its resolved ids and may be
+ * executed by any number of threads.
+ */
+public final class PreparedQuery {
+    private static final String WILDCARD = "?";
+    private static final int UNKNOWN = -2;
+
+    private final KnowledgeGraph knowledgeGraph;
+
+    /**
+     * Subject, Predicate and Object term.
+     */
+    private final String[] terms;
+
+    /**
+     * Parameter index of each position, or -1 for constants and wildcards.
+     */
+    private final int[] parameters = { -1, -1, -1 };
+
+    private final List<String> parameterNames;
+
+    /**
+     * Ids of the constant terms and the dictionaries they were resolved with,
+     * or null before the first execution.
+     */
+    private volatile Resolution resolution;
+
+    private PreparedQuery(KnowledgeGraph knowledgeGraph, String[] terms, List<String> parameterNames) {
+        this.knowledgeGraph = knowledgeGraph;
+        this.terms = terms;
+        this.parameterNames = parameterNames;
+        for (int position = 0; position < 3; position++) {
+            if (isParameter(terms[position])) {
+                parameters[position] = parameterNames.indexOf(terms[position].substring(1));
+            }
+        }
+    }
+
+    /**
+     * Parse a single triple pattern, optionally ending in a period. Throws
+     * QueryEngineException if the pattern does not hold exactly three terms.
+     * 
+     * @param knowledgeGraph
+     * @param pattern
+     * @return
+     * @throws QueryEngineException
+     */
+    static PreparedQuery parse(KnowledgeGraph knowledgeGraph, String pattern) throws QueryEngineException {
+        String text = pattern.trim();
+        if (text.endsWith(".")) {
+            text = text.substring(0, text.length() - 1).trim();
+        }
+        String[] terms = text.split("\\s+");
+        if (terms.length != 3) {
+            throw new QueryEngineException("Malformed query pattern, expected subject, predicate and object: "
+                    + pattern);
+        }
+        List<String> parameterNames = new ArrayList<String>();
+        for (String term : terms) {
+            if (isParameter(term) && !parameterNames.contains(term.substring(1))) {
+                parameterNames.add(term.substring(1));
+            }
+        }
+        return new PreparedQuery(knowledgeGraph, terms, Collections.unmodifiableList(parameterNames));
+    }
+
+    /**
+     * @return the parameter names, without the leading “$”, in the order
+     *         arguments are passed.
+     */
+    public List<String> getParameters() {
+        return parameterNames;
+    }
+
+    /**
+     * Execute the query with the given arguments, one per parameter in the
+     * order of getParameters(). Results come from the result cache of the
+     * KnowledgeGraph if one is enabled. Throws IllegalArgumentException if the
+     * number of arguments does not match.
+     * 
+     * @param arguments
+     * @return the matching Triples, or null if there are none.
+     */
+    public Set<Triple> execute(String... arguments) {
+        GraphSnapshot snapshot = knowledgeGraph.getSnapshot();
+        int[] ids = bind(snapshot, arguments);
+        return ids == null ? null : knowledgeGraph.executeQuery(snapshot, ids[0], ids[1], ids[2]);
+    }
+
+    /**
+     * Count the Triples matching the query with the given arguments from the
+     * index range sizes, without visiting them. See KnowledgeGraph.count.
+     * 
+     * @param arguments
+     * @return
+     */
+    public int count(String... arguments) {
+        GraphSnapshot snapshot = knowledgeGraph.getSnapshot();
+        int[] ids = bind(snapshot, arguments);
+        return ids == null ? 0 : snapshot.scan(ids[0], ids[1], ids[2]).remaining();
+    }
+
+    /**
+     * @param arguments
+     * @return true if a Triple matches the query with the given arguments.
+     */
+    public boolean exists(String... arguments) {
+        return count(arguments) > 0;
+    }
+
+    /**
+     * Open a cursor over the Triples matching the query with the given
+     * arguments. See KnowledgeGraph.openCursor(String, String, String, long,
+     * long).
+     * 
+     * @param offset    number of matching Triples to skip
+     * @param limit     maximum number of Triples to return
+     * @param arguments
+     * @return
+     */
+    public QueryCursor openCursor(long offset, long limit, String... arguments) {
+        GraphSnapshot snapshot = knowledgeGraph.getSnapshot();
+        int[] ids = bind(snapshot, arguments);
+        if (ids == null) {
+            return new QueryCursor(snapshot, null, -1, -1, -1, limit);
+        }
+        QueryCursor cursor = new QueryCursor(snapshot, snapshot.scan(ids[0], ids[1], ids[2]), ids[0], ids[1],
+                ids[2], limit);
+        cursor.skip(offset);
+        return cursor;
+    }
+
+    /**
+     * Resolve the pattern with the given arguments to ids of the given snapshot.
+     * 
+     * @return the Subject, Predicate and Object id, -1 where unbound, or null
+     *         if a term is not in the dictionaries.
+     */
+    private int[] bind(GraphSnapshot snapshot, String[] arguments) {
+        if (arguments.length != parameterNames.size()) {
+            throw new IllegalArgumentException("Expected " + parameterNames.size() + " arguments for "
+                    + parameterNames + ", got " + arguments.length);
+        }
+        int[] ids = resolve(snapshot).ids.clone();
+        for (int position = 0; position < 3; position++) {
+            String term = null;
+            if (parameters[position] >= 0) {
+                term = arguments[parameters[position]];
+            } else if (ids[position] == UNKNOWN) {
+                term = terms[position];
+            }
+            if (term != null && !WILDCARD.equals(term)) {
+                ids[position] = dictionary(snapshot, position).lookup(term);
+                if (ids[position] < 0) {
+                    return null;
+                }
+            } else if (term != null) {
+                ids[position] = -1;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the constant ids resolved against the dictionaries of the given
+     *         snapshot, resolving them again if they changed.
+     */
+    private Resolution resolve(GraphSnapshot snapshot) {
+        Resolution current = resolution;
+        if (current != null && current.nodeDictionary == snapshot.getNodeDictionary()
+                && current.predicateDictionary == snapshot.getPredicateDictionary()) {
+            return current;
+        }
+        int[] ids = new int[3];
+        for (int position = 0; position < 3; position++) {
+            String term = terms[position];
+            if (parameters[position] >= 0 || WILDCARD.equals(term)) {
+                ids[position] = -1;
+            } else {
+                int id = dictionary(snapshot, position).lookup(term);
+                ids[position] = id < 0 ? UNKNOWN : id;
+            }
+        }
+        current = new Resolution(snapshot.getNodeDictionary(), snapshot.getPredicateDictionary(), ids);
+        resolution = current;
+        return current;
+    }
+
+    private static TermDictionary dictionary(GraphSnapshot snapshot, int position) {
+        return position == 1 ? snapshot.getPredicateDictionary() : snapshot.getNodeDictionary();
+    }
+
+    private static boolean isParameter(String term) {
+        return term.length() > 1 && term.charAt(0) == '$';
+    }
+
+    @Override
+    public String toString() {
+        return terms[0] + " " + terms[1] + " " + terms[2] + ".";
+    }
+
+    /**
+     * Ids of the constant terms, -1 for parameters and wildcards and UNKNOWN
+     * for constants not yet in the dictionaries, which are looked up again on
+     * every execution.
+     */
+    private static final class Resolution {
+        private final TermDictionary nodeDictionary;
+        private final TermDictionary predicateDictionary;
+        private final int[] ids;
+
+        Resolution(TermDictionary nodeDictionary, TermDictionary predicateDictionary, int[] ids) {
+            this.nodeDictionary = nodeDictionary;
+            this.predicateDictionary = predicateDictionary;
+            this.ids = ids;
+        }
+    }
+}
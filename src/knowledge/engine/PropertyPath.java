@@ -0,0 +1,253 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The PropertyPath class is a predicate term matching chains of Triples with
+ * one predicate instead of single Triples:
+ * 
+ * <ul>
+ * <li>“p+” matches a chain of one or more p Triples,</li>
+ * <li>“p*” matches a chain of zero or more, so every Node reaches itself,</li>
+ * <li>“p{n,m}” matches a chain of n to m, and “p{n}” of exactly n.</li>
+ * </ul>
+ * 
+ * For example “house1 contains+ ?device” finds everything contained in a
+ * House, through its Rooms. Chains are followed breadth first from a bound
+ * Subject with SPO scans, or backwards from a bound Object with POS scans.
+ * With neither end bound, chains start at every Node occurring as Subject or
+ * Object of the predicate. For a hot predicate (see
+ * KnowledgeGraph.setHotPredicate) the Nodes reachable from a Subject are kept
+ * in a TransitiveClosure and “p+” and “p*” queries from a bound Subject are
+ * answered from it.
+ */
+final class PropertyPath {
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final String predicate;
+    private final int min;
+    private final int max;
+
+    private PropertyPath(String predicate, int min, int max) {
+        this.predicate = predicate;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @param term
+     * @return true if the predicate term of a pattern is a path.
+     */
+    static boolean isPath(String term) {
+        if (term.length() < 2) {
+            return false;
+        }
+        char last = term.charAt(term.length() - 1);
+        return last == '+' || last == '*' || last == '}' && term.indexOf('{') > 0;
+    }
+
+    /**
+     * Parse a path term. Throws QueryEngineException if the bounds of “p{n,m}”
+     * are malformed.
+     * 
+     * @param term
+     * @return
+     * @throws QueryEngineException
+     */
+    static PropertyPath parse(String term) throws QueryEngineException {
+        char last = term.charAt(term.length() - 1);
+        String predicate = term.substring(0, term.length() - 1);
+        if (last == '+') {
+            return new PropertyPath(predicate, 1, UNBOUNDED);
+        }
+        if (last == '*') {
+            return new PropertyPath(predicate, 0, UNBOUNDED);
+        }
+        int brace = term.indexOf('{');
+        String[] bounds = term.substring(brace + 1, term.length() - 1).split(",", -1);
+        try {
+            int min = Integer.parseInt(bounds[0].trim());
+            int max = bounds.length == 1 ? min : Integer.parseInt(bounds[1].trim());
+            if (bounds.length > 2 || min < 0 || max < min) {
+                throw new QueryEngineException("Malformed path bounds: " + term);
+            }
+            return new PropertyPath(term.substring(0, brace), min, max);
+        } catch (NumberFormatException ex) {
+            throw new QueryEngineException("Malformed path bounds: " + term);
+        }
+    }
+
+    /**
+     * @return the predicate identifier the chains follow.
+     */
+    String getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the minimum chain length.
+     */
+    int getMin() {
+        return min;
+    }
+
+    /**
+     * Collect the Subject and Object pairs connected by the path.
+     * 
+     * @param knowledgeGraph graph the snapshot belongs to
+     * @param snapshot
+     * @param subject        id of the first Node, or -1 if unbound
+     * @param predicate      id of the predicate, or a negative value if it
+     *                       is not in the dictionary
+     * @param object         id of the last Node, or -1 if unbound
+     * @return one Subject and Object id pair per match.
+     */
+    List<int[]> evaluate(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, int subject, int predicate,
+            int object) {
+        List<int[]> pairs = new ArrayList<int[]>();
+        if (subject >= 0) {
+            int[] targets = reach(knowledgeGraph, snapshot, predicate, subject, true);
+            if (object < 0) {
+                for (int target : targets) {
+                    pairs.add(new int[] { subject, target });
+                }
+            } else if (Arrays.binarySearch(targets, object) >= 0) {
+                pairs.add(new int[] { subject, object });
+            }
+        } else if (object >= 0) {
+            for (int source : reach(knowledgeGraph, snapshot, predicate, object, false)) {
+                pairs.add(new int[] { source, object });
+            }
+        } else if (predicate >= 0) {
+            for (int start : nodes(snapshot, predicate)) {
+                for (int target : reach(knowledgeGraph, snapshot, predicate, start, true)) {
+                    pairs.add(new int[] { start, target });
+                }
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * @return the sorted ids of the Nodes at the other end of the chains of
+     *         the path starting (forward) or ending (backward) at the given
+     *         Node.
+     */
+    int[] reach(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, int predicate, int start, boolean forward) {
+        if (predicate < 0) {
+            return min == 0 ? new int[] { start } : new int[0];
+        }
+        if (forward && min <= 1 && max == UNBOUNDED) {
+            TransitiveClosure closure = knowledgeGraph.getClosure(predicate);
+            if (closure != null) {
+                int[] reachable = closure.get(snapshot, start);
+                if (reachable == null) {
+                    reachable = closure(snapshot, predicate, start);
+                    closure.put(snapshot, start, reachable);
+                }
+                return min == 0 ? TransitiveClosure.union(reachable, new int[] { start }) : reachable;
+            }
+        }
+        Set<Integer> result = new HashSet<Integer>();
+        Set<Integer> frontier = new HashSet<Integer>();
+        frontier.add(start);
+        if (min == 0) {
+            result.add(start);
+        }
+        for (int depth = 1; depth <= max && !frontier.isEmpty(); depth++) {
+            if (max == UNBOUNDED && depth >= min) {
+                Set<Integer> visited = new HashSet<Integer>();
+                List<Integer> queue = new ArrayList<Integer>(successors(snapshot, predicate, frontier, forward));
+                visited.addAll(queue);
+                for (int i = 0; i < queue.size(); i++) {
+                    for (int next : successors(snapshot, predicate, queue.get(i), forward)) {
+                        if (visited.add(next)) {
+                            queue.add(next);
+                        }
+                    }
+                }
+                result.addAll(visited);
+                break;
+            }
+            frontier = successors(snapshot, predicate, frontier, forward);
+            if (depth >= min) {
+                result.addAll(frontier);
+            }
+        }
+        return sorted(result);
+    }
+
+    /**
+     * @return the sorted ids of the Nodes reachable from the given Node by one
+     *         or more Triples with the given predicate.
+     */
+    static int[] closure(GraphSnapshot snapshot, int predicate, int start) {
+        Set<Integer> visited = new HashSet<Integer>();
+        List<Integer> queue = new ArrayList<Integer>();
+        queue.add(start);
+        for (int i = 0; i < queue.size(); i++) {
+            for (int next : successors(snapshot, predicate, queue.get(i), true)) {
+                if (visited.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+        return sorted(visited);
+    }
+
+    private static Set<Integer> successors(GraphSnapshot snapshot, int predicate, Set<Integer> nodes,
+            boolean forward) {
+        Set<Integer> next = new HashSet<Integer>();
+        for (int node : nodes) {
+            next.addAll(successors(snapshot, predicate, node, forward));
+        }
+        return next;
+    }
+
+    private static List<Integer> successors(GraphSnapshot snapshot, int predicate, int node, boolean forward) {
+        IndexScan scan = forward ? snapshot.scan(node, predicate, -1) : snapshot.scan(-1, predicate, node);
+        List<Integer> next = new ArrayList<Integer>(scan.remaining());
+        while (scan.next()) {
+            next.add(forward ? scan.object() : scan.subject());
+        }
+        return next;
+    }
+
+    /**
+     * @return the sorted ids of the Nodes occurring as Subject or Object of the
+     *         predicate.
+     */
+    private static int[] nodes(GraphSnapshot snapshot, int predicate) {
+        Set<Integer> nodes = new HashSet<Integer>();
+        IndexScan scan = snapshot.scan(-1, predicate, -1);
+        while (scan.next()) {
+            nodes.add(scan.subject());
+            nodes.add(scan.object());
+        }
+        return sorted(nodes);
+    }
+
+    private static int[] sorted(Set<Integer> ids) {
+        int[] result = new int[ids.size()];
+        int i = 0;
+        for (int id : ids) {
+            result[i++] = id;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (max == UNBOUNDED) {
+            return predicate + (min == 0 ? "*" : min == 1 ? "+" : "{" + min + ",}");
+        }
+        return predicate + "{" + min + "," + max + "}";
+    }
+}
@@ -0,0 +1,149 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The QueryCache class holds the results of recent single pattern queries of
+ * the KnowledgeGraph, keyed by the dictionary ids of the pattern with -1 for
+ * unbound positions. Entries are evicted in least recently used order once the
+ * cached results hold more than the capacity of Triples in total.
+ * 
+ * A written Triple affects exactly the patterns it matches, which are its 8
+ * generalizations: each of its terms either kept or replaced by a wildcard. A
+ * write therefore invalidates at most 8 entries and leaves every other cached
+ * result in place. Writes replacing the whole graph, such as bulk imports and
+ * loading a snapshot, clear the cache.
+ * 
+ * A result may only be stored if it was computed from the snapshot the cache
+ * was last told about; a result computed from an older snapshot may miss a
+ * write whose invalidation has already happened, and is dropped.
+ */
+final class QueryCache {
+    private final long capacity;
+    private final Map<TripleKey, Triple[]> entries = new LinkedHashMap<TripleKey, Triple[]>(16, 0.75f, true);
+
+    /**
+     * Snapshot of the latest write the cache was told about.
+     */
+    private GraphSnapshot current;
+
+    /**
+     * Total number of Triples in the cached results, counting an empty result
+     * as one.
+     */
+    private long weight;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param capacity maximum total number of Triples held
+     * @param current  current snapshot of the KnowledgeGraph
+     */
+    QueryCache(long capacity, GraphSnapshot current) {
+        this.capacity = capacity;
+        this.current = current;
+    }
+
+    /**
+     * Look up the result of a pattern.
+     * 
+     * @param subject   pattern id, or -1 if unbound
+     * @param predicate pattern id, or -1 if unbound
+     * @param object    pattern id, or -1 if unbound
+     * @return the matching Triples, or null if the result is not cached.
+     */
+    synchronized Triple[] get(int subject, int predicate, int object) {
+        Triple[] triples = entries.get(new TripleKey(subject, predicate, object));
+        if (triples == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return triples;
+    }
+
+    /**
+     * Store the result of a pattern computed from the given snapshot, unless a
+     * write has been published since.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param triples
+     * @param source    snapshot the result was read from
+     */
+    synchronized void put(int subject, int predicate, int object, Triple[] triples, GraphSnapshot source) {
+        long size = Math.max(1, triples.length);
+        if (source != current || size > capacity) {
+            return;
+        }
+        Triple[] previous = entries.put(new TripleKey(subject, predicate, object), triples);
+        weight += size;
+        if (previous != null) {
+            weight -= Math.max(1, previous.length);
+        }
+        Iterator<Triple[]> eldest = entries.values().iterator();
+        while (weight > capacity) {
+            weight -= Math.max(1, eldest.next().length);
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drop the results of the patterns matching a Triple that was added or
+     * removed. Called after publishing the snapshot reflecting the write.
+     * 
+     * @param successor snapshot reflecting the write
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    synchronized void invalidate(GraphSnapshot successor, int subject, int predicate, int object) {
+        current = successor;
+        for (int mask = 0; mask < 8; mask++) {
+            Triple[] removed = entries.remove(new TripleKey((mask & 4) == 0 ? subject : -1,
+                    (mask & 2) == 0 ? predicate : -1, (mask & 1) == 0 ? object : -1));
+            if (removed != null) {
+                weight -= Math.max(1, removed.length);
+            }
+        }
+    }
+
+    /**
+     * Drop every result. Called after publishing a snapshot that differs from
+     * its predecessor in more than a few Triples.
+     * 
+     * @param successor the published snapshot
+     */
+    synchronized void clear(GraphSnapshot successor) {
+        current = successor;
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of lookups that found a cached result.
+     */
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that found no cached result.
+     */
+    synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return the number of results evicted to stay within the capacity.
+     */
+    synchronized long getEvictionCount() {
+        return evictions;
+    }
+}
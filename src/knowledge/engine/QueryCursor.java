@@ -0,0 +1,176 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The QueryCursor class streams the Triples matching a query pattern one at a
+ * time, in the key order of the permutation index answering the pattern. A
+ * cursor reads a single GraphSnapshot, so it is unaffected by concurrent
+ * writes, and every call to next() returns a new Triple instance.
+ * 
+ * A cursor returns at most its limit of Triples. The continuation token of a
+ * cursor identifies the pattern and the key of the last Triple returned, so
+ * KnowledgeGraph.resumeCursor continues right after it against the then
+ * current snapshot, without skipping over the Triples already seen. Tokens
+ * stay valid across writes to the KnowledgeGraph that issued them, but not
+ * across loading a different snapshot file.
+ */
+public class QueryCursor implements Iterator<Triple> {
+    /**
+     * Format byte of a continuation token.
+     */
+    private static final byte TOKEN_FORMAT = 1;
+
+    private final GraphSnapshot snapshot;
+    private final IndexScan scan;
+    private final int subject;
+    private final int predicate;
+    private final int object;
+    private long remaining;
+
+    /**
+     * True once lastHigh and lastLow hold the key of the last Triple returned
+     * or skipped, or of the Triple the cursor was resumed after.
+     */
+    private boolean started;
+    private long lastHigh;
+    private int lastLow;
+
+    /**
+     * @param snapshot
+     * @param scan      scan over the matching Triples, or null if a term of the
+     *                  pattern is unknown
+     * @param subject   pattern id, or -1 if unbound
+     * @param predicate pattern id, or -1 if unbound
+     * @param object    pattern id, or -1 if unbound
+     * @param limit     maximum number of Triples to return
+     */
+    QueryCursor(GraphSnapshot snapshot, IndexScan scan, int subject, int predicate, int object, long limit) {
+        this.snapshot = snapshot;
+        this.scan = scan;
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+        this.remaining = limit;
+    }
+
+    /**
+     * Open a cursor on the given snapshot resuming after the key recorded in a
+     * continuation token.
+     * 
+     * @param snapshot
+     * @param token
+     * @param limit
+     * @return
+     * @throws QueryEngineException if the token is malformed
+     */
+    static QueryCursor resume(GraphSnapshot snapshot, String token, long limit) throws QueryEngineException {
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(token));
+            if (bytes.get() != TOKEN_FORMAT) {
+                throw new QueryEngineException("Unsupported continuation token: " + token);
+            }
+            int subject = bytes.getInt();
+            int predicate = bytes.getInt();
+            int object = bytes.getInt();
+            long high = bytes.getLong();
+            int low = bytes.getInt();
+            if (bytes.hasRemaining() || subject < -1 || predicate < -1 || object < -1) {
+                throw new QueryEngineException("Malformed continuation token: " + token);
+            }
+            QueryCursor cursor = new QueryCursor(snapshot, snapshot.scanAfter(subject, predicate, object, high, low),
+                    subject, predicate, object, limit);
+            cursor.started = true;
+            cursor.lastHigh = high;
+            cursor.lastLow = low;
+            return cursor;
+        } catch (IllegalArgumentException | BufferUnderflowException ex) {
+            throw new QueryEngineException("Malformed continuation token: " + token);
+        }
+    }
+
+    /**
+     * Skip the given number of matching Triples, as for an OFFSET clause.
+     * 
+     * @param count
+     * @return the number of Triples skipped.
+     */
+    long skip(long count) {
+        if (scan == null || count <= 0) {
+            return 0;
+        }
+        long skipped = scan.skip(count);
+        if (skipped > 0) {
+            started = true;
+            lastHigh = scan.high();
+            lastLow = scan.low();
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0 && scan != null && scan.remaining() > 0;
+    }
+
+    @Override
+    public Triple next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        scan.next();
+        remaining--;
+        started = true;
+        lastHigh = scan.high();
+        lastLow = scan.low();
+        return KnowledgeGraph.toTriple(snapshot, scan.subject(), scan.predicate(), scan.object());
+    }
+
+    /**
+     * Advance like next() and append the identifier of the Triple, as returned
+     * by Triple.getIdentifier(), without materializing the Triple.
+     * 
+     * @param text
+     */
+    void appendNext(StringBuilder text) {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        scan.next();
+        remaining--;
+        started = true;
+        lastHigh = scan.high();
+        lastLow = scan.low();
+        TermDictionary nodeDictionary = snapshot.getNodeDictionary();
+        text.append(nodeDictionary.decode(scan.subject())).append(' ')
+                .append(snapshot.getPredicateDictionary().decode(scan.predicate())).append(' ')
+                .append(nodeDictionary.decode(scan.object())).append('.');
+    }
+
+    /**
+     * Return a token for resuming the query right after the last Triple
+     * returned (see KnowledgeGraph.resumeCursor), or null if every matching
+     * Triple has been returned.
+     * 
+     * @return
+     */
+    public String getContinuationToken() {
+        if (scan == null || scan.remaining() == 0) {
+            return null;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(25);
+        bytes.put(TOKEN_FORMAT).putInt(subject).putInt(predicate).putInt(object);
+        if (started) {
+            bytes.putLong(lastHigh).putInt(lastLow);
+        } else {
+            bytes.putLong(Long.MIN_VALUE).putInt(Integer.MIN_VALUE);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array());
+    }
+}
@@ -2,23 +2,65 @@ package housemate.src.knowledge.engine;
 
 import housemate.src.knowledge.engine.exception.QueryEngineException;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 public class QueryEngine {
+    private static final String NEWLINE = System.lineSeparator();
+
+    /**
+     * Number of queries of a batch evaluated before their results are written.
+     */
+    private static final int BATCH_WINDOW = 4096;
+
+    /**
+     * Number of queries evaluated by a single task of a batch.
+     */
+    private static final int BATCH_GRAIN = 16;
+
     private KnowledgeGraph knowledgeGraph;
 
     public QueryEngine() {
         knowledgeGraph = KnowledgeGraph.getInstance();
     }
 
+    /**
+     * Create a QueryEngine scoped to the given KnowledgeGraph, such as a
+     * partition (see KnowledgeGraph.getPartition).
+     * 
+     * @param knowledgeGraph
+     */
+    public QueryEngine(KnowledgeGraph knowledgeGraph) {
+        this.knowledgeGraph = knowledgeGraph;
+    }
+
     /**
      * Public method for executing a single query on the knowledge graph. Checks for
      * non null and well formed query string. Throws QueryEngineException on error.
+     * A single pattern without named variables prints the matching Triples,
+     * going through the result cache of the KnowledgeGraph, or streams them
+     * from a QueryCursor if the query has a limit or offset; a query with named
+     * variables or several patterns (see BasicGraphPattern) prints one line of
+     * variable bindings per solution. A single property path pattern without
+     * named variables prints one Triple per connected pair, with the path as
+     * its predicate, and a single comparison pattern the matching Triples in
+     * ascending order of their Objects. An order by clause sorts the Triples
+     * or solutions printed (see QueryOrder). Subjects and Objects ending in
+     * “*” match by prefix (see PrefixFilter).
      * 
      * @param query
      * @throws QueryEngineException
@@ -26,24 +68,227 @@ public class QueryEngine {
     public void executeQuery(String query) throws QueryEngineException {
         try {
             System.out.println(query);
-            Triple queryTriple = new Triple(query.toLowerCase());
-            String subject = queryTriple.getSubject().getIdentifier();
-            String predicate = queryTriple.getPredicate().getIdentifier();
-            String object = queryTriple.getObject().getIdentifier();
-            Set<Triple> triples = knowledgeGraph.executeQuery(subject, predicate, object);
-            if (triples == null) {
-                System.out.println("<null>");
-            } else {
-                for (Triple triple : triples) {
-                    System.out.println(triple.getIdentifier());
+            BasicGraphPattern pattern = BasicGraphPattern.parse(query);
+            StringBuilder text = new StringBuilder();
+            if (pattern.size() == 1 && pattern.getVariables().isEmpty() && pattern.getPath(0) == null
+                    && pattern.getRange(0) == null && pattern.getOffset() == 0
+                    && pattern.getLimit() == Long.MAX_VALUE && pattern.getOrder() == null) {
+                String[] terms = pattern.getTerms(0);
+                Set<Triple> triples = knowledgeGraph.executeQuery(terms[0], terms[1], terms[2]);
+                if (triples == null) {
+                    text.append("<null>").append(NEWLINE);
+                } else {
+                    for (Triple triple : triples) {
+                        text.append(triple.getIdentifier()).append(NEWLINE);
+                    }
                 }
+            } else {
+                appendResults(knowledgeGraph, knowledgeGraph.getSnapshot(), knowledgeGraph.getStatistics(), pattern,
+                        text);
             }
-            System.out.println();
+            System.out.print(text.append(NEWLINE));
         } catch (Exception ex) {
             throw new QueryEngineException("Could not execute query file: " + ex);
         }
     }
 
+    /**
+     * Append the result lines of a query evaluated against the given snapshot,
+     * as printed by executeQuery.
+     */
+    private static void appendResults(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot,
+            GraphStatistics statistics, BasicGraphPattern pattern, StringBuilder text) throws QueryEngineException {
+        if (pattern.size() == 1 && pattern.getVariables().isEmpty() && (pattern.getPath(0) != null
+                || pattern.getRange(0) != null || pattern.hasPrefix(0) && pattern.getOrder() == null)) {
+            String[] terms = pattern.getTerms(0);
+            List<Triple> triples = pattern.getPath(0) != null
+                    ? knowledgeGraph.executePathQuery(snapshot, terms[0], pattern.getPath(0), terms[1], terms[2])
+                    : pattern.getRange(0) != null
+                            ? knowledgeGraph.executeRangeQuery(snapshot, terms[0], terms[1], pattern.getRange(0))
+                            : KnowledgeGraph.executePrefixQuery(snapshot, terms[0], terms[1], terms[2]);
+            int from = (int) Math.min(pattern.getOffset(), triples.size());
+            int to = (int) Math.min(from + Math.min(pattern.getLimit(), Integer.MAX_VALUE), triples.size());
+            if (from == to) {
+                text.append("<null>").append(NEWLINE);
+            }
+            for (Triple triple : triples.subList(from, to)) {
+                text.append(triple.getIdentifier()).append(NEWLINE);
+            }
+            return;
+        }
+        if (pattern.size() == 1 && pattern.getVariables().isEmpty() && pattern.getOrder() != null) {
+            String[] terms = pattern.getTerms(0);
+            List<Triple> triples = knowledgeGraph.executeQuery(snapshot, terms[0], terms[1], terms[2],
+                    pattern.getOrder(), pattern.getOffset(), pattern.getLimit());
+            if (triples.isEmpty()) {
+                text.append("<null>").append(NEWLINE);
+            }
+            for (Triple triple : triples) {
+                text.append(triple.getIdentifier()).append(NEWLINE);
+            }
+            return;
+        }
+        if (pattern.size() == 1 && pattern.getVariables().isEmpty()) {
+            String[] terms = pattern.getTerms(0);
+            QueryCursor cursor = KnowledgeGraph.openCursor(snapshot, terms[0], terms[1], terms[2],
+                    pattern.getOffset(), pattern.getLimit());
+            if (!cursor.hasNext()) {
+                text.append("<null>").append(NEWLINE);
+            }
+            while (cursor.hasNext()) {
+                cursor.appendNext(text);
+                text.append(NEWLINE);
+            }
+            return;
+        }
+        List<Map<String, String>> solutions = select(knowledgeGraph, snapshot, statistics, pattern);
+        if (solutions.isEmpty()) {
+            text.append("<null>").append(NEWLINE);
+        }
+        for (Map<String, String> solution : solutions) {
+            boolean first = true;
+            for (Map.Entry<String, String> binding : solution.entrySet()) {
+                if (!first) {
+                    text.append(' ');
+                }
+                text.append(binding.getKey()).append('=').append(binding.getValue());
+                first = false;
+            }
+            text.append(NEWLINE);
+        }
+    }
+
+    /**
+     * Public method for evaluating a basic graph pattern query, e.g. “?who
+     * works_at ?place. ?place sells coffee.”, against the current state of the
+     * knowledge graph. The patterns are joined in the order chosen by the query
+     * planner (see QueryPlan). A single pattern without variables ordered by
+     * position, e.g. “? is_in kitchen. order by subject.”, has one empty
+     * solution per Triple. Throws QueryEngineException if the query is
+     * malformed, or is ordered by time and the temporal mode is not enabled.
+     * 
+     * @param query
+     * @return one map from variable name to identifier per solution, empty if
+     *         there is none.
+     * @throws QueryEngineException
+     */
+    public List<Map<String, String>> select(String query) throws QueryEngineException {
+        return select(knowledgeGraph, knowledgeGraph.getSnapshot(), knowledgeGraph.getStatistics(),
+                BasicGraphPattern.parse(query));
+    }
+
+    /**
+     * Public method for evaluating a basic graph pattern query against every
+     * partition of the knowledge graph (see KnowledgeGraph.getPartition), in
+     * parallel on the common fork-join pool. Each partition is queried against
+     * its own current snapshot with its own plan, and a limit or offset of the
+     * query applies per partition. Throws QueryEngineException if the query is
+     * malformed.
+     * 
+     * @param query
+     * @return the solutions of each partition that has any, by partition name
+     *         in ascending order.
+     * @throws QueryEngineException
+     */
+    public static Map<String, List<Map<String, String>>> selectPartitions(String query)
+            throws QueryEngineException {
+        BasicGraphPattern pattern = BasicGraphPattern.parse(query);
+        List<KnowledgeGraph> partitions = KnowledgeGraph.getPartitions();
+        List<List<Map<String, String>>> results = new ArrayList<List<Map<String, String>>>();
+        for (int i = 0; i < partitions.size(); i++) {
+            results.add(null);
+        }
+        QueryEngineException[] failures = new QueryEngineException[partitions.size()];
+        ForkJoinPool.commonPool()
+                .invoke(new PartitionTask(pattern, partitions, results, failures, 0, partitions.size()));
+        for (QueryEngineException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        Map<String, List<Map<String, String>>> solutions = new TreeMap<String, List<Map<String, String>>>();
+        for (int i = 0; i < partitions.size(); i++) {
+            if (!results.get(i).isEmpty()) {
+                solutions.put(partitions.get(i).getName(), results.get(i));
+            }
+        }
+        return solutions;
+    }
+
+    /**
+     * Public method for describing how a basic graph pattern query would be
+     * evaluated: join order, join method, index used and estimated row count of
+     * each pattern. Throws QueryEngineException if the query is malformed.
+     * 
+     * @param query
+     * @return the query plan, one line per pattern.
+     * @throws QueryEngineException
+     */
+    public String explain(String query) throws QueryEngineException {
+        return QueryPlan.create(knowledgeGraph, knowledgeGraph.getSnapshot(), knowledgeGraph.getStatistics(),
+                BasicGraphPattern.parse(query)).explain();
+    }
+
+    /**
+     * Evaluate a parsed query against the given snapshot. A single pattern
+     * without variables ordered by position is run as an ordered query of the
+     * snapshot, with one empty solution per Triple.
+     */
+    private static List<Map<String, String>> select(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot,
+            GraphStatistics statistics, BasicGraphPattern pattern) throws QueryEngineException {
+        if (pattern.getOrder() != null && pattern.getOrder().getVariable() == null) {
+            String[] terms = pattern.getTerms(0);
+            List<Map<String, String>> solutions = new ArrayList<Map<String, String>>();
+            for (int i = knowledgeGraph.executeQuery(snapshot, terms[0], terms[1], terms[2], pattern.getOrder(),
+                    pattern.getOffset(), pattern.getLimit()).size(); i > 0; i--) {
+                solutions.add(new LinkedHashMap<String, String>());
+            }
+            return solutions;
+        }
+        QueryPlan plan = QueryPlan.create(knowledgeGraph, snapshot, statistics, pattern);
+        List<String> variables = pattern.getVariables();
+        List<Map<String, String>> solutions = new ArrayList<Map<String, String>>();
+        List<int[]> rows = plan.execute();
+        if (pattern.getOrder() != null) {
+            rows = top(plan, rows, pattern);
+        }
+        int from = (int) Math.min(pattern.getOffset(), rows.size());
+        int to = (int) Math.min(from + Math.min(pattern.getLimit(), Integer.MAX_VALUE), rows.size());
+        for (int[] row : rows.subList(from, to)) {
+            Map<String, String> solution = new LinkedHashMap<String, String>();
+            for (int variable = 0; variable < variables.size(); variable++) {
+                solution.put(variables.get(variable), plan.decode(variable, row[variable]));
+            }
+            solutions.add(solution);
+        }
+        return solutions;
+    }
+
+    /**
+     * @return the first offset + limit rows of the plan in the order of the
+     *         query, kept in a bounded heap while the rows are read.
+     */
+    private static List<int[]> top(final QueryPlan plan, List<int[]> rows, BasicGraphPattern pattern) {
+        QueryOrder order = pattern.getOrder();
+        int key = pattern.getVariables().indexOf(order.getVariable());
+        long count = pattern.getOffset() + pattern.getLimit();
+        QueryOrder.Decoder decoder = new QueryOrder.Decoder() {
+            String decode(int index, int id) {
+                return plan.decode(index, id);
+            }
+        };
+        TopK<QueryOrder.Row> top = new TopK<QueryOrder.Row>(order.comparator(key, decoder),
+                count < 0 ? Long.MAX_VALUE : count);
+        for (int[] row : rows) {
+            top.offer(new QueryOrder.Row(row, plan.decode(key, row[key])));
+        }
+        List<int[]> ordered = new ArrayList<int[]>();
+        for (QueryOrder.Row row : top.toList()) {
+            ordered.add(row.ids);
+        }
+        return ordered;
+    }
+
     /**
      * Public method for executing a set of queries read from a file. Checks for
      * valid file name. Delegates to executeQuery for processing individual queries.
@@ -70,4 +315,193 @@ public class QueryEngine {
             throw new QueryEngineException("Could not execute query file: " + ex);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Public method for executing a file of queries as one batch using one
+     * worker thread per available processor. See batchExecuteQueryFile(String,
+     * int).
+     * 
+     * @param fileName
+     * @throws QueryEngineException
+     */
+    public void batchExecuteQueryFile(String fileName) throws QueryEngineException {
+        batchExecuteQueryFile(fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Public method for executing a file of queries as one batch. Produces the
+     * same output as executeQueryFile, but every query is evaluated against the
+     * snapshot of the knowledge graph current when the batch starts, so the
+     * batch is unaffected by concurrent writes, and the queries are parsed and
+     * evaluated concurrently on a fork-join pool, a window of queries at a
+     * time. The results of each window are written in file order through a
+     * single buffered writer. Throws QueryEngineException on error reading the
+     * file or at the first malformed query, after writing the results of the
+     * queries before it.
+     * 
+     * @param fileName
+     * @param parallelism number of worker threads
+     * @throws QueryEngineException
+     */
+    public void batchExecuteQueryFile(String fileName, int parallelism) throws QueryEngineException {
+        List<String> queries = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() != 0) {
+                    queries.add(line);
+                }
+            }
+        } catch (FileNotFoundException ex) {
+            throw new QueryEngineException("Could not find file: " + ex);
+        } catch (IOException ex) {
+            throw new QueryEngineException("Could not read/write: " + ex);
+        }
+        GraphSnapshot snapshot = knowledgeGraph.getSnapshot();
+        GraphStatistics statistics = knowledgeGraph.getStatistics();
+        Writer output = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        ForkJoinPool pool = new ForkJoinPool(Math.max(parallelism, 1));
+        try {
+            for (int from = 0; from < queries.size(); from += BATCH_WINDOW) {
+                BatchTask batch = new BatchTask(knowledgeGraph, snapshot, statistics, queries, from,
+                        Math.min(from + BATCH_WINDOW, queries.size()));
+                pool.invoke(batch);
+                for (int i = 0; i < batch.results.length; i++) {
+                    output.write(queries.get(batch.from + i));
+                    output.write(NEWLINE);
+                    if (batch.failures[i] != null) {
+                        output.flush();
+                        throw new QueryEngineException("Could not execute query file: " + batch.failures[i]);
+                    }
+                    output.write(batch.results[i]);
+                }
+            }
+            output.flush();
+        } catch (IOException ex) {
+            throw new QueryEngineException("Could not read/write: " + ex);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parses and evaluates queries [from, to) of a batch, splitting the range
+     * in halves evaluated in parallel down to BATCH_GRAIN queries.
+     */
+    private static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final KnowledgeGraph knowledgeGraph;
+        private final GraphSnapshot snapshot;
+        private final GraphStatistics statistics;
+        private final List<String> queries;
+        private final int from;
+        private final int to;
+
+        /**
+         * Index of the first query of the window.
+         */
+        private final int base;
+
+        /**
+         * Result text of each query, indexed from the start of the window.
+         */
+        private final String[] results;
+
+        /**
+         * Failure of each query, or null if it succeeded.
+         */
+        private final Exception[] failures;
+
+        BatchTask(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, GraphStatistics statistics,
+                List<String> queries, int from, int to) {
+            this(knowledgeGraph, snapshot, statistics, queries, from, to, new String[to - from],
+                    new Exception[to - from], from);
+        }
+
+        private BatchTask(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, GraphStatistics statistics,
+                List<String> queries, int from, int to, String[] results, Exception[] failures, int base) {
+            this.knowledgeGraph = knowledgeGraph;
+            this.snapshot = snapshot;
+            this.statistics = statistics;
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            this.failures = failures;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_GRAIN) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BatchTask(knowledgeGraph, snapshot, statistics, queries, from, middle, results,
+                        failures, base),
+                        new BatchTask(knowledgeGraph, snapshot, statistics, queries, middle, to, results, failures,
+                                base));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    StringBuilder text = new StringBuilder();
+                    appendResults(knowledgeGraph, snapshot, statistics, BasicGraphPattern.parse(queries.get(i)),
+                            text);
+                    results[i - base] = text.append(NEWLINE).toString();
+                } catch (Exception ex) {
+                    failures[i - base] = ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates a query against partitions [from, to), splitting the range in
+     * halves evaluated in parallel down to single partitions.
+     */
+    private static class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BasicGraphPattern pattern;
+        private final List<KnowledgeGraph> partitions;
+
+        /**
+         * Solutions of each partition, indexed like partitions.
+         */
+        private final List<List<Map<String, String>>> results;
+
+        /**
+         * Failure of each partition, or null, indexed like partitions.
+         */
+        private final QueryEngineException[] failures;
+        private final int from;
+        private final int to;
+
+        PartitionTask(BasicGraphPattern pattern, List<KnowledgeGraph> partitions,
+                List<List<Map<String, String>>> results, QueryEngineException[] failures, int from, int to) {
+            this.pattern = pattern;
+            this.partitions = partitions;
+            this.results = results;
+            this.failures = failures;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PartitionTask(pattern, partitions, results, failures, from, middle),
+                        new PartitionTask(pattern, partitions, results, failures, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                KnowledgeGraph partition = partitions.get(i);
+                try {
+                    results.set(i, select(partition, partition.getSnapshot(), partition.getStatistics(), pattern));
+                } catch (QueryEngineException ex) {
+                    failures[i] = ex;
+                    results.set(i, new ArrayList<Map<String, String>>());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The QueryOrder class is the sort key of an ordered query, ascending unless
+ * followed by “desc”. The Triples matching a single triple pattern are
+ * ordered by the identifier at one of their positions, “subject”,
+ * “predicate” or “object”, or by “time”, the time each Triple was asserted,
+ * which needs the temporal mode of the KnowledgeGraph. The solutions of a
+ * query with named variables are ordered by the identifier bound to one of
+ * them, e.g. “?who desc”. Ties are broken by the remaining identifiers, so
+ * the order is total.
+ * 
+ * Dictionary ids follow insertion order rather than identifier order, so an
+ * ordered query keeps its first results in a bounded heap (see TopK) instead
+ * of sorting every match; time ordered queries walk the time ordered history
+ * and stop after the first results.
+ */
+final class QueryOrder {
+    static final int SUBJECT = 0;
+    static final int PREDICATE = 1;
+    static final int OBJECT = 2;
+    static final int TIME = 3;
+
+    private static final String[] KEYS = { "subject", "predicate", "object", "time" };
+
+    /**
+     * Ordering position, or -1 for a variable.
+     */
+    private final int position;
+
+    private final String variable;
+    private final boolean descending;
+
+    private QueryOrder(int position, String variable, boolean descending) {
+        this.position = position;
+        this.variable = variable;
+        this.descending = descending;
+    }
+
+    /**
+     * Parse a sort key such as “subject”, “time desc” or “?who”. Throws
+     * QueryEngineException if the key is malformed.
+     * 
+     * @param text
+     * @return
+     * @throws QueryEngineException
+     */
+    static QueryOrder parse(String text) throws QueryEngineException {
+        String[] terms = text.trim().toLowerCase().split("\\s+");
+        if (terms.length > 2 || terms.length == 2 && !terms[1].equals("asc") && !terms[1].equals("desc")) {
+            throw new QueryEngineException("Malformed sort order: " + text);
+        }
+        boolean descending = terms.length == 2 && terms[1].equals("desc");
+        if (BasicGraphPattern.isVariable(terms[0])) {
+            return new QueryOrder(-1, terms[0], descending);
+        }
+        for (int position = 0; position < KEYS.length; position++) {
+            if (KEYS[position].equals(terms[0])) {
+                return new QueryOrder(position, null, descending);
+            }
+        }
+        throw new QueryEngineException("Unknown sort key, expected subject, predicate, object, time or a variable: "
+                + text);
+    }
+
+    /**
+     * @param term
+     * @return true if the term is a sort key: a position, “time” or a variable.
+     */
+    static boolean isKey(String term) {
+        return BasicGraphPattern.isVariable(term) || Arrays.asList(KEYS).contains(term);
+    }
+
+    /**
+     * @return the ordering position SUBJECT, PREDICATE, OBJECT or TIME, or -1
+     *         if the results are ordered by a variable.
+     */
+    int getPosition() {
+        return position;
+    }
+
+    /**
+     * @return the variable the results are ordered by, or null.
+     */
+    String getVariable() {
+        return variable;
+    }
+
+    boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * @param key index of the sort key in the rows compared
+     * @param decoder
+     * @return the order of Rows: by the identifier at the key index, then by
+     *         the identifiers at the other indexes.
+     */
+    Comparator<Row> comparator(final int key, final Decoder decoder) {
+        return new Comparator<Row>() {
+            public int compare(Row left, Row right) {
+                int order = left.key.compareTo(right.key);
+                for (int i = 0; order == 0 && i < left.ids.length; i++) {
+                    if (i != key && left.ids[i] != right.ids[i]) {
+                        order = decoder.decode(i, left.ids[i]).compareTo(decoder.decode(i, right.ids[i]));
+                    }
+                }
+                return descending ? -order : order;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return (variable != null ? variable : KEYS[position]) + (descending ? " desc" : "");
+    }
+
+    /**
+     * Decodes the ids of a Row.
+     */
+    abstract static class Decoder {
+        /**
+         * @param index index of the id in the Row
+         * @param id
+         * @return the identifier of the id.
+         */
+        abstract String decode(int index, int id);
+    }
+
+    /**
+     * The ids of a Triple or a solution with the identifier of its sort key.
+     */
+    static final class Row {
+        final int[] ids;
+        final String key;
+
+        Row(int[] ids, String key) {
+            this.ids = ids;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package housemate.src.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The QueryPlan class evaluates a BasicGraphPattern against one GraphSnapshot.
+ * The planner orders the triple patterns greedily: it starts with the pattern
+ * matching the fewest Triples and then repeatedly adds the pattern, preferring
+ * ones sharing a variable with the patterns already joined, whose estimated
+ * result is smallest. Each step is joined with the rows built so far either
+ * as
+ * 
+ * <ul>
+ * <li>a bind join, which scans the index once per row with the shared
+ * variables substituted, when there are few rows, or</li>
+ * <li>a hash join, which scans the pattern once into a hash table keyed on the
+ * shared variables and probes it with every row.</li>
+ * </ul>
+ * 
+ * Cardinalities are exact range sizes of the permutation indexes for the
+ * constant terms of a pattern. The fan-out of a bound variable is estimated by
+ * assuming its values are spread evenly over the distinct Subjects or Objects
+ * of the constant predicate of the pattern (see GraphStatistics), or else over
+ * the terms of the dictionary.
+ * 
+ * A pattern with a property path is evaluated by a search from each distinct
+ * binding of its ends (see PropertyPath) and always joined as a bind join. Its
+ * count is the number of Triples with the path predicate, and a path from a
+ * bound end is assumed to reach about the square root of them. A pattern with
+ * a numeric comparison is evaluated by a range scan of the NumericIndex of its
+ * predicate, and joined as a hash join on its Subject. A pattern with a
+ * prefix term is evaluated by one scan per identifier matching the prefix
+ * (see PrefixFilter), and its count is the sum of their range sizes.
+ */
+final class QueryPlan {
+    private static final int UNKNOWN = -2;
+
+    /**
+     * Join methods of a plan step.
+     */
+    enum Join {
+        SCAN, BIND, HASH
+    }
+
+    private final KnowledgeGraph knowledgeGraph;
+    private final GraphSnapshot snapshot;
+    private final GraphStatistics statistics;
+    private final BasicGraphPattern query;
+    private final List<Step> steps = new ArrayList<Step>();
+    private final int width;
+
+    private QueryPlan(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, GraphStatistics statistics,
+            BasicGraphPattern query) {
+        this.knowledgeGraph = knowledgeGraph;
+        this.snapshot = snapshot;
+        this.statistics = statistics;
+        this.query = query;
+        this.width = query.getVariables().size();
+    }
+
+    /**
+     * Plan the given query against the given snapshot.
+     * 
+     * @param knowledgeGraph graph the snapshot belongs to
+     * @param snapshot
+     * @param statistics     cardinalities of the snapshot, or null if
+     *                       unavailable
+     * @param query
+     * @return
+     */
+    static QueryPlan create(KnowledgeGraph knowledgeGraph, GraphSnapshot snapshot, GraphStatistics statistics,
+            BasicGraphPattern query) {
+        QueryPlan plan = new QueryPlan(knowledgeGraph, snapshot, statistics, query);
+        List<Pattern> remaining = new ArrayList<Pattern>();
+        for (int i = 0; i < query.size(); i++) {
+            remaining.add(plan.resolve(query.getTerms(i), query.getPath(i), query.getRange(i)));
+        }
+        boolean[] bound = new boolean[plan.width];
+        double rows = 1;
+        while (!remaining.isEmpty()) {
+            Step best = null;
+            for (Pattern pattern : remaining) {
+                Step candidate = plan.estimate(pattern, bound, rows, plan.steps.isEmpty());
+                if (best == null || candidate.isBetterThan(best)) {
+                    best = candidate;
+                }
+            }
+            remaining.remove(best.pattern);
+            plan.steps.add(best);
+            for (int position = 0; position < 3; position++) {
+                if (best.pattern.variables[position] >= 0) {
+                    bound[best.pattern.variables[position]] = true;
+                }
+            }
+            rows = best.rows;
+        }
+        return plan;
+    }
+
+    /**
+     * Run the plan.
+     * 
+     * @return one row of Node or Predicate ids per solution, indexed like the
+     *         variables of the query.
+     */
+    List<int[]> execute() {
+        List<int[]> rows = new ArrayList<int[]>();
+        int[] empty = new int[width];
+        Arrays.fill(empty, -1);
+        rows.add(empty);
+        for (Step step : steps) {
+            if (step.pattern.count == 0) {
+                return new ArrayList<int[]>();
+            }
+            if (step.pattern.path != null) {
+                rows = pathJoin(step, rows);
+            } else if (step.pattern.range != null) {
+                rows = rangeJoin(step, rows);
+            } else {
+                rows = step.join == Join.HASH ? hashJoin(step, rows) : bindJoin(step, rows);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @param id
+     * @param variable
+     * @return the term of a result id for the given variable index.
+     */
+    String decode(int variable, int id) {
+        return query.isPredicateVariable(variable) ? snapshot.getPredicateDictionary().decode(id)
+                : snapshot.getNodeDictionary().decode(id);
+    }
+
+    /**
+     * @return a description of the join order, join methods, indexes and
+     *         estimated row counts of the plan.
+     */
+    String explain() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            text.append(i + 1).append(". ");
+            text.append(step.join == Join.SCAN ? "SCAN" : step.join == Join.BIND ? "BIND JOIN" : "HASH JOIN");
+            text.append(' ').append(String.join(" ", step.pattern.terms));
+            if (!step.shared.isEmpty()) {
+                text.append(" ON");
+                for (int variable : step.shared) {
+                    text.append(' ').append(query.getVariables().get(variable));
+                }
+            }
+            text.append(String.format(" [%s, %d matching, est. %.0f rows]%n", step.permutation, step.pattern.count,
+                    step.rows));
+        }
+        return text.toString();
+    }
+
+    private Pattern resolve(String[] terms, PropertyPath path, NumericRange range) {
+        Pattern pattern = new Pattern(terms, path, range);
+        for (int position = 0; position < 3; position++) {
+            String term = terms[position];
+            if (position == 1 && path != null) {
+                pattern.pathPredicate = snapshot.getPredicateDictionary().lookup(path.getPredicate());
+                continue;
+            }
+            if (position == 2 && range != null) {
+                continue;
+            }
+            TermDictionary dictionary = position == 1 ? snapshot.getPredicateDictionary()
+                    : snapshot.getNodeDictionary();
+            if (BasicGraphPattern.isVariable(term)) {
+                pattern.variables[position] = query.getVariables().indexOf(term);
+            } else if (!BasicGraphPattern.WILDCARD.equals(term) && !PrefixFilter.isPrefix(term)) {
+                int id = dictionary.lookup(term);
+                pattern.constants[position] = id < 0 ? UNKNOWN : id;
+            }
+        }
+        if (path == null && range == null) {
+            pattern.prefixes = PrefixFilter.of(snapshot, terms);
+        }
+        if (pattern.constants[0] == UNKNOWN || pattern.constants[1] == UNKNOWN || pattern.constants[2] == UNKNOWN) {
+            pattern.count = 0;
+        } else if (path != null) {
+            int edges = pattern.pathPredicate < 0 ? 0 : snapshot.scan(-1, pattern.pathPredicate, -1).remaining();
+            pattern.count = path.getMin() == 0 ? Math.max(1, edges) : edges;
+        } else if (range != null) {
+            pattern.rangeObjects = knowledgeGraph.numericObjects(snapshot, pattern.constants[1], range);
+            for (int object : pattern.rangeObjects) {
+                pattern.count += snapshot.scan(pattern.constants[0], pattern.constants[1], object).remaining();
+            }
+        } else if (pattern.prefixes != null) {
+            for (int i = 0; i < pattern.prefixes.size(); i++) {
+                pattern.count += scan(pattern, pattern.constants, i).remaining();
+            }
+        } else {
+            pattern.count = snapshot.scan(pattern.constants[0], pattern.constants[1], pattern.constants[2])
+                    .remaining();
+        }
+        return pattern;
+    }
+
+    /**
+     * Estimate joining the pattern with the given number of rows binding the
+     * given variables.
+     */
+    private Step estimate(Pattern pattern, boolean[] bound, double rows, boolean first) {
+        Step step = new Step(pattern);
+        if (pattern.path != null) {
+            return estimatePath(step, bound, rows, first);
+        }
+        if (pattern.range != null) {
+            return estimateRange(step, bound, rows, first);
+        }
+        int[] probe = pattern.constants.clone();
+        if (pattern.prefixes != null) {
+            probe[pattern.prefixes.getPosition()] = 0;
+        }
+        double fanout = pattern.count;
+        for (int position = 0; position < 3; position++) {
+            int variable = pattern.variables[position];
+            if (variable >= 0 && bound[variable] && !step.shared.contains(variable)) {
+                step.shared.add(variable);
+            }
+            if (variable >= 0 && bound[variable]) {
+                fanout /= Math.max(1, Math.min(pattern.count, distinctValues(pattern, position)));
+                probe[position] = 0;
+            }
+        }
+        step.rows = rows * fanout;
+        if (first) {
+            step.join = Join.SCAN;
+            step.cost = pattern.count;
+        } else {
+            double bindCost = rows * (log2(snapshot.size()) + fanout);
+            double hashCost = pattern.count + rows;
+            step.join = step.shared.isEmpty() || hashCost < bindCost ? Join.HASH : Join.BIND;
+            step.cost = Math.min(bindCost, hashCost);
+        }
+        if (step.join == Join.BIND) {
+            step.permutation = Permutation.forPattern(probe[0], probe[1], probe[2]);
+        } else {
+            int[] constants = pattern.constants.clone();
+            if (pattern.prefixes != null) {
+                constants[pattern.prefixes.getPosition()] = 0;
+            }
+            step.permutation = Permutation.forPattern(constants[0], constants[1], constants[2]);
+        }
+        return step;
+    }
+
+    /**
+     * Estimate joining a property path pattern, which starts a search from
+     * each row.
+     */
+    private Step estimatePath(Step step, boolean[] bound, double rows, boolean first) {
+        Pattern pattern = step.pattern;
+        boolean anchored = pattern.constants[0] >= 0 || pattern.constants[2] >= 0;
+        for (int position = 0; position < 3; position += 2) {
+            int variable = pattern.variables[position];
+            if (variable >= 0 && bound[variable] && !step.shared.contains(variable)) {
+                step.shared.add(variable);
+            }
+        }
+        double fanout = anchored || !step.shared.isEmpty() ? Math.sqrt(pattern.count) + 1 : pattern.count;
+        step.rows = rows * fanout;
+        step.join = first ? Join.SCAN : Join.BIND;
+        step.cost = rows * (log2(snapshot.size()) + fanout);
+        boolean forward = pattern.constants[0] >= 0 || pattern.variables[0] >= 0 && bound[pattern.variables[0]]
+                || !(pattern.constants[2] >= 0 || pattern.variables[2] >= 0 && bound[pattern.variables[2]]);
+        step.permutation = forward ? Permutation.SPO : Permutation.POS;
+        return step;
+    }
+
+    /**
+     * Estimate joining a numeric comparison pattern, which scans the matching
+     * Objects once.
+     */
+    private Step estimateRange(Step step, boolean[] bound, double rows, boolean first) {
+        Pattern pattern = step.pattern;
+        double fanout = pattern.count;
+        int variable = pattern.variables[0];
+        if (variable >= 0 && bound[variable]) {
+            step.shared.add(variable);
+            fanout /= Math.max(1, Math.min(pattern.count, distinctValues(pattern, 0)));
+        }
+        step.rows = rows * fanout;
+        step.join = first ? Join.SCAN : Join.HASH;
+        step.cost = pattern.count + (first ? 0 : rows);
+        step.permutation = pattern.constants[0] >= 0 ? Permutation.SPO : Permutation.POS;
+        return step;
+    }
+
+    /**
+     * @return the estimated number of distinct values at the given position of
+     *         the Triples matching the pattern.
+     */
+    private int distinctValues(Pattern pattern, int position) {
+        int predicate = pattern.constants[1];
+        if (statistics != null && predicate >= 0 && position != 1) {
+            return position == 0 ? statistics.getSubjectCount(predicate) : statistics.getObjectCount(predicate);
+        }
+        return position == 1 ? snapshot.getPredicateDictionary().size() : snapshot.getNodeDictionary().size();
+    }
+
+    private List<int[]> bindJoin(Step step, List<int[]> rows) {
+        Pattern pattern = step.pattern;
+        List<int[]> result = new ArrayList<int[]>();
+        int[] ids = new int[3];
+        for (int[] row : rows) {
+            for (int position = 0; position < 3; position++) {
+                int variable = pattern.variables[position];
+                ids[position] = variable >= 0 && row[variable] >= 0 ? row[variable] : pattern.constants[position];
+            }
+            for (int i = 0; i < scanCount(pattern); i++) {
+                IndexScan scan = scan(pattern, ids, i);
+                while (scan.next()) {
+                    int[] joined = matches(pattern, scan) ? bind(pattern, row, scan) : null;
+                    if (joined != null) {
+                        result.add(joined);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Join a property path pattern, searching once per distinct binding of its
+     * ends.
+     */
+    private List<int[]> pathJoin(Step step, List<int[]> rows) {
+        Pattern pattern = step.pattern;
+        Map<Long, List<int[]>> searched = new HashMap<Long, List<int[]>>();
+        List<int[]> result = new ArrayList<int[]>();
+        for (int[] row : rows) {
+            int subject = pattern.variables[0] >= 0 ? row[pattern.variables[0]] : pattern.constants[0];
+            int object = pattern.variables[2] >= 0 ? row[pattern.variables[2]] : pattern.constants[2];
+            Long key = IndexRun.high(subject, object);
+            List<int[]> pairs = searched.get(key);
+            if (pairs == null) {
+                pairs = pattern.path.evaluate(knowledgeGraph, snapshot, subject, pattern.pathPredicate, object);
+                searched.put(key, pairs);
+            }
+            for (int[] pair : pairs) {
+                int[] joined = row.clone();
+                if (bind(joined, pattern.variables[0], pair[0]) && bind(joined, pattern.variables[2], pair[1])) {
+                    result.add(joined);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Join a numeric comparison pattern: scan the Triples of each matching
+     * Object once, keyed by Subject, and probe them with every row.
+     */
+    private List<int[]> rangeJoin(Step step, List<int[]> rows) {
+        Pattern pattern = step.pattern;
+        int variable = pattern.variables[0];
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        List<Integer> subjects = new ArrayList<Integer>();
+        for (int object : pattern.rangeObjects) {
+            IndexScan scan = snapshot.scan(pattern.constants[0], pattern.constants[1], object);
+            while (scan.next()) {
+                Integer count = counts.get(scan.subject());
+                counts.put(scan.subject(), count == null ? 1 : count + 1);
+                subjects.add(scan.subject());
+            }
+        }
+        List<int[]> result = new ArrayList<int[]>();
+        for (int[] row : rows) {
+            if (variable >= 0 && row[variable] >= 0) {
+                Integer count = counts.get(row[variable]);
+                for (int i = 0; count != null && i < count; i++) {
+                    result.add(row.clone());
+                }
+                continue;
+            }
+            for (int subject : subjects) {
+                int[] joined = row.clone();
+                bind(joined, variable, subject);
+                result.add(joined);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bind a variable of a row, if the term is one.
+     * 
+     * @return false if the variable is already bound to another value.
+     */
+    private static boolean bind(int[] row, int variable, int id) {
+        if (variable < 0) {
+            return true;
+        }
+        if (row[variable] >= 0 && row[variable] != id) {
+            return false;
+        }
+        row[variable] = id;
+        return true;
+    }
+
+    private List<int[]> hashJoin(Step step, List<int[]> rows) {
+        Pattern pattern = step.pattern;
+        int[] empty = new int[width];
+        Arrays.fill(empty, -1);
+        Map<Key, List<int[]>> table = new HashMap<Key, List<int[]>>();
+        for (int i = 0; i < scanCount(pattern); i++) {
+            IndexScan scan = scan(pattern, pattern.constants, i);
+            while (scan.next()) {
+                int[] matched = matches(pattern, scan) ? bind(pattern, empty, scan) : null;
+                if (matched != null) {
+                    Key key = new Key(matched, step.shared);
+                    List<int[]> bucket = table.get(key);
+                    if (bucket == null) {
+                        bucket = new ArrayList<int[]>();
+                        table.put(key, bucket);
+                    }
+                    bucket.add(matched);
+                }
+            }
+        }
+        List<int[]> result = new ArrayList<int[]>();
+        for (int[] row : rows) {
+            List<int[]> bucket = table.get(new Key(row, step.shared));
+            if (bucket != null) {
+                for (int[] matched : bucket) {
+                    int[] joined = row.clone();
+                    for (int variable = 0; variable < width; variable++) {
+                        if (matched[variable] >= 0) {
+                            joined[variable] = matched[variable];
+                        }
+                    }
+                    result.add(joined);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of scans covering a pattern: one per identifier
+     *         matching its scanned prefix, or one if it has no prefix.
+     */
+    private static int scanCount(Pattern pattern) {
+        return pattern.prefixes == null ? 1 : pattern.prefixes.size();
+    }
+
+    /**
+     * Open the scan of the given index covering a pattern with the given
+     * Subject, Predicate and Object ids.
+     */
+    private IndexScan scan(Pattern pattern, int[] ids, int index) {
+        return pattern.prefixes == null ? snapshot.scan(ids[0], ids[1], ids[2])
+                : pattern.prefixes.scan(snapshot, ids[0], ids[1], ids[2], index);
+    }
+
+    /**
+     * @return true if the current Triple of a scan matches the prefixes of the
+     *         pattern that are not scanned.
+     */
+    private static boolean matches(Pattern pattern, IndexScan scan) {
+        return pattern.prefixes == null || pattern.prefixes.matches(scan);
+    }
+
+    /**
+     * Extend a row with the variables bound by the current Triple of a scan.
+     * 
+     * @return the extended row, or null if a variable occurring twice in the
+     *         pattern would take two values.
+     */
+    private static int[] bind(Pattern pattern, int[] row, IndexScan scan) {
+        int[] joined = row.clone();
+        for (int position = 0; position < 3; position++) {
+            int variable = pattern.variables[position];
+            if (variable >= 0) {
+                int id = position == 0 ? scan.subject() : position == 1 ? scan.predicate() : scan.object();
+                if (joined[variable] >= 0 && joined[variable] != id) {
+                    return null;
+                }
+                joined[variable] = id;
+            }
+        }
+        return joined;
+    }
+
+    private static double log2(int size) {
+        return Math.log(Math.max(size, 2)) / Math.log(2);
+    }
+
+    /**
+     * A triple pattern resolved against the snapshot dictionaries.
+     */
+    private static class Pattern {
+        private final String[] terms;
+
+        /**
+         * Property path of the predicate term, or null.
+         */
+        private final PropertyPath path;
+
+        /**
+         * Id of the path predicate, or -1 if it is not in the dictionary.
+         */
+        private int pathPredicate = -1;
+
+        /**
+         * Numeric comparison of the Object term, or null.
+         */
+        private final NumericRange range;
+
+        /**
+         * Ids of the Objects satisfying the comparison, in ascending order of
+         * value.
+         */
+        private int[] rangeObjects;
+
+        /**
+         * Prefix terms, or null if the pattern has none.
+         */
+        private PrefixFilter prefixes;
+
+        /**
+         * Id of each constant term, -1 for variables, wildcards and prefixes,
+         * UNKNOWN for terms not in the dictionary.
+         */
+        private final int[] constants = { -1, -1, -1 };
+
+        /**
+         * Variable index of each variable term, -1 for other terms.
+         */
+        private final int[] variables = { -1, -1, -1 };
+
+        /**
+         * Number of Triples matching the constant terms.
+         */
+        private int count;
+
+        Pattern(String[] terms, PropertyPath path, NumericRange range) {
+            this.terms = terms;
+            this.path = path;
+            this.range = range;
+        }
+    }
+
+    /**
+     * A pattern with its join method and estimates.
+     */
+    private static class Step {
+        private final Pattern pattern;
+        private final List<Integer> shared = new ArrayList<Integer>();
+        private Join join;
+        private Permutation permutation;
+        private double rows;
+        private double cost;
+
+        Step(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        /**
+         * Prefer steps joined on a shared variable over cross products, then
+         * the smallest result, then the cheapest join.
+         */
+        boolean isBetterThan(Step other) {
+            if (shared.isEmpty() != other.shared.isEmpty()) {
+                return !shared.isEmpty();
+            }
+            if (rows != other.rows) {
+                return rows < other.rows;
+            }
+            return cost < other.cost;
+        }
+    }
+
+    /**
+     * Values of the shared variables of a row, used as hash join key.
+     */
+    private static class Key {
+        private final int[] values;
+
+        Key(int[] row, List<Integer> variables) {
+            values = new int[variables.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = row[variables.get(i)];
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && Arrays.equals(values, ((Key) other).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(values);
+        }
+    }
+}
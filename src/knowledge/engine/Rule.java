@@ -0,0 +1,285 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The Rule class is a forward chaining rule of a RuleEngine: whenever every
+ * triple pattern of its body matches, the Triples of its head are derived with
+ * the variables bound by the body substituted, e.g.
+ * 
+ * <pre>
+ * ?occupant is_in ?room. ?room part_of ?house =&gt; ?house has_occupant ?occupant.
+ * </pre>
+ * 
+ * Patterns are separated by periods followed by whitespace or ending the body
+ * or head, as in queries, so terms like “25.5” keep their periods. A term of
+ * the form “?name” is a variable and any other term a constant, matched
+ * exactly as given, as in PreparedQuery. Predicates must be constants and
+ * every variable of the head must occur in the body.
+ * 
+ * A Rule counts how often it was evaluated for a changed Triple, the Triples
+ * it derived and retracted and the time spent, for the throughput report of
+ * its RuleEngine. The counters are updated under the write lock of the
+ * KnowledgeGraph and may be read from any thread.
+ */
+public final class Rule {
+    private static final String ARROW = "=>";
+
+    private final String name;
+
+    /**
+     * Subject, Predicate and Object term of each body and head pattern.
+     */
+    private final List<String[]> body;
+    private final List<String[]> head;
+
+    /**
+     * Variable names in order of first occurrence in the body.
+     */
+    private final List<String> variables;
+
+    /**
+     * Ids of the constant terms and the dictionaries they were encoded with,
+     * or null before the first evaluation.
+     */
+    private Resolution resolution;
+
+    private volatile long firingCount;
+    private volatile long derivedCount;
+    private volatile long retractedCount;
+    private volatile long elapsedNanos;
+
+    private Rule(String name, List<String[]> body, List<String[]> head, List<String> variables) {
+        this.name = name;
+        this.body = body;
+        this.head = head;
+        this.variables = variables;
+    }
+
+    /**
+     * Parse a rule of the form “body =&gt; head”. Throws QueryEngineException if
+     * a pattern does not hold exactly three terms, a predicate is not a
+     * constant or a head variable does not occur in the body.
+     * 
+     * @param name
+     * @param text
+     * @return
+     * @throws QueryEngineException
+     */
+    static Rule parse(String name, String text) throws QueryEngineException {
+        int arrow = text.indexOf(ARROW);
+        if (arrow < 0) {
+            throw new QueryEngineException("Malformed rule, expected body => head: " + text);
+        }
+        List<String> variables = new ArrayList<String>();
+        List<String[]> body = parsePatterns(text.substring(0, arrow), text);
+        for (String[] terms : body) {
+            for (String term : terms) {
+                if (BasicGraphPattern.isVariable(term) && !variables.contains(term)) {
+                    variables.add(term);
+                }
+            }
+        }
+        List<String[]> head = parsePatterns(text.substring(arrow + ARROW.length()), text);
+        for (String[] terms : head) {
+            for (String term : terms) {
+                if (BasicGraphPattern.isVariable(term) && !variables.contains(term)) {
+                    throw new QueryEngineException("Head variable " + term + " does not occur in the body: "
+                            + text);
+                }
+            }
+        }
+        return new Rule(name, body, head, Collections.unmodifiableList(variables));
+    }
+
+    private static List<String[]> parsePatterns(String part, String text) throws QueryEngineException {
+        List<String[]> patterns = new ArrayList<String[]>();
+        for (String pattern : BasicGraphPattern.splitPatterns(part)) {
+            String trimmed = pattern.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            String[] terms = trimmed.split("\\s+");
+            if (terms.length != 3) {
+                throw new QueryEngineException("Malformed rule pattern, expected subject, predicate and object: "
+                        + trimmed);
+            }
+            for (String term : terms) {
+                if (term.equals(BasicGraphPattern.WILDCARD)) {
+                    throw new QueryEngineException("Rule patterns name their variables: " + trimmed);
+                }
+            }
+            if (BasicGraphPattern.isVariable(terms[1])) {
+                throw new QueryEngineException("Rule predicates must be constants: " + trimmed);
+            }
+            patterns.add(terms);
+        }
+        if (patterns.isEmpty()) {
+            throw new QueryEngineException("Rule without body or head: " + text);
+        }
+        return patterns;
+    }
+
+    /**
+     * @return the name the rule was added with.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of times the rule was evaluated for a Triple matching
+     *         one of its body patterns.
+     */
+    public long getFiringCount() {
+        return firingCount;
+    }
+
+    /**
+     * @return the number of Triples the rule added to the KnowledgeGraph.
+     */
+    public long getDerivedCount() {
+        return derivedCount;
+    }
+
+    /**
+     * @return the number of derived Triples retracted because no rule derives
+     *         them any more.
+     */
+    public long getRetractedCount() {
+        return retractedCount;
+    }
+
+    /**
+     * @return the time spent evaluating the rule, in nanoseconds.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the body predicates.
+     */
+    List<String> getBodyPredicates() {
+        List<String> predicates = new ArrayList<String>();
+        for (String[] terms : body) {
+            predicates.add(terms[1]);
+        }
+        return predicates;
+    }
+
+    /**
+     * @return the head predicates.
+     */
+    List<String> getHeadPredicates() {
+        List<String> predicates = new ArrayList<String>();
+        for (String[] terms : head) {
+            predicates.add(terms[1]);
+        }
+        return predicates;
+    }
+
+    int getBodySize() {
+        return body.size();
+    }
+
+    int getHeadSize() {
+        return head.size();
+    }
+
+    int getVariableCount() {
+        return variables.size();
+    }
+
+    /**
+     * @return the constant ids of the rule, encoding them in the dictionaries
+     *         of the given snapshot if they changed. The caller must hold the
+     *         write lock of the KnowledgeGraph.
+     */
+    Resolution resolve(GraphSnapshot snapshot) {
+        Resolution current = resolution;
+        if (current != null && current.nodeDictionary == snapshot.getNodeDictionary()
+                && current.predicateDictionary == snapshot.getPredicateDictionary()) {
+            return current;
+        }
+        current = new Resolution(snapshot, encode(snapshot, body), encode(snapshot, head));
+        resolution = current;
+        return current;
+    }
+
+    /**
+     * @return the id of each constant term and -(variable + 2) for each
+     *         variable term, three per pattern.
+     */
+    private int[] encode(GraphSnapshot snapshot, List<String[]> patterns) {
+        int[] terms = new int[3 * patterns.size()];
+        for (int i = 0; i < patterns.size(); i++) {
+            for (int position = 0; position < 3; position++) {
+                String term = patterns.get(i)[position];
+                if (BasicGraphPattern.isVariable(term)) {
+                    terms[3 * i + position] = -(variables.indexOf(term) + 2);
+                } else if (position == 1) {
+                    terms[3 * i + position] = snapshot.getPredicateDictionary().encode(term);
+                } else {
+                    terms[3 * i + position] = snapshot.getNodeDictionary().encode(term);
+                }
+            }
+        }
+        return terms;
+    }
+
+    void recordFiring(long nanos) {
+        firingCount++;
+        elapsedNanos += nanos;
+    }
+
+    void recordDerived() {
+        derivedCount++;
+    }
+
+    void recordRetracted() {
+        retractedCount++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (String[] terms : body) {
+            text.append(terms[0]).append(' ').append(terms[1]).append(' ').append(terms[2]).append(". ");
+        }
+        text.append(ARROW);
+        for (String[] terms : head) {
+            text.append(' ').append(terms[0]).append(' ').append(terms[1]).append(' ').append(terms[2]).append('.');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Body and head terms of a rule encoded against one pair of dictionaries.
+     */
+    static final class Resolution {
+        private final TermDictionary nodeDictionary;
+        private final TermDictionary predicateDictionary;
+        final int[] body;
+        final int[] head;
+
+        Resolution(GraphSnapshot snapshot, int[] body, int[] head) {
+            this.nodeDictionary = snapshot.getNodeDictionary();
+            this.predicateDictionary = snapshot.getPredicateDictionary();
+            this.body = body;
+            this.head = head;
+        }
+
+        /**
+         * @param term encoded term
+         * @return the variable index of a variable term, or -1 for a constant.
+         */
+        static int variable(int term) {
+            return term < 0 ? -(term + 2) : -1;
+        }
+    }
+}
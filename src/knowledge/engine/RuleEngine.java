@@ -0,0 +1,740 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.QueryEngineException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The RuleEngine class materializes the Triples derived by forward chaining
+ * Rules in the KnowledgeGraph and keeps them up to date incrementally. Every
+ * Triple added to or removed from the KnowledgeGraph whose predicate occurs in
+ * a rule becomes a change event, and only the rules with a body pattern
+ * matching the changed Triple are evaluated, with that pattern bound to it
+ * (semi-naive evaluation):
+ * 
+ * <ul>
+ * <li>an added Triple is joined with the other body patterns against the
+ * current snapshot and the resulting head Triples are added;</li>
+ * <li>a removed Triple is joined against the snapshot from before its
+ * removal, and each resulting head Triple the engine derived is retracted
+ * unless some rule still derives it from the current snapshot.</li>
+ * </ul>
+ * 
+ * Derived Triples are ordinary Triples of the KnowledgeGraph, logged and
+ * cached like any other, and their changes are events in turn. Triples present
+ * before a rule derived them are never retracted by the engine. Since a
+ * derivation check could otherwise be satisfied by a cycle of derived Triples,
+ * rules are rejected if they make a predicate depend on itself.
+ * 
+ * By default events are evaluated by the writing thread before its write
+ * returns. An asynchronous engine evaluates them on a background thread
+ * instead, taking the write lock per event, so writers do not wait for
+ * derivations; see flush. Bulk imports and snapshot loads do not produce
+ * events; call materialize afterwards to derive from their Triples.
+ */
+public final class RuleEngine {
+    /**
+     * Event telling the evaluation thread to stop.
+     */
+    private static final Event STOP = new Event(WriteAheadLog.ADD, null, -1, -1, -1);
+
+    private final KnowledgeGraph knowledgeGraph;
+    private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+    private final List<RuleListener> listeners = new CopyOnWriteArrayList<RuleListener>();
+
+    /**
+     * Change events not yet evaluated.
+     */
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<Event>();
+
+    /**
+     * Number of events queued or being evaluated. Guarded by this.
+     */
+    private long pending;
+
+    /**
+     * Triples added by the engine and not removed since. Guarded by the write
+     * lock.
+     */
+    private final Set<TripleKey> derived = new HashSet<TripleKey>();
+
+    /**
+     * Body patterns by predicate id for the current dictionaries, or null if
+     * stale. Guarded by the write lock.
+     */
+    private Triggers triggers;
+
+    /**
+     * Evaluation thread of an asynchronous engine, or null. Guarded by this;
+     * replaced under modeLock.
+     */
+    private Thread worker;
+
+    /**
+     * Lock serializing setAsynchronous.
+     */
+    private final Object modeLock = new Object();
+
+    RuleEngine(KnowledgeGraph knowledgeGraph) {
+        this.knowledgeGraph = knowledgeGraph;
+    }
+
+    /**
+     * Public method for adding a rule of the form “body =&gt; head” (see Rule)
+     * and deriving its head Triples from the current KnowledgeGraph. Throws
+     * QueryEngineException if the rule is malformed, its name is taken or it
+     * would make a predicate depend on itself.
+     * 
+     * @param name unique name of the rule in the throughput report
+     * @param text
+     * @return
+     * @throws QueryEngineException
+     */
+    public Rule addRule(String name, String text) throws QueryEngineException {
+        Rule rule = Rule.parse(name, text);
+        WriteAheadLog log;
+        long sequence;
+        synchronized (knowledgeGraph.getWriteLock()) {
+            for (Rule other : rules) {
+                if (other.getName().equals(name)) {
+                    throw new QueryEngineException("A rule named " + name + " already exists");
+                }
+            }
+            List<Rule> candidate = new ArrayList<Rule>(rules);
+            candidate.add(rule);
+            checkAcyclic(candidate, rule);
+            rules.add(rule);
+            triggers = null;
+            sequence = Math.max(evaluate(rule), drain());
+            knowledgeGraph.deliverChanges();
+            log = knowledgeGraph.getLog();
+        }
+        KnowledgeGraph.commit(log, sequence);
+        return rule;
+    }
+
+    /**
+     * @return the rules in the order they were added.
+     */
+    public List<Rule> getRules() {
+        return new ArrayList<Rule>(rules);
+    }
+
+    /**
+     * @param listener notified of every derived and retracted Triple
+     */
+    public void addListener(RuleListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(RuleListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Public method for deriving the head Triples of every rule from the
+     * current KnowledgeGraph, e.g. after a bulk import or snapshot load, whose
+     * Triples do not produce change events.
+     */
+    public void materialize() {
+        WriteAheadLog log;
+        long sequence = 0;
+        synchronized (knowledgeGraph.getWriteLock()) {
+            for (Rule rule : rules) {
+                sequence = Math.max(sequence, evaluate(rule));
+            }
+            sequence = Math.max(sequence, drain());
+            knowledgeGraph.deliverChanges();
+            log = knowledgeGraph.getLog();
+        }
+        KnowledgeGraph.commit(log, sequence);
+    }
+
+    /**
+     * Public method for choosing where change events are evaluated: by the
+     * writing thread before its write returns, or by a background thread so
+     * that writers do not wait. Switching to synchronous evaluation first
+     * evaluates the queued events.
+     * 
+     * @param asynchronous
+     */
+    public void setAsynchronous(boolean asynchronous) {
+        synchronized (modeLock) {
+            Thread current;
+            synchronized (this) {
+                current = worker;
+                if (asynchronous && current == null) {
+                    worker = new Thread(new Runnable() {
+                        public void run() {
+                            runWorker();
+                        }
+                    }, "KnowledgeGraph rule engine");
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+            }
+            if (!asynchronous && current != null) {
+                enqueue(STOP);
+                boolean interrupted = false;
+                while (current.isAlive()) {
+                    try {
+                        current.join();
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+                synchronized (this) {
+                    worker = null;
+                }
+                drainQueued();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if change events are evaluated by a background thread.
+     */
+    public synchronized boolean isAsynchronous() {
+        return worker != null;
+    }
+
+    /**
+     * Public method for waiting until every change event queued so far, and
+     * every event it caused, has been evaluated.
+     * 
+     * @throws InterruptedException
+     */
+    public synchronized void flush() throws InterruptedException {
+        while (pending > 0) {
+            wait();
+        }
+    }
+
+    /**
+     * Public method for describing the throughput of each rule: how often it
+     * was evaluated for a changed Triple, the Triples it derived and
+     * retracted, and the evaluations per second of evaluation time.
+     * 
+     * @return one line per rule.
+     */
+    public String getRuleReport() {
+        StringBuilder text = new StringBuilder();
+        for (Rule rule : rules) {
+            long nanos = rule.getElapsedNanos();
+            text.append(String.format("%s: %d firings, %d derived, %d retracted, %.3f ms, %.0f firings/s%n",
+                    rule.getName(), rule.getFiringCount(), rule.getDerivedCount(), rule.getRetractedCount(),
+                    nanos / 1e6, nanos == 0 ? 0.0 : rule.getFiringCount() * 1e9 / nanos));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Queue the change event of a Triple added to the KnowledgeGraph. The
+     * caller must hold the write lock.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void added(int subject, int predicate, int object) {
+        if (triggers(knowledgeGraph.getSnapshot()).isRelevant(predicate)) {
+            enqueue(new Event(WriteAheadLog.ADD, null, subject, predicate, object));
+        }
+    }
+
+    /**
+     * Queue the change event of a Triple removed from the KnowledgeGraph. The
+     * caller must hold the write lock.
+     * 
+     * @param before    snapshot still holding the Triple
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void removed(GraphSnapshot before, int subject, int predicate, int object) {
+        if (triggers(before).isRelevant(predicate)) {
+            enqueue(new Event(WriteAheadLog.REMOVE, before, subject, predicate, object));
+        }
+    }
+
+    /**
+     * Evaluate the queued events unless the engine is asynchronous. The caller
+     * must hold the write lock.
+     * 
+     * @return the log sequence number of the last derived write, or 0 if
+     *         nothing was logged.
+     */
+    long drain() {
+        if (isAsynchronous()) {
+            return 0;
+        }
+        long sequence = 0;
+        Event event;
+        while ((event = events.poll()) != null) {
+            if (event != STOP) {
+                sequence = Math.max(sequence, process(event));
+            }
+            done();
+        }
+        return sequence;
+    }
+
+    /**
+     * Forget the derived Triples and queued events, after the KnowledgeGraph
+     * was replaced by a loaded snapshot. The caller must hold the write lock.
+     */
+    void reset() {
+        derived.clear();
+        triggers = null;
+        Event event;
+        while ((event = events.poll()) != null) {
+            if (event == STOP) {
+                events.add(STOP);
+                return;
+            }
+            done();
+        }
+    }
+
+    private void drainQueued() {
+        WriteAheadLog log;
+        long sequence;
+        synchronized (knowledgeGraph.getWriteLock()) {
+            sequence = drain();
+            knowledgeGraph.deliverChanges();
+            log = knowledgeGraph.getLog();
+        }
+        KnowledgeGraph.commit(log, sequence);
+    }
+
+    private void enqueue(Event event) {
+        synchronized (this) {
+            pending++;
+        }
+        events.add(event);
+    }
+
+    private synchronized void done() {
+        if (--pending == 0) {
+            notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            Event event;
+            try {
+                event = events.take();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            if (event == STOP) {
+                done();
+                return;
+            }
+            WriteAheadLog log;
+            long sequence;
+            try {
+                synchronized (knowledgeGraph.getWriteLock()) {
+                    sequence = process(event);
+                    knowledgeGraph.deliverChanges();
+                    log = knowledgeGraph.getLog();
+                }
+                KnowledgeGraph.commit(log, sequence);
+            } finally {
+                done();
+            }
+        }
+    }
+
+    /**
+     * Evaluate a change event. The caller must hold the write lock.
+     * 
+     * @return the log sequence number of the last derived write, or 0 if
+     *         nothing was logged.
+     */
+    private long process(Event event) {
+        GraphSnapshot current = knowledgeGraph.getSnapshot();
+        if (event.operation == WriteAheadLog.ADD) {
+            if (!current.contains(event.subject, event.predicate, event.object)) {
+                return 0;
+            }
+            long sequence = 0;
+            for (int[] trigger : triggers(current).get(event.predicate)) {
+                Rule rule = rules.get(trigger[0]);
+                long start = System.nanoTime();
+                List<int[]> heads = new ArrayList<int[]>();
+                evaluate(current, rule, trigger[1], event, heads);
+                for (int[] ids : heads) {
+                    sequence = Math.max(sequence, derive(rule, ids));
+                }
+                rule.recordFiring(System.nanoTime() - start);
+            }
+            return sequence;
+        }
+        if (!current.contains(event.subject, event.predicate, event.object)) {
+            derived.remove(new TripleKey(event.subject, event.predicate, event.object));
+        }
+        long sequence = 0;
+        for (int[] trigger : triggers(current).get(event.predicate)) {
+            Rule rule = rules.get(trigger[0]);
+            long start = System.nanoTime();
+            List<int[]> heads = new ArrayList<int[]>();
+            evaluate(event.before, rule, trigger[1], event, heads);
+            for (int[] ids : heads) {
+                sequence = Math.max(sequence, retract(rule, ids));
+            }
+            rule.recordFiring(System.nanoTime() - start);
+        }
+        return sequence;
+    }
+
+    /**
+     * Derive the head Triples of a rule from every match of its body in the
+     * current snapshot. The caller must hold the write lock.
+     */
+    private long evaluate(Rule rule) {
+        GraphSnapshot current = knowledgeGraph.getSnapshot();
+        long start = System.nanoTime();
+        final Rule.Resolution resolution = rule.resolve(current);
+        final List<int[]> heads = new ArrayList<int[]>();
+        int[] row = new int[rule.getVariableCount()];
+        Arrays.fill(row, -1);
+        join(current, resolution, row, new boolean[rule.getBodySize()], rule.getBodySize(), new Solutions() {
+            public boolean add(int[] row) {
+                instantiate(resolution, row, heads);
+                return true;
+            }
+        });
+        long sequence = 0;
+        for (int[] ids : heads) {
+            sequence = Math.max(sequence, derive(rule, ids));
+        }
+        rule.recordFiring(System.nanoTime() - start);
+        return sequence;
+    }
+
+    /**
+     * Collect the head Triples of the matches of a rule body in the given
+     * snapshot with one body pattern bound to the Triple of an event.
+     */
+    private void evaluate(GraphSnapshot snapshot, Rule rule, int pattern, Event event, final List<int[]> heads) {
+        final Rule.Resolution resolution = rule.resolve(knowledgeGraph.getSnapshot());
+        int[] row = new int[rule.getVariableCount()];
+        Arrays.fill(row, -1);
+        if (!bind(resolution.body, pattern, row, event.subject, event.predicate, event.object)) {
+            return;
+        }
+        boolean[] matched = new boolean[rule.getBodySize()];
+        matched[pattern] = true;
+        join(snapshot, resolution, row, matched, rule.getBodySize() - 1, new Solutions() {
+            public boolean add(int[] row) {
+                instantiate(resolution, row, heads);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Add a head Triple unless present. The caller must hold the write lock.
+     */
+    private long derive(Rule rule, int[] ids) {
+        if (knowledgeGraph.getSnapshot().contains(ids[0], ids[1], ids[2])) {
+            return 0;
+        }
+        long sequence = knowledgeGraph.insert(ids[0], ids[1], ids[2]);
+        derived.add(new TripleKey(ids[0], ids[1], ids[2]));
+        rule.recordDerived();
+        notifyListeners(rule, ids, true);
+        return sequence;
+    }
+
+    /**
+     * Remove a head Triple the engine derived unless a rule still derives it.
+     * The caller must hold the write lock.
+     */
+    private long retract(Rule rule, int[] ids) {
+        TripleKey key = new TripleKey(ids[0], ids[1], ids[2]);
+        GraphSnapshot current = knowledgeGraph.getSnapshot();
+        if (!derived.contains(key) || !current.contains(ids[0], ids[1], ids[2]) || isDerivable(current, ids)) {
+            return 0;
+        }
+        derived.remove(key);
+        notifyListeners(rule, ids, false);
+        rule.recordRetracted();
+        return knowledgeGraph.delete(ids[0], ids[1], ids[2]);
+    }
+
+    /**
+     * @return true if some rule derives the given Triple from the given
+     *         snapshot.
+     */
+    private boolean isDerivable(GraphSnapshot snapshot, int[] ids) {
+        for (Rule rule : rules) {
+            Rule.Resolution resolution = rule.resolve(snapshot);
+            for (int pattern = 0; pattern < rule.getHeadSize(); pattern++) {
+                int[] row = new int[rule.getVariableCount()];
+                Arrays.fill(row, -1);
+                if (!bind(resolution.head, pattern, row, ids[0], ids[1], ids[2])) {
+                    continue;
+                }
+                final boolean[] found = new boolean[1];
+                join(snapshot, resolution, row, new boolean[rule.getBodySize()], rule.getBodySize(), new Solutions() {
+                    public boolean add(int[] row) {
+                        found[0] = true;
+                        return false;
+                    }
+                });
+                if (found[0]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void notifyListeners(Rule rule, int[] ids, boolean derivation) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Triple triple = KnowledgeGraph.toTriple(knowledgeGraph.getSnapshot(), ids[0], ids[1], ids[2]);
+        for (RuleListener listener : listeners) {
+            if (derivation) {
+                listener.derived(rule, triple);
+            } else {
+                listener.retracted(rule, triple);
+            }
+        }
+    }
+
+    /**
+     * Extend a row to every match of the body patterns not yet matched,
+     * matching next the pattern with the most bound terms.
+     * 
+     * @return false if the solutions stopped the search.
+     */
+    private static boolean join(GraphSnapshot snapshot, Rule.Resolution resolution, int[] row, boolean[] matched,
+            int remaining, Solutions solutions) {
+        if (remaining == 0) {
+            return solutions.add(row);
+        }
+        int best = -1;
+        int bestBound = -1;
+        int[] ids = new int[3];
+        for (int pattern = 0; pattern < matched.length; pattern++) {
+            if (!matched[pattern]) {
+                int bound = 0;
+                for (int position = 0; position < 3; position++) {
+                    bound += value(resolution.body[3 * pattern + position], row) >= 0 ? 1 : 0;
+                }
+                if (bound > bestBound) {
+                    best = pattern;
+                    bestBound = bound;
+                }
+            }
+        }
+        for (int position = 0; position < 3; position++) {
+            ids[position] = value(resolution.body[3 * best + position], row);
+        }
+        matched[best] = true;
+        IndexScan scan = snapshot.scan(ids[0], ids[1], ids[2]);
+        try {
+            while (scan.next()) {
+                int[] extended = row.clone();
+                if (bind(resolution.body, best, extended, scan.subject(), scan.predicate(), scan.object())
+                        && !join(snapshot, resolution, extended, matched, remaining - 1, solutions)) {
+                    return false;
+                }
+            }
+        } finally {
+            matched[best] = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the id of an encoded term under the given row, or -1 for an
+     *         unbound variable.
+     */
+    private static int value(int term, int[] row) {
+        int variable = Rule.Resolution.variable(term);
+        return variable < 0 ? term : row[variable];
+    }
+
+    /**
+     * Bind the variables of a pattern to a Triple.
+     * 
+     * @return false if a constant or an already bound variable differs from
+     *         the Triple.
+     */
+    private static boolean bind(int[] terms, int pattern, int[] row, int subject, int predicate, int object) {
+        int[] triple = { subject, predicate, object };
+        for (int position = 0; position < 3; position++) {
+            int term = terms[3 * pattern + position];
+            int variable = Rule.Resolution.variable(term);
+            if (variable < 0) {
+                if (term != triple[position]) {
+                    return false;
+                }
+            } else if (row[variable] < 0) {
+                row[variable] = triple[position];
+            } else if (row[variable] != triple[position]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void instantiate(Rule.Resolution resolution, int[] row, List<int[]> heads) {
+        for (int pattern = 0; pattern < resolution.head.length / 3; pattern++) {
+            int[] ids = new int[3];
+            for (int position = 0; position < 3; position++) {
+                ids[position] = value(resolution.head[3 * pattern + position], row);
+            }
+            heads.add(ids);
+        }
+    }
+
+    /**
+     * @return the body patterns by predicate for the dictionaries of the given
+     *         snapshot.
+     */
+    private Triggers triggers(GraphSnapshot snapshot) {
+        Triggers current = triggers;
+        if (current == null || current.predicateDictionary != snapshot.getPredicateDictionary()) {
+            current = new Triggers(snapshot.getPredicateDictionary());
+            for (int index = 0; index < rules.size(); index++) {
+                Rule.Resolution resolution = rules.get(index).resolve(snapshot);
+                for (int pattern = 0; pattern < resolution.body.length / 3; pattern++) {
+                    current.add(resolution.body[3 * pattern + 1], new int[] { index, pattern });
+                }
+                for (int pattern = 0; pattern < resolution.head.length / 3; pattern++) {
+                    current.add(resolution.head[3 * pattern + 1], null);
+                }
+            }
+            triggers = current;
+        }
+        return current;
+    }
+
+    /**
+     * Throw QueryEngineException if the given rules make a predicate depend on
+     * itself.
+     */
+    private static void checkAcyclic(List<Rule> rules, Rule added) throws QueryEngineException {
+        Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+        for (Rule rule : rules) {
+            for (String body : rule.getBodyPredicates()) {
+                Set<String> heads = dependents.get(body);
+                if (heads == null) {
+                    heads = new LinkedHashSet<String>();
+                    dependents.put(body, heads);
+                }
+                heads.addAll(rule.getHeadPredicates());
+            }
+        }
+        for (String start : added.getHeadPredicates()) {
+            List<String> stack = new ArrayList<String>();
+            Set<String> seen = new HashSet<String>();
+            stack.add(start);
+            while (!stack.isEmpty()) {
+                String predicate = stack.remove(stack.size() - 1);
+                Set<String> heads = dependents.get(predicate);
+                if (heads == null) {
+                    continue;
+                }
+                for (String head : heads) {
+                    if (head.equals(start)) {
+                        throw new QueryEngineException("Rule " + added.getName() + " makes " + start
+                                + " depend on itself");
+                    }
+                    if (seen.add(head)) {
+                        stack.add(head);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Receiver of the rows matching a rule body.
+     */
+    private interface Solutions {
+        /**
+         * @param row variable ids of a match
+         * @return false to stop the search.
+         */
+        boolean add(int[] row);
+    }
+
+    /**
+     * A Triple added to or removed from the KnowledgeGraph.
+     */
+    private static final class Event {
+        private final byte operation;
+
+        /**
+         * Snapshot still holding a removed Triple, or null for additions.
+         */
+        private final GraphSnapshot before;
+        private final int subject;
+        private final int predicate;
+        private final int object;
+
+        Event(byte operation, GraphSnapshot before, int subject, int predicate, int object) {
+            this.operation = operation;
+            this.before = before;
+            this.subject = subject;
+            this.predicate = predicate;
+            this.object = object;
+        }
+    }
+
+    /**
+     * Rule index and body pattern index of each body pattern, by predicate id,
+     * and the set of predicates occurring in some rule.
+     */
+    private static final class Triggers {
+        private static final List<int[]> NONE = new ArrayList<int[]>();
+
+        private final TermDictionary predicateDictionary;
+        private final Map<Integer, List<int[]>> patterns = new HashMap<Integer, List<int[]>>();
+
+        Triggers(TermDictionary predicateDictionary) {
+            this.predicateDictionary = predicateDictionary;
+        }
+
+        void add(int predicate, int[] trigger) {
+            List<int[]> list = patterns.get(predicate);
+            if (list == null) {
+                list = new ArrayList<int[]>();
+                patterns.put(predicate, list);
+            }
+            if (trigger != null) {
+                list.add(trigger);
+            }
+        }
+
+        boolean isRelevant(int predicate) {
+            return patterns.containsKey(predicate);
+        }
+
+        List<int[]> get(int predicate) {
+            List<int[]> list = patterns.get(predicate);
+            return list == null ? NONE : list;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The RuleListener interface is notified of the Triples a RuleEngine derives
+ * and retracts. Listeners are called while the write lock of the
+ * KnowledgeGraph is held, from the writing thread or, for an asynchronous
+ * RuleEngine, from its evaluation thread, and must return quickly.
+ */
+public interface RuleListener {
+    /**
+     * @param rule   the rule deriving the Triple
+     * @param triple the Triple added to the KnowledgeGraph
+     */
+    void derived(Rule rule, Triple triple);
+
+    /**
+     * @param rule   the rule whose body stopped matching
+     * @param triple the Triple removed from the KnowledgeGraph
+     */
+    void retracted(Rule rule, Triple triple);
+}
@@ -0,0 +1,348 @@
+package housemate.src.knowledge.engine;
+
+import housemate.src.knowledge.engine.exception.SnapshotException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The SnapshotFile class writes a GraphSnapshot to a binary file and loads it
+ * back by memory-mapping the file. The arrays of the file are used in place by
+ * MappedTerms and BufferRun, so loading only reads the header and a graph of
+ * any size is queryable immediately; pages are faulted in as queries touch
+ * them.
+ * 
+ * All values are little-endian and every array starts on an 8 byte boundary.
+ * The file consists of
+ * 
+ * <pre>
+ * header (64 bytes)
+ *   long magic "HMKGSNAP", int format version, int reserved,
+ *   long graph version, long triple count,
+ *   long node dictionary offset, long predicate dictionary offset,
+ *   long index offset, long file length
+ * dictionary section (Nodes, then Predicates)
+ *   int term count n, int slot count m, int term byte count b, int reserved,
+ *   int[m] hash slots, int[n + 1] term offsets, long[n] creation dates,
+ *   byte[b] UTF-8 terms
+ * index section (SPO, POS, OSP with t Triples each)
+ *   long[t] first and second key columns, int[t] third key column
+ * filter section (SPO, POS, OSP)
+ *   int hash count, int reserved, long capacity, long set bit count,
+ *   long word count w, long[w] filter bits
+ * </pre>
+ * 
+ * The Bloom filters are mapped like the index arrays and copied to the heap
+ * when the loaded graph is first written. Files of format version 1, which
+ * have no filter section, are still read; their filters are built on loading.
+ * 
+ * Each array is mapped on its own, so no single array may exceed 2 GB; in
+ * particular a snapshot holds at most 2^28 Triples.
+ */
+final class SnapshotFile {
+    /**
+     * "HMKGSNAP" in little-endian byte order.
+     */
+    private static final long MAGIC = 0x50414E53474B4D48L;
+
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_SIZE = 64;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Write the given snapshot to a file. The file is written under a temporary
+     * name and renamed when complete, so an existing snapshot file is replaced
+     * only by a complete one.
+     * 
+     * @param snapshot
+     * @param path
+     * @throws IOException
+     * @throws SnapshotException if the snapshot exceeds the size limits of the
+     *                           format
+     */
+    static void write(GraphSnapshot snapshot, Path path) throws IOException, SnapshotException {
+        int tripleCount = snapshot.size();
+        checkSize(8L * tripleCount, "Triples");
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output output = new Output(channel, HEADER_SIZE);
+            long nodeOffset = output.position();
+            writeDictionary(output, snapshot.getNodeDictionary());
+            long predicateOffset = output.position();
+            writeDictionary(output, snapshot.getPredicateDictionary());
+            long indexOffset = output.position();
+            for (Permutation permutation : Permutation.values()) {
+                IndexScan scan = snapshot.getIndex(permutation).scan(0, 0, 0, 0);
+                while (scan.next()) {
+                    output.putLong(scan.high());
+                }
+                scan = snapshot.getIndex(permutation).scan(0, 0, 0, 0);
+                while (scan.next()) {
+                    output.putInt(scan.low());
+                }
+                output.align();
+            }
+            for (Permutation permutation : Permutation.values()) {
+                BloomFilter filter = snapshot.getIndex(permutation).getFilter();
+                int wordCount = filter.getWordCount();
+                output.putInt(filter.getHashCount());
+                output.putInt(0);
+                output.putLong(filter.getCapacity());
+                output.putLong(filter.getSetBitCount());
+                output.putLong(wordCount);
+                for (int i = 0; i < wordCount; i++) {
+                    output.putLong(filter.getWord(i));
+                }
+            }
+            long fileLength = output.position();
+            output.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(MAGIC).putInt(FORMAT_VERSION).putInt(0).putLong(snapshot.getVersion())
+                    .putLong(tripleCount).putLong(nodeOffset).putLong(predicateOffset).putLong(indexOffset)
+                    .putLong(fileLength).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Map the given snapshot file. The returned snapshot has the graph version
+     * of the saved snapshot and reads its terms and keys from the mapping, which
+     * stays valid after the file is closed.
+     * 
+     * @param path
+     * @return
+     * @throws IOException
+     * @throws SnapshotException if the file is not a snapshot file of this
+     *                           format
+     */
+    static GraphSnapshot read(Path path) throws IOException, SnapshotException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new SnapshotException(path + " is not a KnowledgeGraph snapshot");
+            }
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getLong(0) != MAGIC) {
+                throw new SnapshotException(path + " is not a KnowledgeGraph snapshot");
+            }
+            int format = header.getInt(8);
+            if (format != FORMAT_VERSION && format != 1) {
+                throw new SnapshotException(path + " has unsupported snapshot format version " + format);
+            }
+            long version = header.getLong(16);
+            long tripleCount = header.getLong(24);
+            long indexOffset = header.getLong(48);
+            long filterOffset = indexOffset + 3 * align(12 * tripleCount);
+            if (header.getLong(56) != fileSize || tripleCount < 0 || filterOffset > fileSize
+                    || format == 1 && filterOffset != fileSize) {
+                throw new SnapshotException(path + " is truncated or corrupt");
+            }
+            TermDictionary nodeDictionary = readDictionary(channel, header.getLong(32), fileSize, path);
+            TermDictionary predicateDictionary = readDictionary(channel, header.getLong(40), fileSize, path);
+
+            PermutationIndex[] indexes = new PermutationIndex[Permutation.values().length];
+            long offset = indexOffset;
+            for (Permutation permutation : Permutation.values()) {
+                ByteBuffer highs = map(channel, offset, 8 * tripleCount);
+                ByteBuffer lows = map(channel, offset + 8 * tripleCount, 4 * tripleCount);
+                IndexRun run = new BufferRun(highs.asLongBuffer(), lows.asIntBuffer());
+                if (format == 1) {
+                    indexes[permutation.ordinal()] = new PermutationIndex(permutation, run);
+                } else {
+                    BloomFilter filter = readFilter(channel, filterOffset, fileSize, path);
+                    indexes[permutation.ordinal()] = new PermutationIndex(permutation, run, filter, null);
+                    filterOffset += 32 + 8L * filter.getWordCount();
+                }
+                offset += align(12 * tripleCount);
+            }
+            if (format != 1 && filterOffset != fileSize) {
+                throw new SnapshotException(path + " is truncated or corrupt");
+            }
+            return new GraphSnapshot(indexes[Permutation.SPO.ordinal()], indexes[Permutation.POS.ordinal()],
+                    indexes[Permutation.OSP.ordinal()], nodeDictionary, predicateDictionary, version);
+        }
+    }
+
+    private static void writeDictionary(Output output, TermDictionary dictionary)
+            throws IOException, SnapshotException {
+        int count = dictionary.size();
+        int[] offsets = new int[count + 1];
+        long byteCount = 0;
+        for (int id = 0; id < count; id++) {
+            offsets[id] = (int) byteCount;
+            byteCount += dictionary.decode(id).getBytes(StandardCharsets.UTF_8).length;
+            checkSize(byteCount, "term bytes");
+        }
+        offsets[count] = (int) byteCount;
+        checkSize(16L * count, "terms");
+
+        int[] slots = new int[Integer.highestOneBit(Math.max(count, 1)) << 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = TermDictionary.spread(dictionary.decode(id).hashCode()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+
+        output.putInt(count);
+        output.putInt(slots.length);
+        output.putInt((int) byteCount);
+        output.putInt(0);
+        for (int slot : slots) {
+            output.putInt(slot);
+        }
+        for (int offset : offsets) {
+            output.putInt(offset);
+        }
+        output.align();
+        for (int id = 0; id < count; id++) {
+            output.putLong(dictionary.getCreateDate(id));
+        }
+        for (int id = 0; id < count; id++) {
+            output.putBytes(dictionary.decode(id).getBytes(StandardCharsets.UTF_8));
+        }
+        output.align();
+    }
+
+    private static TermDictionary readDictionary(FileChannel channel, long offset, long fileSize, Path path)
+            throws IOException, SnapshotException {
+        if (offset < HEADER_SIZE || offset + 16 > fileSize) {
+            throw new SnapshotException(path + " is truncated or corrupt");
+        }
+        ByteBuffer counts = map(channel, offset, 16);
+        int count = counts.getInt(0);
+        int slotCount = counts.getInt(4);
+        int byteCount = counts.getInt(8);
+        if (count < 0 || slotCount <= count || Integer.bitCount(slotCount) != 1 || byteCount < 0) {
+            throw new SnapshotException(path + " is truncated or corrupt");
+        }
+        long slotsOffset = offset + 16;
+        long offsetsOffset = slotsOffset + 4L * slotCount;
+        long createDatesOffset = align(offsetsOffset + 4L * (count + 1));
+        long bytesOffset = createDatesOffset + 8L * count;
+        if (bytesOffset + byteCount > fileSize) {
+            throw new SnapshotException(path + " is truncated or corrupt");
+        }
+        return new TermDictionary(new MappedTerms(map(channel, slotsOffset, 4L * slotCount).asIntBuffer(),
+                map(channel, offsetsOffset, 4L * (count + 1)).asIntBuffer(),
+                map(channel, createDatesOffset, 8L * count).asLongBuffer(), map(channel, bytesOffset, byteCount)));
+    }
+
+    private static BloomFilter readFilter(FileChannel channel, long offset, long fileSize, Path path)
+            throws IOException, SnapshotException {
+        if (offset + 32 > fileSize) {
+            throw new SnapshotException(path + " is truncated or corrupt");
+        }
+        ByteBuffer counts = map(channel, offset, 32);
+        int hashCount = counts.getInt(0);
+        long capacity = counts.getLong(8);
+        long setBitCount = counts.getLong(16);
+        long wordCount = counts.getLong(24);
+        if (hashCount <= 0 || capacity <= 0 || wordCount <= 0 || wordCount > Integer.MAX_VALUE / 8
+                || offset + 32 + 8 * wordCount > fileSize) {
+            throw new SnapshotException(path + " is truncated or corrupt");
+        }
+        return new BloomFilter(capacity, hashCount, setBitCount, map(channel, offset + 32, 8 * wordCount)
+                .asLongBuffer());
+    }
+
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkSize(long bytes, String what) throws SnapshotException {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new SnapshotException("Too many " + what + " for the snapshot format");
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /**
+     * Buffered little-endian writer over a file channel that tracks the file
+     * position.
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position;
+
+        Output(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        long position() {
+            return position + buffer.position();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int length = Math.min(bytes.length - offset, buffer.remaining());
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Pad with zeros to the next 8 byte boundary.
+         */
+        void align() throws IOException {
+            while ((position() & 7) != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The SortedTerms class is a view of the ids of a TermDictionary sorted by
+ * their terms, so the terms starting with a prefix are found by a binary
+ * search instead of a pass over the dictionary. The view holds ids only and
+ * decodes their terms as a search proceeds, so it costs four bytes per term
+ * and serves mapped and off-heap dictionaries alike.
+ * 
+ * Ids are handed out in insertion order, so a view covers the ids [0, size) of
+ * its dictionary as a large sorted base and a small sorted run of the ids
+ * added since. A view is extended to newer ids by sorting a new recent run,
+ * and rebuilt as a single base once the recent run outgrows a fraction of the
+ * base, so the sorting work stays proportional to the terms added. A view is
+ * immutable and may be shared by concurrent readers.
+ */
+final class SortedTerms {
+    static final SortedTerms EMPTY = new SortedTerms(new int[0], new int[0]);
+
+    /**
+     * Smallest recent run that causes a rebuild.
+     */
+    private static final int MIN_RECENT = 1024;
+
+    /**
+     * Ids [0, base.length) in term order.
+     */
+    private final int[] base;
+
+    /**
+     * Ids [base.length, size()) in term order.
+     */
+    private final int[] recent;
+
+    private SortedTerms(int[] base, int[] recent) {
+        this.base = base;
+        this.recent = recent;
+    }
+
+    /**
+     * @return the number of ids covered by the view.
+     */
+    int size() {
+        return base.length + recent.length;
+    }
+
+    /**
+     * Return a view covering the ids [0, size) of the given dictionary, which
+     * must be the dictionary of this view.
+     * 
+     * @param dictionary
+     * @param size
+     * @return
+     */
+    SortedTerms extend(TermDictionary dictionary, int size) {
+        if (size <= size()) {
+            return this;
+        }
+        if (size - base.length > Math.max(MIN_RECENT, base.length / 32)) {
+            return new SortedTerms(sort(dictionary, 0, size), new int[0]);
+        }
+        return new SortedTerms(base, sort(dictionary, base.length, size));
+    }
+
+    /**
+     * @param dictionary
+     * @param prefix
+     * @return the ids of the terms starting with the given prefix, in term
+     *         order.
+     */
+    int[] withPrefix(TermDictionary dictionary, String prefix) {
+        int baseFrom = lowerBound(dictionary, base, prefix);
+        int baseTo = upperBound(dictionary, base, baseFrom, prefix);
+        int recentFrom = lowerBound(dictionary, recent, prefix);
+        int recentTo = upperBound(dictionary, recent, recentFrom, prefix);
+        int[] ids = new int[baseTo - baseFrom + recentTo - recentFrom];
+        int i = baseFrom;
+        int j = recentFrom;
+        for (int k = 0; k < ids.length; k++) {
+            if (j == recentTo || i < baseTo
+                    && dictionary.decode(base[i]).compareTo(dictionary.decode(recent[j])) < 0) {
+                ids[k] = base[i++];
+            } else {
+                ids[k] = recent[j++];
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the first index whose term is not less than the prefix.
+     */
+    private static int lowerBound(TermDictionary dictionary, int[] ids, String prefix) {
+        int low = 0;
+        int high = ids.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dictionary.decode(ids[middle]).compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the first index from the given one whose term does not start
+     *         with the prefix. Those terms follow each other in term order.
+     */
+    private static int upperBound(TermDictionary dictionary, int[] ids, int from, String prefix) {
+        int low = from;
+        int high = ids.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (dictionary.decode(ids[middle]).startsWith(prefix)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the ids [from, to) in term order.
+     */
+    private static int[] sort(TermDictionary dictionary, int from, int to) {
+        final String[] terms = new String[to - from];
+        Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = dictionary.decode(from + i);
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer left, Integer right) {
+                return terms[left].compareTo(terms[right]);
+            }
+        });
+        int[] ids = new int[terms.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = from + order[i];
+        }
+        return ids;
+    }
+}
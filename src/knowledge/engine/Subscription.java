@@ -0,0 +1,139 @@
+package housemate.src.knowledge.engine;
+
+import java.time.Instant;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Subscription class is a standing query of the KnowledgeGraph: a triple
+ * pattern, where “?” marks an unbound position, whose matching changes are
+ * pushed to the subscriber instead of being polled for (see
+ * KnowledgeGraph.subscribe). Every Triple added or removed by a single write,
+ * including Triples derived by rules and values replaced by a functional
+ * predicate, is delivered once, in write order. Bulk imports deliver the
+ * Triples they add; loading a snapshot replaces the graph without delivering
+ * any change.
+ * 
+ * A Subscription either calls a TripleListener or, if it was created without
+ * one, queues its changes as TripleEvents to be polled by the subscriber. The
+ * queue is unbounded, so a stream subscriber must keep polling or cancel the
+ * Subscription.
+ */
+public class Subscription {
+    private final KnowledgeGraph knowledgeGraph;
+    private final String subject;
+    private final String predicate;
+    private final String object;
+    private final TripleListener listener;
+
+    /**
+     * Changes not yet polled, or null if a listener is called instead.
+     */
+    private final BlockingQueue<TripleEvent> events;
+
+    private volatile boolean cancelled;
+
+    /**
+     * Number of changes whose listener call threw, and the latest exception
+     * thrown, or null.
+     */
+    private volatile long failureCount;
+    private volatile RuntimeException lastFailure;
+
+    Subscription(KnowledgeGraph knowledgeGraph, String subject, String predicate, String object,
+            TripleListener listener) {
+        this.knowledgeGraph = knowledgeGraph;
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+        this.listener = listener;
+        events = listener == null ? new LinkedBlockingQueue<TripleEvent>() : null;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getPredicate() {
+        return predicate;
+    }
+
+    public String getObject() {
+        return object;
+    }
+
+    /**
+     * Return the next change of a stream subscription, waiting up to the given
+     * time for one to happen.
+     * 
+     * @param timeout
+     * @param unit
+     * @return the change, or null if none happened in time.
+     * @throws InterruptedException
+     */
+    public TripleEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (events == null) {
+            throw new IllegalStateException("Changes of this subscription are delivered to its listener");
+        }
+        return events.poll(timeout, unit);
+    }
+
+    /**
+     * Stop delivering changes. Changes already queued can still be polled.
+     */
+    public void cancel() {
+        knowledgeGraph.unsubscribe(this);
+    }
+
+    /**
+     * @return true once the subscription has been cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    void setCancelled() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the number of changes whose listener call threw.
+     */
+    public long getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return the latest exception thrown by the listener, or null.
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Deliver a change to the subscriber. Called under the write lock of the
+     * KnowledgeGraph. A RuntimeException thrown by the listener is recorded
+     * (see getLastFailure) rather than passed on, so it neither aborts the
+     * write nor keeps the change from the other Subscriptions.
+     * 
+     * @param triple
+     * @param assertion true if the Triple was added, false if it was removed
+     */
+    void deliver(Triple triple, boolean assertion) {
+        if (events != null) {
+            events.add(new TripleEvent(triple, Instant.now().getEpochSecond(), assertion));
+            return;
+        }
+        try {
+            if (assertion) {
+                listener.added(triple);
+            } else {
+                listener.removed(triple);
+            }
+        } catch (RuntimeException ex) {
+            failureCount++;
+            lastFailure = ex;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package housemate.src.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SubscriptionIndex class finds the Subscriptions affected by a write. The
+ * patterns of the Subscriptions are keyed by their dictionary ids, with -1 for
+ * unbound positions, so that the patterns matching a written Triple are
+ * exactly its 8 generalizations, as for the QueryCache: a write costs 8 hash
+ * lookups plus the matching Subscriptions, however many are registered.
+ * 
+ * The index is guarded by the write lock of the KnowledgeGraph.
+ */
+final class SubscriptionIndex {
+    private static final String WILDCARD_TERM = "?";
+
+    private final Map<TripleKey, List<Subscription>> patterns = new HashMap<TripleKey, List<Subscription>>();
+    private final Map<Subscription, TripleKey> keys = new HashMap<Subscription, TripleKey>();
+
+    boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Register a Subscription, encoding the terms of its pattern so that the
+     * pattern keeps its key once the terms are first written.
+     * 
+     * @param subscription
+     * @param current      snapshot whose dictionaries encode the pattern
+     */
+    void add(Subscription subscription, GraphSnapshot current) {
+        TripleKey key = new TripleKey(encode(current.getNodeDictionary(), subscription.getSubject()),
+                encode(current.getPredicateDictionary(), subscription.getPredicate()),
+                encode(current.getNodeDictionary(), subscription.getObject()));
+        keys.put(subscription, key);
+        List<Subscription> subscriptions = patterns.get(key);
+        if (subscriptions == null) {
+            subscriptions = new ArrayList<Subscription>(1);
+            patterns.put(key, subscriptions);
+        }
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * @param subscription
+     * @return true if the Subscription was registered.
+     */
+    boolean remove(Subscription subscription) {
+        TripleKey key = keys.remove(subscription);
+        if (key == null) {
+            return false;
+        }
+        List<Subscription> subscriptions = patterns.get(key);
+        subscriptions.remove(subscription);
+        if (subscriptions.isEmpty()) {
+            patterns.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Key every pattern again with the ids of new dictionaries, e.g. after a
+     * snapshot file was loaded.
+     * 
+     * @param current snapshot whose dictionaries encode the patterns
+     */
+    void rekey(GraphSnapshot current) {
+        List<Subscription> subscriptions = new ArrayList<Subscription>(keys.keySet());
+        patterns.clear();
+        keys.clear();
+        for (Subscription subscription : subscriptions) {
+            add(subscription, current);
+        }
+    }
+
+    /**
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the Subscriptions whose pattern matches the given Triple.
+     */
+    List<Subscription> match(int subject, int predicate, int object) {
+        List<Subscription> matches = Collections.emptyList();
+        for (int mask = 0; mask < 8; mask++) {
+            List<Subscription> subscriptions = patterns.get(new TripleKey((mask & 4) == 0 ? subject : -1,
+                    (mask & 2) == 0 ? predicate : -1, (mask & 1) == 0 ? object : -1));
+            if (subscriptions != null) {
+                if (matches.isEmpty()) {
+                    matches = new ArrayList<Subscription>();
+                }
+                matches.addAll(subscriptions);
+            }
+        }
+        return matches;
+    }
+
+    private static int encode(TermDictionary dictionary, String term) {
+        return WILDCARD_TERM.equals(term) ? -1 : dictionary.encode(term);
+    }
+}
@@ -0,0 +1,26 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The SyncPolicy enumeration selects when the write-ahead log of the
+ * KnowledgeGraph forces its records to stable storage.
+ */
+public enum SyncPolicy {
+    /**
+     * A write returns once its record is on stable storage. Writers that wait at
+     * the same time share a single fsync (group commit).
+     */
+    COMMIT,
+
+    /**
+     * Records are written and forced to stable storage by a background thread
+     * at a fixed interval. A crash loses at most the writes of the last
+     * interval.
+     */
+    INTERVAL,
+
+    /**
+     * Records are handed to the operating system at a fixed interval but never
+     * forced. Survives a crash of the process, not of the machine.
+     */
+    NONE
+}
@@ -0,0 +1,522 @@
+package housemate.src.knowledge.engine;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The TemporalIndex class records the history of the KnowledgeGraph when its
+ * temporal mode is enabled: every assertion and retraction of a Triple is
+ * appended as an event with the epoch second it happened at, so events are in
+ * time order. Besides the event log itself, the positions of the events are
+ * kept in time ordered posting lists per Subject and Predicate pair, Predicate
+ * and Object pair, Subject, Predicate and Object, and a query binary searches
+ * the list of the most selective bound terms of its pattern for the start of
+ * its time range.
+ * 
+ * Each assertion is linked to the retraction ending it and vice versa, and
+ * every posting list keeps checkpoints of the positions of its assertions not
+ * retracted yet, taken whenever the events added since the previous one
+ * outnumber them. This makes the Triples that held at some time of a range
+ * available without replaying the log: those held at its start follow from
+ * the nearest checkpoint before it and the few events after that, and those
+ * asserted within the range from its own events. The checkpoints
+ * take memory proportional to the events of the list.
+ * 
+ * Triples present when the temporal mode is enabled or a snapshot is loaded,
+ * and those added by a bulk import, are recorded as asserted at that time, so
+ * every present Triple has an assertion. Nothing is known about the time
+ * before the temporal mode was enabled.
+ * 
+ * Writers must be serialized. Readers do not lock; an event becomes visible
+ * once the event count covering it is published.
+ */
+final class TemporalIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Clock clock;
+
+    /**
+     * Event log, replaced by a larger copy when full.
+     */
+    private volatile Events events = new Events(INITIAL_CAPACITY);
+
+    /**
+     * Number of events published to readers.
+     */
+    private volatile int size;
+
+    /**
+     * Time of the latest event, so that events stay in time order even if the
+     * clock is set back.
+     */
+    private long latest = Long.MIN_VALUE;
+
+    private final Map<Long, EventList> bySubjectPredicate = new ConcurrentHashMap<Long, EventList>();
+    private final Map<Long, EventList> byPredicateObject = new ConcurrentHashMap<Long, EventList>();
+    private final Map<Integer, EventList> bySubject = new ConcurrentHashMap<Integer, EventList>();
+    private final Map<Integer, EventList> byPredicate = new ConcurrentHashMap<Integer, EventList>();
+    private final Map<Integer, EventList> byObject = new ConcurrentHashMap<Integer, EventList>();
+
+    /**
+     * Posting list of every event.
+     */
+    private final EventList all = new EventList();
+
+    /**
+     * Position of the assertion of each Triple asserted and not retracted since.
+     */
+    private final Map<TripleKey, Integer> openAssertions = new ConcurrentHashMap<TripleKey, Integer>();
+
+    /**
+     * @param clock source of the event times
+     */
+    TemporalIndex(Clock clock) {
+        this.clock = clock;
+    }
+
+    Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * @return the number of recorded events.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Record the assertion or retraction of a Triple at the current time of
+     * the clock.
+     * 
+     * @param operation WriteAheadLog.ADD or WriteAheadLog.REMOVE
+     * @param subject
+     * @param predicate
+     * @param object
+     */
+    void record(byte operation, int subject, int predicate, int object) {
+        latest = Math.max(latest, clock.instant().getEpochSecond());
+        int position = size;
+        Events current = events;
+        if (position == current.times.length) {
+            current = current.grow();
+            events = current;
+        }
+        TripleKey key = new TripleKey(subject, predicate, object);
+        int partner = -1;
+        int change = 0;
+        if (operation == WriteAheadLog.ADD) {
+            openAssertions.put(key, position);
+            change = 1;
+        } else {
+            Integer assertion = openAssertions.remove(key);
+            if (assertion != null) {
+                partner = assertion;
+                current.partners[partner] = position;
+                change = -1;
+            }
+        }
+        current.times[position] = latest;
+        current.operations[position] = operation;
+        current.subjects[position] = subject;
+        current.predicates[position] = predicate;
+        current.objects[position] = object;
+        current.partners[position] = partner;
+        list(bySubjectPredicate, IndexRun.high(subject, predicate)).add(current, position, change);
+        list(byPredicateObject, IndexRun.high(predicate, object)).add(current, position, change);
+        list(bySubject, subject).add(current, position, change);
+        list(byPredicate, predicate).add(current, position, change);
+        list(byObject, object).add(current, position, change);
+        all.add(current, position, change);
+        size = position + 1;
+    }
+
+    /**
+     * Record the assertion of every Triple of a snapshot at the current time
+     * of the clock.
+     * 
+     * @param snapshot
+     */
+    void recordAll(GraphSnapshot snapshot) {
+        IndexScan scan = snapshot.scan(-1, -1, -1);
+        while (scan.next()) {
+            record(WriteAheadLog.ADD, scan.subject(), scan.predicate(), scan.object());
+        }
+    }
+
+    /**
+     * Collect the events of Triples matching a pattern that happened within a
+     * time range, in time order.
+     * 
+     * @param snapshot  snapshot whose dictionaries decode the ids
+     * @param subject   pattern id, or -1 if unbound
+     * @param predicate pattern id, or -1 if unbound
+     * @param object    pattern id, or -1 if unbound
+     * @param from      first epoch second of the range
+     * @param to        last epoch second of the range
+     * @return
+     */
+    List<TripleEvent> history(GraphSnapshot snapshot, int subject, int predicate, int object, long from,
+            long to) {
+        int count = size;
+        Events current = events;
+        EventList list = select(subject, predicate, object);
+        List<TripleEvent> result = new ArrayList<TripleEvent>();
+        int length = list.length(count);
+        for (int i = list.lowerBound(current, length, from); i < length; i++) {
+            int position = list.position(i);
+            if (current.times[position] > to) {
+                break;
+            }
+            if (current.matches(position, subject, predicate, object)) {
+                result.add(new TripleEvent(KnowledgeGraph.toTriple(snapshot, current.subjects[position],
+                        current.predicates[position], current.objects[position]), current.times[position],
+                        current.operations[position] == WriteAheadLog.ADD));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Collect the Triples matching a pattern that held at some time within a
+     * time range. A Triple held from the second of its assertion through the
+     * second of its retraction. Each Triple is returned once, with the time of
+     * the earliest of its assertions holding within the range as creation
+     * date. Takes a binary search plus time proportional to the assertions of
+     * the most selective bound terms holding at the start of the range and the
+     * events within it.
+     * 
+     * @param snapshot  current snapshot of the KnowledgeGraph
+     * @param subject   pattern id, or -1 if unbound
+     * @param predicate pattern id, or -1 if unbound
+     * @param object    pattern id, or -1 if unbound
+     * @param from      first epoch second of the range
+     * @param to        last epoch second of the range
+     * @return
+     */
+    List<Triple> during(GraphSnapshot snapshot, int subject, int predicate, int object, long from, long to) {
+        int count = size;
+        Events current = events;
+        EventList list = select(subject, predicate, object);
+        Map<TripleKey, Long> starts = new LinkedHashMap<TripleKey, Long>();
+        int length = list.length(count);
+        int first = list.lowerBound(current, length, from);
+        int checkpoint = list.checkpoint(first);
+        int begin = 0;
+        if (checkpoint >= 0) {
+            begin = list.checkpointIndex(checkpoint);
+            for (int position : list.checkpointOpen(checkpoint)) {
+                held(starts, current, count, position, subject, predicate, object, from);
+            }
+        }
+        for (int i = begin; i < first; i++) {
+            held(starts, current, count, list.position(i), subject, predicate, object, from);
+        }
+        for (int i = first; i < length; i++) {
+            int position = list.position(i);
+            long time = current.times[position];
+            if (time > to) {
+                break;
+            }
+            if (current.operations[position] == WriteAheadLog.ADD
+                    && current.matches(position, subject, predicate, object)) {
+                start(starts, current, position, time);
+            }
+        }
+        List<Triple> result = new ArrayList<Triple>(starts.size());
+        for (Map.Entry<TripleKey, Long> entry : starts.entrySet()) {
+            TripleKey key = entry.getKey();
+            result.add(KnowledgeGraph.toTriple(snapshot, key.subject, key.predicate, key.object, entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Start the Triple of an assertion before the given time if it matches the
+     * pattern and was not retracted before that time by one of the first count
+     * events.
+     */
+    private static void held(Map<TripleKey, Long> starts, Events current, int count, int position, int subject,
+            int predicate, int object, long from) {
+        if (current.operations[position] != WriteAheadLog.ADD
+                || !current.matches(position, subject, predicate, object)) {
+            return;
+        }
+        int partner = current.partners[position];
+        if (partner < 0 || partner >= count || current.times[partner] >= from) {
+            start(starts, current, position, current.times[position]);
+        }
+    }
+
+    /**
+     * Collect the first Triples matching a pattern in the order of their
+     * assertion, walking the posting list of the most selective bound terms
+     * from its newest or oldest end, so the latest k Triples take time
+     * proportional to k plus the retracted events passed over. Each Triple
+     * present in the snapshot is returned once, with the time of its open
+     * assertion as creation date.
+     * 
+     * @param snapshot    current snapshot of the KnowledgeGraph
+     * @param subject     pattern id, or -1 if unbound
+     * @param predicate   pattern id, or -1 if unbound
+     * @param object      pattern id, or -1 if unbound
+     * @param newestFirst true to return the latest assertions first
+     * @param limit       maximum number of Triples to return
+     * @return
+     */
+    List<Triple> ordered(GraphSnapshot snapshot, int subject, int predicate, int object, boolean newestFirst,
+            long limit) {
+        int count = size;
+        Events current = events;
+        EventList list = select(subject, predicate, object);
+        List<Triple> result = new ArrayList<Triple>();
+        int length = list.length(count);
+        for (int i = 0; i < length && result.size() < limit; i++) {
+            int position = list.position(newestFirst ? length - 1 - i : i);
+            if (current.operations[position] != WriteAheadLog.ADD
+                    || !current.matches(position, subject, predicate, object)) {
+                continue;
+            }
+            TripleKey key = new TripleKey(current.subjects[position], current.predicates[position],
+                    current.objects[position]);
+            Integer assertion = openAssertions.get(key);
+            if (assertion != null && assertion == position
+                    && snapshot.contains(key.subject, key.predicate, key.object)) {
+                result.add(KnowledgeGraph.toTriple(snapshot, key.subject, key.predicate, key.object,
+                        current.times[position]));
+            }
+        }
+        return result;
+    }
+
+    private static void start(Map<TripleKey, Long> starts, Events current, int position, long time) {
+        TripleKey key = new TripleKey(current.subjects[position], current.predicates[position],
+                current.objects[position]);
+        Long previous = starts.get(key);
+        if (previous == null || time < previous) {
+            starts.put(key, time);
+        }
+    }
+
+    /**
+     * @return the posting list of the most selective bound terms of the
+     *         pattern.
+     */
+    private EventList select(int subject, int predicate, int object) {
+        EventList list;
+        if (subject >= 0 && predicate >= 0) {
+            list = bySubjectPredicate.get(IndexRun.high(subject, predicate));
+        } else if (predicate >= 0 && object >= 0) {
+            list = byPredicateObject.get(IndexRun.high(predicate, object));
+        } else if (subject >= 0) {
+            list = bySubject.get(subject);
+        } else if (object >= 0) {
+            list = byObject.get(object);
+        } else if (predicate >= 0) {
+            list = byPredicate.get(predicate);
+        } else {
+            return all;
+        }
+        return list == null ? EventList.EMPTY : list;
+    }
+
+    private static <K> EventList list(Map<K, EventList> lists, K key) {
+        EventList list = lists.get(key);
+        if (list == null) {
+            list = new EventList();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * Event log columns, indexed by event position.
+     */
+    private static final class Events {
+        private final long[] times;
+        private final byte[] operations;
+        private final int[] subjects;
+        private final int[] predicates;
+        private final int[] objects;
+
+        /**
+         * Position of the retraction ending an assertion, or -1 while the
+         * Triple holds; position of the assertion a retraction ends, or -1 if
+         * none was recorded.
+         */
+        private final int[] partners;
+
+        Events(int capacity) {
+            this(new long[capacity], new byte[capacity], new int[capacity], new int[capacity], new int[capacity],
+                    new int[capacity]);
+        }
+
+        private Events(long[] times, byte[] operations, int[] subjects, int[] predicates, int[] objects,
+                int[] partners) {
+            this.times = times;
+            this.operations = operations;
+            this.subjects = subjects;
+            this.predicates = predicates;
+            this.objects = objects;
+            this.partners = partners;
+        }
+
+        Events grow() {
+            int capacity = 2 * times.length;
+            return new Events(Arrays.copyOf(times, capacity), Arrays.copyOf(operations, capacity),
+                    Arrays.copyOf(subjects, capacity), Arrays.copyOf(predicates, capacity),
+                    Arrays.copyOf(objects, capacity), Arrays.copyOf(partners, capacity));
+        }
+
+        boolean matches(int position, int subject, int predicate, int object) {
+            return (subject < 0 || subjects[position] == subject)
+                    && (predicate < 0 || predicates[position] == predicate)
+                    && (object < 0 || objects[position] == object);
+        }
+    }
+
+    /**
+     * Time ordered positions of the events sharing a key, with checkpoints of
+     * the positions of their assertions not retracted yet.
+     */
+    private static class EventList {
+        static final EventList EMPTY = new EventList();
+
+        /**
+         * Minimum number of events between checkpoints.
+         */
+        private static final int CHECKPOINT_INTERVAL = 64;
+
+        private static final int[] NONE = new int[0];
+
+        private volatile int[] positions = new int[4];
+        private volatile int size;
+
+        /**
+         * Number of assertions in the list not retracted yet.
+         */
+        private int open;
+
+        /**
+         * List index each checkpoint was taken at, and the ascending positions
+         * of the assertions before that index not retracted at the time.
+         */
+        private volatile int[] checkpointIndexes = NONE;
+        private volatile int[][] checkpointOpens = new int[0][];
+        private volatile int checkpoints;
+
+        /**
+         * @param events latest event log, holding the event
+         * @param position
+         * @param change   1 for an assertion, -1 for a retraction ending a
+         *                 recorded assertion, 0 otherwise
+         */
+        void add(Events events, int position, int change) {
+            int[] current = positions;
+            if (size == current.length) {
+                current = Arrays.copyOf(current, 2 * current.length);
+                positions = current;
+            }
+            current[size] = position;
+            size = size + 1;
+            open += change;
+            int last = checkpoints == 0 ? 0 : checkpointIndexes[checkpoints - 1];
+            if (size - last >= Math.max(CHECKPOINT_INTERVAL, open)) {
+                checkpoint(events, last);
+            }
+        }
+
+        private void checkpoint(Events events, int last) {
+            int[] retained = new int[open];
+            int count = 0;
+            int[] previous = checkpoints == 0 ? NONE : checkpointOpens[checkpoints - 1];
+            for (int position : previous) {
+                if (events.partners[position] < 0) {
+                    retained[count++] = position;
+                }
+            }
+            int[] current = positions;
+            for (int i = last; i < size; i++) {
+                int position = current[i];
+                if (events.operations[position] == WriteAheadLog.ADD && events.partners[position] < 0) {
+                    retained[count++] = position;
+                }
+            }
+            if (checkpoints == checkpointIndexes.length) {
+                int capacity = Math.max(4, 2 * checkpoints);
+                checkpointIndexes = Arrays.copyOf(checkpointIndexes, capacity);
+                checkpointOpens = Arrays.copyOf(checkpointOpens, capacity);
+            }
+            checkpointIndexes[checkpoints] = size;
+            checkpointOpens[checkpoints] = retained;
+            checkpoints = checkpoints + 1;
+        }
+
+        /**
+         * @param count number of events published when the query started
+         * @return the number of positions in the list below count.
+         */
+        int length(int count) {
+            int length = size;
+            int[] current = positions;
+            while (length > 0 && current[length - 1] >= count) {
+                length--;
+            }
+            return length;
+        }
+
+        int position(int index) {
+            return positions[index];
+        }
+
+        /**
+         * @return the index of the first position in the list at or after the
+         *         given time.
+         */
+        int lowerBound(Events events, int length, long time) {
+            int low = 0;
+            int high = length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (events.times[position(middle)] < time) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the latest checkpoint taken at or before the given list
+         *         index, or -1 if there is none.
+         */
+        int checkpoint(int index) {
+            int low = 0;
+            int high = checkpoints;
+            int[] indexes = checkpointIndexes;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (indexes[middle] <= index) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low - 1;
+        }
+
+        int checkpointIndex(int checkpoint) {
+            return checkpointIndexes[checkpoint];
+        }
+
+        int[] checkpointOpen(int checkpoint) {
+            return checkpointOpens[checkpoint];
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package housemate.src.knowledge.engine;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * The TermDictionary class assigns dense integer identifiers to term strings
+ * (Node or Predicate identifiers). Identifiers are handed out in insertion
+ * order starting at zero, so they can be used directly as array indexes by the
+ * triple store. Lookups go through an open addressing hash table of ids rather
+ * than a HashMap, so no boxed keys or entry objects are kept per term.
+ * 
+ * Encoding is synchronized, lookups are not. A term and its creation date are
+ * stored before its hash slot, and grown arrays are published through volatile
+ * fields, so a concurrent lookup either finds a fully stored term or misses a
+ * term that is still being added. Ids referenced by a published GraphSnapshot
+ * always decode.
+ * 
+ * A dictionary loaded from a snapshot file keeps the saved terms in a mapped,
+ * read-only MappedTerms table holding ids [0, baseSize). Terms encoded after
+ * loading are kept on the heap with ids from baseSize on. A dictionary given an
+ * OffHeapArena moves its heap terms into such tables in native memory whenever
+ * they reach a quarter of the terms in tables. Each move appends one table
+ * rather than copying the earlier ones, and only every MAX_TABLES tables are
+ * the arena's tables merged into one, so the tables superseded by growth and
+ * waiting for the garbage collector to release them (see OffHeapArena) hold at
+ * most about 1.3 times the terms of the live tables. The tables and the heap
+ * part are replaced together, so a lookup sees either the old or the new ones
+ * and ids never change.
+ */
+class TermDictionary {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Largest number of tables allocated from the arena. A lookup of a term
+     * that is not encoded probes every table.
+     */
+    private static final int MAX_TABLES = 8;
+
+    /**
+     * Terms in the table and on the heap.
+     */
+    private volatile Storage storage;
+
+    /**
+     * Arena the terms are kept in, or null to keep them on the heap. Guarded by
+     * the dictionary.
+     */
+    private OffHeapArena arena;
+
+    /**
+     * Ids in term order, extended on demand by withPrefix.
+     */
+    private volatile SortedTerms sorted = SortedTerms.EMPTY;
+
+    TermDictionary() {
+        this(null);
+    }
+
+    /**
+     * @param base terms loaded from a snapshot file, or null
+     */
+    TermDictionary(MappedTerms base) {
+        storage = new Storage(base == null ? new MappedTerms[0] : new MappedTerms[] { base }, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Return the id of the given term, or -1 if the term has not been encoded.
+     * 
+     * @param term
+     * @return
+     */
+    int lookup(String term) {
+        Storage current = storage;
+        for (int i = 0; i < current.tables.length; i++) {
+            int id = current.tables[i].lookup(term);
+            if (id >= 0) {
+                return current.starts[i] + id;
+            }
+        }
+        int[] table = current.slots;
+        String[] strings = current.terms;
+        int mask = table.length - 1;
+        for (int slot = spread(term.hashCode()) & mask;; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (entry <= strings.length && term.equals(strings[entry - 1])) {
+                return current.baseSize + entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Return the id of the given term, assigning the next dense id if the term has
+     * not been seen before.
+     * 
+     * @param term
+     * @return
+     */
+    synchronized int encode(String term) {
+        Storage current = storage;
+        for (int i = 0; i < current.tables.length; i++) {
+            int id = current.tables[i].lookup(term);
+            if (id >= 0) {
+                return current.starts[i] + id;
+            }
+        }
+        int mask = current.slots.length - 1;
+        int slot = spread(term.hashCode()) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int entry = current.slots[slot];
+            if (entry == 0) {
+                return add(term, slot);
+            }
+            if (current.terms[entry - 1].equals(term)) {
+                return current.baseSize + entry - 1;
+            }
+        }
+    }
+
+    /**
+     * Return the id of the term spelled by the given ASCII bytes, assigning the
+     * next dense id if the term has not been seen before. The term String is
+     * only created when a new id is assigned, so importers can resolve known
+     * terms straight from a read buffer.
+     * 
+     * @param bytes  ASCII term bytes
+     * @param length number of bytes used
+     * @param hash   String.hashCode() of the term
+     * @return
+     */
+    synchronized int encode(byte[] bytes, int length, int hash) {
+        Storage current = storage;
+        for (int i = 0; i < current.tables.length; i++) {
+            int id = current.tables[i].lookup(bytes, length, hash);
+            if (id >= 0) {
+                return current.starts[i] + id;
+            }
+        }
+        int mask = current.slots.length - 1;
+        int slot = spread(hash) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int entry = current.slots[slot];
+            if (entry == 0) {
+                return add(new String(bytes, 0, length, StandardCharsets.ISO_8859_1), slot);
+            }
+            if (matches(current.terms[entry - 1], bytes, length)) {
+                return current.baseSize + entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @param id
+     * @return the term string for the given id.
+     */
+    String decode(int id) {
+        Storage current = storage;
+        if (id >= current.baseSize) {
+            return current.terms[id - current.baseSize];
+        }
+        int i = current.tableOf(id);
+        return current.tables[i].decode(id - current.starts[i]);
+    }
+
+    /**
+     * @param id
+     * @return the Unix time stamp when the term was first encoded.
+     */
+    long getCreateDate(int id) {
+        Storage current = storage;
+        if (id >= current.baseSize) {
+            return current.createDates[id - current.baseSize];
+        }
+        int i = current.tableOf(id);
+        return current.tables[i].getCreateDate(id - current.starts[i]);
+    }
+
+    /**
+     * Return the ids of the terms starting with the given prefix, in term
+     * order, by a binary search of a sorted view of the dictionary that is
+     * extended to the terms encoded since the previous call. Concurrent calls
+     * may extend the view twice, which is wasted work but harmless.
+     * 
+     * @param prefix
+     * @return
+     */
+    int[] withPrefix(String prefix) {
+        SortedTerms view = sorted.extend(this, size());
+        sorted = view;
+        return view.withPrefix(this, prefix);
+    }
+
+    /**
+     * @return the number of encoded terms, which is also the next id to be
+     *         assigned.
+     */
+    int size() {
+        Storage current = storage;
+        return current.baseSize + current.size;
+    }
+
+    /**
+     * Keep the terms in the given arena: the terms on the heap are moved into
+     * a table allocated from it at once, and the terms encoded later whenever
+     * they reach a quarter of the terms in tables. A table loaded from a
+     * snapshot file is kept as it is. A null arena copies the terms of the
+     * tables allocated from an arena back onto the heap; their native memory
+     * is released once the garbage collector finds that no lookup uses them
+     * any more. Stays on the heap if the terms do not fit in single buffers.
+     * 
+     * @param arena arena for the terms, or null to keep them on the heap
+     */
+    synchronized void setArena(OffHeapArena arena) {
+        this.arena = arena;
+        if (arena != null && storage.size > 0) {
+            moveOffHeap();
+        } else if (arena == null && storage.allocated() > 0) {
+            moveOnHeap();
+        }
+    }
+
+    /**
+     * Replace the heap part by a table in the arena holding its terms, or once
+     * the arena holds MAX_TABLES tables, replace those and the heap part by a
+     * single table. The caller must hold the dictionary.
+     */
+    private void moveOffHeap() {
+        Storage current = storage;
+        int first = current.allocated() < MAX_TABLES ? current.tables.length
+                : current.tables.length - current.allocated();
+        int from = first < current.tables.length ? current.starts[first] : current.baseSize;
+        MappedTerms table = MappedTerms.copyOf(this, from, size() - from, arena);
+        if (table == null) {
+            arena = null;
+            return;
+        }
+        MappedTerms[] tables = Arrays.copyOf(current.tables, first + 1);
+        tables[first] = table;
+        storage = new Storage(tables, INITIAL_CAPACITY);
+    }
+
+    /**
+     * Replace the tables allocated from an arena and the heap part by a heap
+     * part holding their terms. The caller must hold the dictionary.
+     */
+    private void moveOnHeap() {
+        Storage current = storage;
+        MappedTerms[] kept = Arrays.copyOf(current.tables, current.tables.length - current.allocated());
+        int from = kept.length == 0 ? 0 : current.starts[kept.length];
+        int count = size() - from;
+        Storage copy = new Storage(kept, Math.max(INITIAL_CAPACITY, Integer.highestOneBit(count) << 1));
+        for (int i = 0; i < count; i++) {
+            String term = decode(from + i);
+            int mask = copy.slots.length - 1;
+            int slot = spread(term.hashCode()) & mask;
+            while (copy.slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            copy.terms[i] = term;
+            copy.createDates[i] = getCreateDate(from + i);
+            copy.slots[slot] = i + 1;
+            copy.size = i + 1;
+        }
+        storage = copy;
+    }
+
+    private int add(String term, int slot) {
+        Storage current = storage;
+        int id = current.size;
+        if (id == current.terms.length) {
+            current.createDates = Arrays.copyOf(current.createDates, id * 2);
+            current.terms = Arrays.copyOf(current.terms, id * 2);
+        }
+        current.createDates[id] = Instant.now().getEpochSecond();
+        current.terms[id] = term;
+        current.slots[slot] = id + 1;
+        current.size = id + 1;
+        if (current.size * 2 > current.slots.length) {
+            rehash(current, current.slots.length * 2);
+        }
+        if (arena != null && current.size >= Math.max(OffHeapArena.MIN_TERMS, current.baseSize / 4)) {
+            moveOffHeap();
+        }
+        return current.baseSize + id;
+    }
+
+    private static boolean matches(String term, byte[] bytes, int length) {
+        if (term.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (term.charAt(i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void rehash(Storage current, int capacity) {
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < current.size; id++) {
+            int slot = spread(current.terms[id].hashCode()) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+        current.slots = table;
+    }
+
+    static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 13);
+    }
+
+    /**
+     * Read-only tables of terms with the terms encoded after them on the heap.
+     * The heap arrays are only changed by the dictionary's writer, and grown
+     * arrays are published through volatile fields.
+     */
+    private static final class Storage {
+        /**
+         * Terms of a snapshot file followed by those of an arena, in id order.
+         */
+        private final MappedTerms[] tables;
+
+        /**
+         * First term id of each table.
+         */
+        private final int[] starts;
+
+        /**
+         * Number of terms in tables.
+         */
+        private final int baseSize;
+
+        /**
+         * Term strings indexed by term id - baseSize.
+         */
+        private volatile String[] terms;
+
+        /**
+         * Unix time stamps of term creation indexed by term id - baseSize.
+         */
+        private volatile long[] createDates;
+
+        /**
+         * Open addressing hash table holding term id - baseSize + 1 for
+         * occupied slots and 0 for empty ones. The table length is always a
+         * power of two.
+         */
+        private volatile int[] slots;
+
+        /**
+         * Number of terms held on the heap.
+         */
+        private volatile int size;
+
+        Storage(MappedTerms[] tables, int capacity) {
+            this.tables = tables;
+            starts = new int[tables.length];
+            int count = 0;
+            for (int i = 0; i < tables.length; i++) {
+                starts[i] = count;
+                count += tables[i].size();
+            }
+            baseSize = count;
+            terms = new String[capacity];
+            createDates = new long[capacity];
+            slots = new int[capacity * 2];
+        }
+
+        /**
+         * @param id id below baseSize
+         * @return the index of the table holding the given id.
+         */
+        int tableOf(int id) {
+            int i = tables.length - 1;
+            while (starts[i] > id) {
+                i--;
+            }
+            return i;
+        }
+
+        /**
+         * @return the number of tables allocated from an arena, which follow
+         *         the table of a snapshot file.
+         */
+        int allocated() {
+            int count = 0;
+            for (MappedTerms table : tables) {
+                if (table.isAllocated()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package housemate.src.knowledge.engine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * The TopK class keeps the first k elements offered to it under an ordering
+ * in a bounded heap whose root is the last element kept, so selecting the
+ * first k of n results costs O(n log k) time and O(k) space instead of a full
+ * sort.
+ */
+final class TopK<T> {
+    private final Comparator<T> order;
+    private final long k;
+    private final PriorityQueue<T> heap;
+
+    /**
+     * @param order
+     * @param k     maximum number of elements kept
+     */
+    TopK(Comparator<T> order, long k) {
+        this.order = order;
+        this.k = k;
+        heap = new PriorityQueue<T>((int) Math.min(k, 1024) + 1, Collections.reverseOrder(order));
+    }
+
+    /**
+     * @param element
+     * @return true if the element is among the first k offered so far.
+     */
+    boolean offer(T element) {
+        if (heap.size() < k) {
+            heap.add(element);
+            return true;
+        }
+        if (k == 0 || order.compare(element, heap.peek()) >= 0) {
+            return false;
+        }
+        heap.poll();
+        heap.add(element);
+        return true;
+    }
+
+    /**
+     * @return the elements kept, in order.
+     */
+    List<T> toList() {
+        List<T> elements = new ArrayList<T>(heap);
+        Collections.sort(elements, order);
+        return elements;
+    }
+}
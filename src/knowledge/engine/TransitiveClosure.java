@@ -0,0 +1,167 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The TransitiveClosure class caches, for one hot predicate p of the
+ * KnowledgeGraph, the Nodes reachable by “p+” from recently queried Subjects,
+ * as sorted id arrays. Entries are evicted in least recently used order once
+ * they hold more than the capacity of ids in total.
+ * 
+ * The cache is maintained incrementally as Triples with p are written. Adding
+ * “s p o” extends the set of every cached Subject x that is s or reaches s by
+ * the Nodes reachable from o, and o itself. Removing “s p o” may shorten the
+ * sets of exactly those Subjects; they are dropped and recomputed by the next
+ * query, while every other entry stays in place. Writes of other predicates
+ * just advance the snapshot the entries are valid for.
+ * 
+ * As with QueryCache, a set may only be read or stored for the snapshot the
+ * cache was last told about.
+ */
+final class TransitiveClosure {
+    private static final long CAPACITY = 1L << 20;
+
+    private final int predicate;
+    private final Map<Integer, int[]> entries = new LinkedHashMap<Integer, int[]>(16, 0.75f, true);
+
+    /**
+     * Snapshot of the latest write the cache was told about.
+     */
+    private GraphSnapshot current;
+
+    /**
+     * Total number of ids in the cached sets, counting an empty set as one.
+     */
+    private long weight;
+
+    /**
+     * @param predicate id of the hot predicate
+     * @param current   current snapshot of the KnowledgeGraph
+     */
+    TransitiveClosure(int predicate, GraphSnapshot current) {
+        this.predicate = predicate;
+        this.current = current;
+    }
+
+    /**
+     * @param snapshot snapshot the query reads
+     * @param source
+     * @return the sorted ids of the Nodes reachable from source, or null if
+     *         they are not cached for the given snapshot.
+     */
+    synchronized int[] get(GraphSnapshot snapshot, int source) {
+        return snapshot == current ? entries.get(source) : null;
+    }
+
+    /**
+     * Store the Nodes reachable from source computed from the given snapshot,
+     * unless a write has been published since.
+     * 
+     * @param snapshot
+     * @param source
+     * @param reachable
+     */
+    synchronized void put(GraphSnapshot snapshot, int source, int[] reachable) {
+        if (snapshot != current) {
+            return;
+        }
+        int[] previous = entries.put(source, reachable);
+        weight += Math.max(1, reachable.length);
+        if (previous != null) {
+            weight -= Math.max(1, previous.length);
+        }
+        Iterator<int[]> eldest = entries.values().iterator();
+        while (weight > CAPACITY && eldest.hasNext()) {
+            weight -= Math.max(1, eldest.next().length);
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Extend the cached sets by a Triple that was added. Called after
+     * publishing the snapshot reflecting the write.
+     * 
+     * @param successor snapshot reflecting the write
+     * @param subject
+     * @param object
+     */
+    synchronized void added(GraphSnapshot successor, int subject, int object) {
+        current = successor;
+        int[] extension = null;
+        for (Map.Entry<Integer, int[]> entry : entries.entrySet()) {
+            int[] reachable = entry.getValue();
+            if (entry.getKey() != subject && Arrays.binarySearch(reachable, subject) < 0
+                    || Arrays.binarySearch(reachable, object) >= 0) {
+                continue;
+            }
+            if (extension == null) {
+                extension = union(PropertyPath.closure(successor, predicate, object), new int[] { object });
+            }
+            int[] extended = union(reachable, extension);
+            weight += Math.max(1, extended.length) - Math.max(1, reachable.length);
+            entry.setValue(extended);
+        }
+    }
+
+    /**
+     * Drop the cached sets a removed Triple may shorten. Called after
+     * publishing the snapshot reflecting the write.
+     * 
+     * @param successor snapshot reflecting the write
+     * @param subject
+     */
+    synchronized void removed(GraphSnapshot successor, int subject) {
+        current = successor;
+        Iterator<Map.Entry<Integer, int[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, int[]> entry = iterator.next();
+            if (entry.getKey() == subject || Arrays.binarySearch(entry.getValue(), subject) >= 0) {
+                weight -= Math.max(1, entry.getValue().length);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Keep the cached sets valid for a snapshot that differs from its
+     * predecessor only in Triples with other predicates.
+     * 
+     * @param successor the published snapshot
+     */
+    synchronized void advance(GraphSnapshot successor) {
+        current = successor;
+    }
+
+    /**
+     * @return the id of the hot predicate.
+     */
+    int getPredicate() {
+        return predicate;
+    }
+
+    /**
+     * @return the sorted union of two sorted id arrays.
+     */
+    static int[] union(int[] first, int[] second) {
+        int[] result = new int[first.length + second.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < first.length || j < second.length) {
+            int next;
+            if (j == second.length || i < first.length && first[i] < second[j]) {
+                next = first[i++];
+            } else if (i == first.length || second[j] < first[i]) {
+                next = second[j++];
+            } else {
+                next = first[i++];
+                j++;
+            }
+            result[size++] = next;
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+}
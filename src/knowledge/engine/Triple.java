@@ -6,6 +6,8 @@ public class Triple {
     /**
      * Private unique non mutable identifier for the Triple. Of the form:
      * subject.identifier + “ “ + predicate.identifer + “ “ + object.identifier.
+     * Built on first use, since Triples materialized as query results are
+     * often only inspected through their Nodes.
      */
     private String identifier;
 
@@ -30,9 +32,25 @@ public class Triple {
     private Node object;
 
     public Triple(Node subject, Predicate predicate, Node object) {
-        identifier = subject.getIdentifier() + " " + predicate.getIdentifier() + " " + object.getIdentifier() + ".";
         createDate = Instant.now().getEpochSecond();
-        
+
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+    }
+
+    /**
+     * Create a Triple with the given creation date, e.g. the time it was
+     * asserted according to the history of the KnowledgeGraph.
+     * 
+     * @param subject
+     * @param predicate
+     * @param object
+     * @param createDate Unix time stamp
+     */
+    Triple(Node subject, Predicate predicate, Node object, long createDate) {
+        this.createDate = createDate;
+
         this.subject = subject;
         this.predicate = predicate;
         this.object = object;
@@ -52,6 +70,10 @@ public class Triple {
      * @return the Triple identifier.
      */
     public String getIdentifier() {
+        if (identifier == null) {
+            identifier = subject.getIdentifier() + " " + predicate.getIdentifier() + " " + object.getIdentifier()
+                    + ".";
+        }
         return identifier;
     }
 
@@ -82,4 +104,18 @@ public class Triple {
     public Node getObject() {
         return object;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof Triple)) {
+            return false;
+        }
+        Triple triple = (Triple) other;
+        return subject.equals(triple.subject) && predicate.equals(triple.predicate) && object.equals(triple.object);
+    }
+
+    @Override
+    public int hashCode() {
+        return (subject.hashCode() * 31 + predicate.hashCode()) * 31 + object.hashCode();
+    }
+}
@@ -0,0 +1,64 @@
+package housemate.src.knowledge.engine;
+
+import java.util.Arrays;
+
+/**
+ * The TripleBuffer class collects parsed Triples as consecutive Subject,
+ * Predicate, Object ids in one int array. Used by bulk imports to hold the
+ * Triples of a chunk until they are sorted into IndexRuns.
+ */
+class TripleBuffer implements TripleSink {
+    private int[] ids = new int[3 * 1024];
+    private int size;
+
+    public void addTriple(int subject, int predicate, int object) {
+        if (3 * size == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[3 * size] = subject;
+        ids[3 * size + 1] = predicate;
+        ids[3 * size + 2] = object;
+        size++;
+    }
+
+    /**
+     * @return the number of buffered Triples.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Translate the buffered ids in place through the given id mappings.
+     * 
+     * @param nodeIds      new id indexed by old Node id
+     * @param predicateIds new id indexed by old Predicate id
+     */
+    void remap(int[] nodeIds, int[] predicateIds) {
+        for (int i = 0; i < 3 * size; i += 3) {
+            ids[i] = nodeIds[ids[i]];
+            ids[i + 1] = predicateIds[ids[i + 1]];
+            ids[i + 2] = nodeIds[ids[i + 2]];
+        }
+    }
+
+    /**
+     * Sort the buffered Triples into a run in the given ordering.
+     * 
+     * @param permutation
+     * @return
+     */
+    IndexRun toRun(Permutation permutation) {
+        long[] highs = new long[size];
+        int[] lows = new int[size];
+        for (int i = 0; i < size; i++) {
+            int subject = ids[3 * i];
+            int predicate = ids[3 * i + 1];
+            int object = ids[3 * i + 2];
+            highs[i] = IndexRun.high(permutation.first(subject, predicate, object),
+                    permutation.second(subject, predicate, object));
+            lows[i] = permutation.third(subject, predicate, object);
+        }
+        return IndexRun.sort(highs, lows, size);
+    }
+}
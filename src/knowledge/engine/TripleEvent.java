@@ -0,0 +1,43 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The TripleEvent class is an entry of the history of the KnowledgeGraph: the
+ * assertion or retraction of a Triple at a point in time.
+ */
+public class TripleEvent {
+    private Triple triple;
+    private long time;
+    private boolean assertion;
+
+    TripleEvent(Triple triple, long time, boolean assertion) {
+        this.triple = triple;
+        this.time = time;
+        this.assertion = assertion;
+    }
+
+    /**
+     * @return the asserted or retracted Triple.
+     */
+    public Triple getTriple() {
+        return triple;
+    }
+
+    /**
+     * @return the Unix time stamp of the event.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return true if the Triple was asserted, false if it was retracted.
+     */
+    public boolean isAssertion() {
+        return assertion;
+    }
+
+    @Override
+    public String toString() {
+        return time + (assertion ? " + " : " - ") + triple.getIdentifier();
+    }
+}
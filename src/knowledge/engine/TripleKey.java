@@ -0,0 +1,32 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The TripleKey class is the Subject, Predicate and Object dictionary ids of a
+ * Triple or a single triple pattern, with -1 for unbound positions, for use as
+ * a hash key.
+ */
+final class TripleKey {
+    final int subject;
+    final int predicate;
+    final int object;
+
+    TripleKey(int subject, int predicate, int object) {
+        this.subject = subject;
+        this.predicate = predicate;
+        this.object = object;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof TripleKey)) {
+            return false;
+        }
+        TripleKey key = (TripleKey) other;
+        return subject == key.subject && predicate == key.predicate && object == key.object;
+    }
+
+    @Override
+    public int hashCode() {
+        return (subject * 31 + predicate) * 31 + object;
+    }
+}
@@ -0,0 +1,22 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * The TripleListener interface is notified of the changes matching the triple
+ * pattern of a Subscription. Listeners are called while the write lock of the
+ * KnowledgeGraph is held, from the writing thread, once the write and the
+ * closures and rule derivations it caused are visible to queries, and must
+ * return quickly. A RuntimeException thrown by a listener does not undo or
+ * abort the write and does not affect other Subscriptions; it is recorded by
+ * the Subscription (see Subscription.getLastFailure).
+ */
+public interface TripleListener {
+    /**
+     * @param triple the Triple added to the KnowledgeGraph
+     */
+    void added(Triple triple);
+
+    /**
+     * @param triple the Triple removed from the KnowledgeGraph
+     */
+    void removed(Triple triple);
+}
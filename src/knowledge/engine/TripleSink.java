@@ -0,0 +1,9 @@
+package housemate.src.knowledge.engine;
+
+/**
+ * Receiver of the Triples produced by an NTriplesParser, given as ids of the
+ * dictionaries the parser was created with.
+ */
+interface TripleSink {
+    void addTriple(int subject, int predicate, int object);
+}
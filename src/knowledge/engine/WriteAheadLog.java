@@ -0,0 +1,440 @@
+package housemate.src.knowledge.engine;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The WriteAheadLog class makes KnowledgeGraph writes durable. Every write is
+ * appended as a record to an in-memory batch before it is published, and
+ * batches are written to an append-only file by whichever writer finds no
+ * write in progress, so concurrent writers share one write and one fsync
+ * (group commit). How soon records reach stable storage is set by the
+ * SyncPolicy.
+ * 
+ * A record is an int payload length, the CRC32 of the payload and the payload:
+ * operation byte, graph version after the write, and the Subject, Predicate and
+ * Object identifiers as length prefixed UTF-8. Opening a log replays the
+ * records newer than the current graph version and cuts off a torn or corrupt
+ * tail left by a crash. Since replaying an already applied suffix of additions
+ * and removals leaves the graph unchanged, replay is safe after any crash.
+ */
+final class WriteAheadLog {
+    /**
+     * Operation of a record adding a Triple.
+     */
+    static final byte ADD = 1;
+
+    /**
+     * Operation of a record removing a Triple.
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * Interval of the background sync thread in milliseconds.
+     */
+    private static final long SYNC_INTERVAL = 50;
+
+    /**
+     * Upper bound of a record payload, used to detect corrupt lengths.
+     */
+    private static final int MAX_PAYLOAD = 1 << 26;
+
+    /**
+     * Size in bytes beyond which the batch of appended records is written to
+     * the file by append instead of growing further.
+     */
+    private static final int MAX_PENDING = 1 << 24;
+
+    /**
+     * Receives the records replayed when a log is opened.
+     */
+    interface Handler {
+        /**
+         * @param operation
+         * @param version   graph version after the logged write
+         * @param subject
+         * @param predicate
+         * @param object
+         */
+        void apply(byte operation, long version, String subject, String predicate, String object);
+    }
+
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final CRC32 checksum = new CRC32();
+    private final Thread syncThread;
+
+    /**
+     * Records appended but not yet handed to a flush.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * Empty buffer to swap in for pending, or null while a flush writes it.
+     */
+    private ByteBuffer spare = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * Sequence number of the last appended record.
+     */
+    private long appended;
+
+    /**
+     * Sequence number of the last record written as required by the policy.
+     */
+    private long durable;
+
+    private boolean flushing;
+    private boolean closed;
+    private IOException failure;
+    private int recoveredCount;
+
+    private WriteAheadLog(FileChannel channel, SyncPolicy policy) {
+        this.channel = channel;
+        this.policy = policy;
+        if (policy == SyncPolicy.COMMIT) {
+            syncThread = null;
+        } else {
+            syncThread = new Thread(new Runnable() {
+                public void run() {
+                    runSyncThread();
+                }
+            }, "KnowledgeGraph WAL sync");
+            syncThread.setDaemon(true);
+        }
+    }
+
+    /**
+     * Open or create the log file, replay its records newer than the given graph
+     * version and position the log for appending.
+     * 
+     * @param path
+     * @param policy
+     * @param version current graph version
+     * @param handler receives the replayed records in log order
+     * @return
+     * @throws IOException
+     */
+    static WriteAheadLog open(Path path, SyncPolicy policy, long version, Handler handler) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            WriteAheadLog log = new WriteAheadLog(channel, policy);
+            long end = log.replay(version, handler);
+            channel.truncate(end);
+            channel.position(end);
+            if (log.syncThread != null) {
+                log.syncThread.start();
+            }
+            return log;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return the number of records replayed when the log was opened.
+     */
+    int getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    /**
+     * Append a record to the current batch. Callers serialize appends in graph
+     * version order.
+     * 
+     * @param operation
+     * @param version   graph version after the write
+     * @param subject
+     * @param predicate
+     * @param object
+     * @return the sequence number to pass to commit.
+     * @throws IOException if an earlier write of the log failed
+     */
+    synchronized long append(byte operation, long version, String subject, String predicate, String object)
+            throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log is unusable after an earlier failure", failure);
+        }
+        byte[] subjectBytes = subject.getBytes(StandardCharsets.UTF_8);
+        byte[] predicateBytes = predicate.getBytes(StandardCharsets.UTF_8);
+        byte[] objectBytes = object.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 8 + 12 + subjectBytes.length + predicateBytes.length + objectBytes.length;
+        while (pending.remaining() < 8 + length && pending.position() > 0
+                && pending.position() + 8L + length > MAX_PENDING) {
+            drain();
+        }
+        if (pending.remaining() < 8 + length) {
+            ByteBuffer grown = ByteBuffer.allocate(
+                    (int) Math.max(Math.min(2L * pending.capacity(), MAX_PENDING), pending.position() + 8L + length));
+            pending.flip();
+            pending = grown.put(pending);
+        }
+        int start = pending.position();
+        pending.putInt(length).putInt(0).put(operation).putLong(version);
+        pending.putInt(subjectBytes.length).put(subjectBytes);
+        pending.putInt(predicateBytes.length).put(predicateBytes);
+        pending.putInt(objectBytes.length).put(objectBytes);
+        checksum.reset();
+        checksum.update(pending.array(), start + 8, length);
+        pending.putInt(start + 4, (int) checksum.getValue());
+        return ++appended;
+    }
+
+    /**
+     * Write the batch of appended records to the file without forcing it, so
+     * that the batch stays bounded however many records are appended between
+     * syncs, e.g. by a bulk import under SyncPolicy.COMMIT. A later sync forces
+     * them along with its own batch. If a flush is in progress, waits for it
+     * instead, as it may have taken the batch. Called holding the monitor.
+     * 
+     * @throws IOException
+     */
+    private void drain() throws IOException {
+        if (flushing) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the write-ahead log");
+            }
+            if (failure != null) {
+                throw new IOException("Write-ahead log is unusable after an earlier failure", failure);
+            }
+            return;
+        }
+        pending.flip();
+        try {
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+        } catch (IOException ex) {
+            failure = ex;
+            notifyAll();
+            throw ex;
+        } finally {
+            pending.clear();
+        }
+    }
+
+    /**
+     * Wait until the record with the given sequence number is durable. Does
+     * nothing unless the policy is COMMIT; the other policies leave writing to
+     * the sync thread.
+     * 
+     * @param sequence
+     * @throws IOException
+     */
+    void commit(long sequence) throws IOException {
+        if (policy == SyncPolicy.COMMIT) {
+            sync(sequence, true);
+        }
+    }
+
+    /**
+     * Force every appended record to stable storage and empty the log file.
+     * Used after a snapshot covering all logged writes has been saved; the
+     * caller must prevent appends meanwhile.
+     * 
+     * @throws IOException
+     */
+    void reset() throws IOException {
+        sync(appendedSequence(), true);
+        synchronized (this) {
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Write and force every appended record, stop the sync thread and close the
+     * file.
+     * 
+     * @throws IOException
+     */
+    void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (syncThread != null) {
+                try {
+                    syncThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            sync(appendedSequence(), policy != SyncPolicy.NONE);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private synchronized long appendedSequence() {
+        return appended;
+    }
+
+    /**
+     * Make records up to the given sequence number durable. The first caller
+     * finding no flush in progress writes everything appended so far, later
+     * callers wait for it and return if that covered their record.
+     */
+    private void sync(long sequence, boolean force) throws IOException {
+        ByteBuffer batch;
+        long upTo;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log is unusable after an earlier failure", failure);
+                }
+                if (durable >= sequence) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the write-ahead log");
+                }
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            upTo = appended;
+        }
+        IOException error = null;
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            if (force) {
+                channel.force(false);
+            }
+        } catch (IOException ex) {
+            error = ex;
+        }
+        synchronized (this) {
+            batch.clear();
+            spare = batch;
+            flushing = false;
+            if (error == null) {
+                durable = upTo;
+            } else {
+                failure = error;
+            }
+            notifyAll();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Body of the sync thread. The thread is stopped through the closed flag
+     * rather than an interrupt, which would close the file channel.
+     */
+    private void runSyncThread() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    if (!closed) {
+                        wait(SYNC_INTERVAL);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            }
+            try {
+                sync(appendedSequence(), policy == SyncPolicy.INTERVAL);
+            } catch (IOException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replay the records of the file from the start.
+     * 
+     * @return the file position just past the last intact record.
+     */
+    private long replay(long version, Handler handler) throws IOException {
+        DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1 << 16));
+        long end = 0;
+        byte[] payload = new byte[256];
+        while (true) {
+            int length;
+            int expected;
+            try {
+                length = input.readInt();
+                expected = input.readInt();
+                if (length < 21 || length > MAX_PAYLOAD) {
+                    return end;
+                }
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, 2 * payload.length)];
+                }
+                input.readFully(payload, 0, length);
+            } catch (EOFException ex) {
+                return end;
+            }
+            checksum.reset();
+            checksum.update(payload, 0, length);
+            if ((int) checksum.getValue() != expected) {
+                return end;
+            }
+            ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+            byte operation = record.get();
+            long recordVersion = record.getLong();
+            String subject = readTerm(record);
+            String predicate = readTerm(record);
+            String object = readTerm(record);
+            if (subject == null || predicate == null || object == null || record.hasRemaining()) {
+                return end;
+            }
+            if (recordVersion > version) {
+                handler.apply(operation, recordVersion, subject, predicate, object);
+                recoveredCount++;
+            }
+            end += 8 + length;
+        }
+    }
+
+    /**
+     * @return the next length prefixed term of the record, or null if the
+     *         record is malformed.
+     */
+    private static String readTerm(ByteBuffer record) {
+        if (record.remaining() < 4) {
+            return null;
+        }
+        int length = record.getInt();
+        if (length < 0 || length > record.remaining()) {
+            return null;
+        }
+        String term = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return term;
+    }
+}
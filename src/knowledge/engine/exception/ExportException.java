@@ -0,0 +1,12 @@
+package housemate.src.knowledge.engine.exception;
+
+public class ExportException extends Exception{
+
+	/**
+	 * @param message
+	 */
+	public ExportException(String message){
+		super(message);
+	}
+
+}
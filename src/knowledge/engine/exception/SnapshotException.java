@@ -0,0 +1,12 @@
+package housemate.src.knowledge.engine.exception;
+
+public class SnapshotException extends Exception{
+
+	/**
+	 * @param message
+	 */
+	public SnapshotException(String message){
+		super(message);
+	}
+
+}
\ No newline at end of file
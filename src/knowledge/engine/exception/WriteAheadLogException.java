@@ -0,0 +1,12 @@
+package housemate.src.knowledge.engine.exception;
+
+public class WriteAheadLogException extends Exception{
+
+	/**
+	 * @param message
+	 */
+	public WriteAheadLogException(String message){
+		super(message);
+	}
+
+}
\ No newline at end of file